@@ -0,0 +1,196 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the steady state of the blocking checks: the state does not change between the calls,
+ * so every call reads the same snapshots and cached decisions. Run with {@code -prof gc} (as the
+ * benchmark profile does) to see the allocation per call, which should be zero.
+ * <p/>
+ * The monitor and cache benchmarks only touch plugin code. The dispatcher benchmarks call
+ * {@code canRun} and {@code canTake} like the queue does, answered from the decision cache or the
+ * published decisions. They call {@code Job.getProperty} and {@code Node.getNodeName} on mocks,
+ * which record every call; {@link #baselineMockCalls()} makes the same calls, its allocation is
+ * to be subtracted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingChecksBenchmark {
+
+    private static final int JOBS = 200;
+
+    private RunningBuildsRegistry registry;
+    private DecisionCache decisionCache;
+    private AsyncEvaluator asyncEvaluator;
+
+    private BlockingJobsMonitor literalMonitor;
+    private BlockingJobsMonitor prefixMonitor;
+    private BlockingJobsMonitor regexMonitor;
+    private BlockingJobsMonitor freeMonitor;
+
+    private Queue.Item item;
+    private Queue.BuildableItem buildable;
+    private Node node;
+
+    private BuildBlockerQueueTaskDispatcher cachedDispatcher;
+    private BuildBlockerQueueTaskDispatcher publishedDispatcher;
+
+    @Setup
+    public void setup() {
+        registry = new RunningBuildsRegistry();
+        registry.reconcile(new Computer[0]);
+        QueueIndex index = new QueueIndex(new LabelMembershipCache());
+        index.reconcile(new Queue.Item[0], 0);
+
+        Computer computer = mock(Computer.class);
+        when(computer.getName()).thenReturn("node");
+        Executor executor = mock(Executor.class);
+        when(executor.getOwner()).thenReturn(computer);
+
+        List<Queue.Item> items = new ArrayList<Queue.Item>();
+        for (int i = 0; i < JOBS; i++) {
+            FreeStyleProject project = mock(FreeStyleProject.class);
+            when(project.getFullName()).thenReturn("folder/job-" + i);
+            if (i % 2 == 0) {
+                FreeStyleBuild build = mock(FreeStyleBuild.class);
+                when(build.getParent()).thenReturn(project);
+                registry.onStarted(build, executor);
+            }
+            Queue.Item queued = new Queue.WaitingItem(Calendar.getInstance(), project, Collections.<Action>emptyList());
+            index.onEnter(queued, QueueIndex.State.WAITING);
+            items.add(queued);
+        }
+        item = items.get(JOBS - 1);
+        FreeStyleProject checkedProject = (FreeStyleProject) item.task;
+        when(checkedProject.getProperty(BuildBlockerProperty.class))
+                .thenReturn(new BuildBlockerProperty(true, "global", "all", "folder/job-15.*"));
+        buildable = new Queue.BuildableItem((Queue.WaitingItem) item);
+        items.add(buildable);
+        node = mock(Node.class);
+        when(node.getNodeName()).thenReturn("node");
+
+        literalMonitor = new BlockingJobsMonitor(BlockingJobsMatcher.compile("folder/job-150"), registry, index);
+        prefixMonitor = new BlockingJobsMonitor(BlockingJobsMatcher.compile("folder/job-15.*"), registry, index);
+        regexMonitor = new BlockingJobsMonitor(BlockingJobsMatcher.compile("fold[e]r/job-1[5]0"), registry, index);
+        freeMonitor = new BlockingJobsMonitor(BlockingJobsMatcher.compile("other/job-.*\nunrelated"), registry, index);
+
+        decisionCache = new DecisionCache(registry, index);
+        decisionCache.put(decisionCache.getVersion(), item, null, mock(CauseOfBlockage.class));
+
+        BuildBlockerQueueTaskDispatcher dispatcher = mock(BuildBlockerQueueTaskDispatcher.class);
+        when(dispatcher.evaluateAll(anyCollectionOf(Queue.Item.class), any(Node.class)))
+                .thenReturn(Collections.<Queue.Item, CauseOfBlockage>emptyMap());
+        asyncEvaluator = new AsyncEvaluator(decisionCache);
+        asyncEvaluator.configure(true, Long.MAX_VALUE / 2);
+        asyncEvaluator.evaluate(items, dispatcher, System.currentTimeMillis());
+
+        final RunningBuildsRegistry runningBuilds = registry;
+        final QueueIndex queuedItems = index;
+        MonitorFactory monitorFactory = new MonitorFactory() {
+            public BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs) {
+                return new BlockingJobsMonitor(blockingJobs, runningBuilds, queuedItems);
+            }
+        };
+        cachedDispatcher = new BuildBlockerQueueTaskDispatcher(monitorFactory);
+        cachedDispatcher.setDecisionCache(decisionCache);
+        // the first calls evaluate and cache the decisions
+        cachedDispatcher.canRun(buildable);
+        cachedDispatcher.canTake(node, buildable);
+        publishedDispatcher = new BuildBlockerQueueTaskDispatcher(monitorFactory);
+        publishedDispatcher.setAsyncEvaluator(asyncEvaluator);
+    }
+
+    @Benchmark
+    public Job runningLiteral() {
+        return literalMonitor.checkAllNodesForRunningBuilds();
+    }
+
+    @Benchmark
+    public Job runningPrefix() {
+        return prefixMonitor.checkAllNodesForRunningBuilds();
+    }
+
+    @Benchmark
+    public Job runningRegex() {
+        return regexMonitor.checkAllNodesForRunningBuilds();
+    }
+
+    @Benchmark
+    public Job runningNotBlocked() {
+        return freeMonitor.checkAllNodesForRunningBuilds();
+    }
+
+    @Benchmark
+    public Job queuedAll() {
+        return prefixMonitor.checkForQueueEntries(item);
+    }
+
+    @Benchmark
+    public Job queuedNotBlocked() {
+        return freeMonitor.checkForQueueEntries(item);
+    }
+
+    @Benchmark
+    public DecisionCache.Decision cachedDecision() {
+        return decisionCache.get(decisionCache.getVersion(), item, null);
+    }
+
+    @Benchmark
+    public DecisionCache.Decision publishedDecision() {
+        return asyncEvaluator.lookup(item);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRunCached() {
+        return cachedDispatcher.canRun(buildable);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canTakeCached() {
+        return cachedDispatcher.canTake(node, buildable);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRunPublished() {
+        return publishedDispatcher.canRun(buildable);
+    }
+
+    @Benchmark
+    public Object baselineMockCalls() {
+        node.getNodeName();
+        return ((Job) buildable.task).getProperty(BuildBlockerProperty.class);
+    }
+}
@@ -0,0 +1,155 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises the monitor and the dispatcher against a {@link SyntheticJenkins} of varying size.
+ * Every call checks the next queued item, so all blocking configurations are visited.
+ * <p/>
+ * Throughput gives the calls per second, average time the nanoseconds per decision, and
+ * {@code gc.alloc.rate.norm} of {@code -prof gc} the bytes per decision. The dispatcher calls
+ * {@code Job.getProperty} and {@code Node.getNodeName} on mocks, {@link #baselineMockCalls()}
+ * measures that share so it can be subtracted.
+ * <p/>
+ * The whole grid takes hours; narrow it for a comparison, for example
+ * {@code mvn -P benchmark test-compile exec:exec -Dbenchmark.includes="BlockingEngine.*canRun -p jobs=10000 -p folderDepth=3"}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockingEngineBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    private int jobs;
+
+    @Param({"100", "1000"})
+    private int queueDepth;
+
+    @Param({"16", "256"})
+    private int executors;
+
+    @Param({"1", "5", "20"})
+    private int patternsPerJob;
+
+    @Param({"0", "3"})
+    private int folderDepth;
+
+    @Param({"global", "node"})
+    private String blockLevel;
+
+    @Param({"all", "buildable"})
+    private String scanQueueFor;
+
+    private SyntheticJenkins jenkins;
+
+    private BlockingJobsMonitor[] monitors;
+
+    /**
+     * evaluates every check, like the dispatcher with the decision cache disabled
+     */
+    private BuildBlockerQueueTaskDispatcher uncached;
+
+    /**
+     * answers repeated checks of an unchanged state from the decision cache
+     */
+    private BuildBlockerQueueTaskDispatcher cached;
+
+    private int next;
+
+    private int nextBuildable;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        jenkins = new SyntheticJenkins(jobs, queueDepth, executors, patternsPerJob, folderDepth, blockLevel,
+                scanQueueFor);
+        MonitorFactory monitorFactory = jenkins.monitorFactory();
+        monitors = new BlockingJobsMonitor[jenkins.queue.length];
+        for (int i = 0; i < monitors.length; i++) {
+            Job job = (Job) jenkins.queue[i].task;
+            BuildBlockerProperty property = (BuildBlockerProperty) job.getProperty(BuildBlockerProperty.class);
+            monitors[i] = monitorFactory.build(property.getBlockingJobsMatcher());
+        }
+        uncached = new BuildBlockerQueueTaskDispatcher(monitorFactory);
+        cached = new BuildBlockerQueueTaskDispatcher(monitorFactory);
+        cached.setDecisionCache(new DecisionCache(jenkins.registry, jenkins.index));
+    }
+
+    @Benchmark
+    public Job monitorRunning() {
+        return monitors[next()].checkAllNodesForRunningBuilds();
+    }
+
+    @Benchmark
+    public Job monitorRunningOnNode() {
+        int i = next();
+        return monitors[i].checkNodeForRunningBuilds(jenkins.nodes[i % jenkins.nodes.length]);
+    }
+
+    @Benchmark
+    public Job monitorQueue() {
+        int i = next();
+        return monitors[i].checkForQueueEntries(jenkins.queue[i]);
+    }
+
+    @Benchmark
+    public Job monitorNodeQueue() {
+        int i = next();
+        return monitors[i].checkNodeForQueueEntries(jenkins.queue[i], jenkins.nodes[i % jenkins.nodes.length]);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRun() {
+        return uncached.canRun(jenkins.queue[next()]);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRunCached() {
+        return cached.canRun(jenkins.queue[next()]);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canTake() {
+        int i = nextBuildable();
+        return uncached.canTake(jenkins.nodes[i % jenkins.nodes.length], jenkins.buildable[i]);
+    }
+
+    @Benchmark
+    public Object baselineMockCalls() {
+        int i = next();
+        Job job = (Job) jenkins.queue[i].task;
+        jenkins.nodes[i % jenkins.nodes.length].getNodeName();
+        return job.getProperty(BuildBlockerProperty.class);
+    }
+
+    private int next() {
+        int i = next;
+        next = i + 1 == jenkins.queue.length ? 0 : i + 1;
+        return i;
+    }
+
+    private int nextBuildable() {
+        int i = nextBuildable;
+        nextBuildable = i + 1 == jenkins.buildable.length ? 0 : i + 1;
+        return i;
+    }
+}
@@ -0,0 +1,412 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Deterministic discrete-event simulation of the queue of a Jenkins instance, driving the real
+ * {@link BuildBlockerQueueTaskDispatcher} with its {@link RunningBuildsRegistry}, {@link QueueIndex},
+ * {@link DecisionCache} and {@link BlockerGraph}.
+ * <p/>
+ * The queue is a simplified stand-in of {@code Queue.maintain()}: waiting and buildable items are
+ * checked with {@code canRun} in arrival order, buildable items are then checked with {@code canRun}
+ * again and offered to the free executors of the nodes with {@code canTake}. The maintenance runs periodically and, if enabled,
+ * right after every arrival and finished build, as with the {@link UnblockingScheduler}. Quiet
+ * periods and labels are not simulated. Simulated time is independent of the wall clock, only the
+ * time spent in the dispatcher is measured for real.
+ * <p/>
+ * Run with {@code mvn -P benchmark test-compile exec:exec@simulate -Dsimulation.args="..."}, the
+ * arguments are {@code key=value} pairs:
+ * <ul>
+ * <li>{@code trace} file to replay, see {@link WorkloadTrace}; without it a workload is generated
+ * from {@code jobs}, {@code builds}, {@code interarrival}, {@code duration} and {@code seed}</li>
+ * <li>{@code writeTrace} file to save the replayed workload to</li>
+ * <li>{@code nodes}, {@code executors} number of nodes and executors per node</li>
+ * <li>{@code maintenance} interval of the periodic maintenance in milliseconds</li>
+ * <li>{@code eventMaintenance}, {@code decisionCache}, {@code graph} true or false</li>
+ * </ul>
+ */
+public final class Simulator {
+
+    private final WorkloadTrace trace;
+    private final int nodeCount;
+    private final int executorsPerNode;
+    private final long maintenanceInterval;
+    private final boolean eventMaintenance;
+
+    private final RunningBuildsRegistry registry = new RunningBuildsRegistry();
+    private final QueueIndex index = new QueueIndex(new LabelMembershipCache());
+    private final BuildBlockerQueueTaskDispatcher dispatcher;
+
+    private final Map<String, FreeStyleProject> jobs = new HashMap<String, FreeStyleProject>();
+    private final SimNode[] nodes;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final List<SimItem> queue = new ArrayList<SimItem>();
+    private long sequence;
+    private long now;
+    private long scheduledMaintenance = -1;
+
+    private final List<Long> waits = new ArrayList<Long>();
+    private final List<Long> blockedWaits = new ArrayList<Long>();
+    private long busy;
+    private long lastFinish;
+    private long maintenances;
+    private long canRunCalls;
+    private long canTakeCalls;
+    private long dispatcherNanos;
+
+    Simulator(WorkloadTrace trace, int nodeCount, int executorsPerNode, long maintenanceInterval,
+              boolean eventMaintenance, boolean decisionCache, boolean graph) {
+        this.trace = trace;
+        this.nodeCount = nodeCount;
+        this.executorsPerNode = executorsPerNode;
+        this.maintenanceInterval = maintenanceInterval;
+        this.eventMaintenance = eventMaintenance;
+
+        registry.reconcile(new Computer[0]);
+        index.reconcile(new Queue.Item[0], 0);
+        for (WorkloadTrace.JobConfig config : trace.jobs.values()) {
+            FreeStyleProject job = mock(FreeStyleProject.class);
+            when(job.getFullName()).thenReturn(config.name);
+            if (config.isUseBuildBlocker()) {
+                when(job.getProperty(BuildBlockerProperty.class)).thenReturn(new BuildBlockerProperty(true,
+                        config.blockLevel, config.scanQueueFor, config.blockingJobs));
+            }
+            jobs.put(config.name, job);
+        }
+        nodes = new SimNode[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            nodes[n] = new SimNode("node-" + n, executorsPerNode);
+        }
+
+        final StateProvider state = new IndexedStateProvider(registry, index);
+        MonitorFactory monitorFactory = new MonitorFactory() {
+            public BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs) {
+                return new BlockingJobsMonitor(blockingJobs, state);
+            }
+        };
+        BlockerGraph blockerGraph = null;
+        if (graph) {
+            blockerGraph = new BlockerGraph();
+            blockerGraph.rebuild(jobs.values());
+        }
+        dispatcher = new BuildBlockerQueueTaskDispatcher(monitorFactory);
+        dispatcher.setBlockerGraph(blockerGraph);
+        if (decisionCache) {
+            dispatcher.setDecisionCache(new DecisionCache(registry, index));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected key=value but got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        WorkloadTrace trace = options.containsKey("trace")
+                ? WorkloadTrace.read(new File(options.get("trace")))
+                : WorkloadTrace.generate(intOption(options, "jobs", 200), intOption(options, "builds", 5000),
+                longOption(options, "interarrival", 2000), longOption(options, "duration", 120000),
+                longOption(options, "seed", 1));
+        if (options.containsKey("writeTrace")) {
+            PrintWriter out = new PrintWriter(new File(options.get("writeTrace")), "UTF-8");
+            try {
+                trace.write(out);
+            } finally {
+                out.close();
+            }
+        }
+        Simulator simulator = new Simulator(trace, intOption(options, "nodes", 10), intOption(options, "executors", 2),
+                longOption(options, "maintenance", 5000), booleanOption(options, "eventMaintenance", true),
+                booleanOption(options, "decisionCache", true), booleanOption(options, "graph", true));
+        simulator.run();
+        simulator.report(System.out);
+    }
+
+    void run() {
+        for (int i = 0; i < trace.arrivals.size(); i++) {
+            schedule(trace.arrivals.get(i).time, Event.ARRIVAL, trace.arrivals.get(i), null);
+        }
+        schedule(0, Event.PERIODIC_MAINTENANCE, null, null);
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            switch (event.type) {
+                case Event.ARRIVAL:
+                    arrive(event.arrival);
+                    break;
+                case Event.FINISH:
+                    finish(event.build);
+                    break;
+                case Event.MAINTENANCE:
+                    scheduledMaintenance = -1;
+                    maintain();
+                    break;
+                default:
+                    maintain();
+                    // items left blocking each other in the queue never start, stop once nothing else happens
+                    if (!events.isEmpty()) {
+                        schedule(now + maintenanceInterval, Event.PERIODIC_MAINTENANCE, null, null);
+                    }
+            }
+        }
+    }
+
+    private void arrive(WorkloadTrace.Arrival arrival) {
+        Queue.WaitingItem item = new Queue.WaitingItem(Calendar.getInstance(), jobs.get(arrival.job.name),
+                Collections.<Action>emptyList());
+        queue.add(new SimItem(arrival, item));
+        index.onEnter(item, QueueIndex.State.WAITING);
+        requestMaintenance();
+    }
+
+    private void finish(SimBuild build) {
+        registry.onFinalized(build.run);
+        build.node.free++;
+        busy += now - build.start;
+        lastFinish = now;
+        requestMaintenance();
+    }
+
+    private void requestMaintenance() {
+        if (eventMaintenance && scheduledMaintenance != now) {
+            scheduledMaintenance = now;
+            schedule(now, Event.MAINTENANCE, null, null);
+        }
+    }
+
+    private void maintain() {
+        maintenances++;
+        for (SimItem item : queue) {
+            boolean blocked = isBlocked(item);
+            // like the queue, every change of state replaces the item by a new one
+            if (blocked && !(item.item instanceof Queue.BlockedItem)) {
+                block(item);
+            } else if (!blocked && !(item.item instanceof Queue.BuildableItem)) {
+                item.item = item.item instanceof Queue.WaitingItem
+                        ? new Queue.BuildableItem((Queue.WaitingItem) item.item)
+                        : new Queue.BuildableItem((Queue.NotWaitingItem) item.item);
+                index.onEnter(item.item, QueueIndex.State.BUILDABLE);
+            }
+        }
+        for (Iterator<SimItem> it = queue.iterator(); it.hasNext(); ) {
+            SimItem item = it.next();
+            if (!(item.item instanceof Queue.BuildableItem) || !hasFreeExecutor()) {
+                continue;
+            }
+            // like the queue, the item is checked again right before it is offered to the executors,
+            // as items started earlier in this maintenance may block it now
+            if (isBlocked(item)) {
+                block(item);
+                continue;
+            }
+            for (SimNode node : nodes) {
+                if (node.free == 0) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                boolean blocked = dispatcher.canTake(node.node, (Queue.BuildableItem) item.item) != null;
+                dispatcherNanos += System.nanoTime() - start;
+                canTakeCalls++;
+                if (!blocked) {
+                    it.remove();
+                    start(item, node);
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isBlocked(SimItem item) {
+        long start = System.nanoTime();
+        boolean blocked = dispatcher.canRun(item.item) != null;
+        dispatcherNanos += System.nanoTime() - start;
+        canRunCalls++;
+        return blocked;
+    }
+
+    private void block(SimItem item) {
+        item.item = item.item instanceof Queue.WaitingItem
+                ? new Queue.BlockedItem((Queue.WaitingItem) item.item)
+                : new Queue.BlockedItem((Queue.NotWaitingItem) item.item);
+        if (item.firstBlocked < 0) {
+            item.firstBlocked = now;
+        }
+        index.onEnter(item.item, QueueIndex.State.BLOCKED);
+    }
+
+    private boolean hasFreeExecutor() {
+        for (SimNode node : nodes) {
+            if (node.free > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(SimItem item, SimNode node) {
+        index.onLeaveBuildable((Queue.BuildableItem) item.item);
+        index.onLeft(item.item);
+        node.free--;
+        FreeStyleBuild run = mock(FreeStyleBuild.class);
+        when(run.getParent()).thenReturn(jobs.get(item.arrival.job.name));
+        registry.onStarted(run, node.executor);
+        waits.add(now - item.arrival.time);
+        if (item.firstBlocked >= 0) {
+            blockedWaits.add(now - item.firstBlocked);
+        }
+        schedule(now + item.arrival.duration, Event.FINISH, null, new SimBuild(run, node, now));
+    }
+
+    private void schedule(long time, int type, WorkloadTrace.Arrival arrival, SimBuild build) {
+        events.add(new Event(time, sequence++, type, arrival, build));
+    }
+
+    void report(PrintStream stream) {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(stream));
+        long makespan = Math.max(1, lastFinish);
+        long dispatcherCalls = canRunCalls + canTakeCalls;
+        out.printf(Locale.ENGLISH, "workload:           %d jobs, %d builds, %d nodes x %d executors%n",
+                trace.jobs.size(), trace.arrivals.size(), nodeCount, executorsPerNode);
+        out.printf(Locale.ENGLISH, "simulated time:     %.1f h, %d maintenances%n", makespan / 3600000d, maintenances);
+        out.printf(Locale.ENGLISH, "throughput:         %.1f builds/h (%d started, %d never started)%n",
+                waits.size() * 3600000d / makespan, waits.size(), queue.size());
+        out.printf(Locale.ENGLISH, "executor use:       %.1f %%%n", 100d * busy / ((double) makespan * nodeCount * executorsPerNode));
+        out.println("queue wait (s):     " + percentiles(waits));
+        out.println("blocked wait (s):   " + percentiles(blockedWaits) + ", " + blockedWaits.size() + " builds blocked");
+        out.printf(Locale.ENGLISH, "dispatcher:         %d canRun, %d canTake, %.3f ms total, %.0f ns/call%n",
+                canRunCalls, canTakeCalls, dispatcherNanos / 1e6,
+                dispatcherCalls > 0 ? (double) dispatcherNanos / dispatcherCalls : 0d);
+        out.flush();
+    }
+
+    private static String percentiles(List<Long> values) {
+        if (values.isEmpty()) {
+            return "none";
+        }
+        Long[] sorted = values.toArray(new Long[values.size()]);
+        Arrays.sort(sorted);
+        return String.format(Locale.ENGLISH, "p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                sorted[sorted.length - 1] / 1000d);
+    }
+
+    private static double percentile(Long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, i)] / 1000d;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    private static long longOption(Map<String, String> options, String key, long defaultValue) {
+        return options.containsKey(key) ? Long.parseLong(options.get(key)) : defaultValue;
+    }
+
+    private static boolean booleanOption(Map<String, String> options, String key, boolean defaultValue) {
+        return options.containsKey(key) ? Boolean.parseBoolean(options.get(key)) : defaultValue;
+    }
+
+    /**
+     * A queued build and the item currently representing it in the queue.
+     */
+    private static final class SimItem {
+        private final WorkloadTrace.Arrival arrival;
+        private Queue.Item item;
+        private long firstBlocked = -1;
+
+        private SimItem(WorkloadTrace.Arrival arrival, Queue.WaitingItem item) {
+            this.arrival = arrival;
+            this.item = item;
+        }
+    }
+
+    private static final class SimNode {
+        private final Node node;
+        private final Executor executor;
+        private int free;
+
+        private SimNode(String name, int executors) {
+            node = mock(Node.class);
+            when(node.getNodeName()).thenReturn(name);
+            Computer computer = mock(Computer.class);
+            when(computer.getName()).thenReturn(name);
+            executor = mock(Executor.class);
+            when(executor.getOwner()).thenReturn(computer);
+            free = executors;
+        }
+    }
+
+    private static final class SimBuild {
+        private final Run<?, ?> run;
+        private final SimNode node;
+        private final long start;
+
+        private SimBuild(Run<?, ?> run, SimNode node, long start) {
+            this.run = run;
+            this.node = node;
+            this.start = start;
+        }
+    }
+
+    /**
+     * An event at a point of simulated time, ordered by time and then by scheduling order.
+     */
+    private static final class Event implements Comparable<Event> {
+        private static final int ARRIVAL = 0;
+        private static final int FINISH = 1;
+        private static final int MAINTENANCE = 2;
+        private static final int PERIODIC_MAINTENANCE = 3;
+
+        private final long time;
+        private final long sequence;
+        private final int type;
+        private final WorkloadTrace.Arrival arrival;
+        private final SimBuild build;
+
+        private Event(long time, long sequence, int type, WorkloadTrace.Arrival arrival, SimBuild build) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.arrival = arrival;
+            this.build = build;
+        }
+
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * In-memory stand-in for the jobs, executors and queue of a Jenkins instance, fed into a
+ * {@link RunningBuildsRegistry} and a {@link QueueIndex}. The content is generated from a fixed
+ * seed, so the same parameters always produce the same state.
+ * <p/>
+ * Jobs, builds, computers and nodes are mocks that are only called while the state is built, the
+ * registry and the index keep what they need. Only {@code Job.getProperty} and
+ * {@code Node.getNodeName} are called by the dispatcher later.
+ */
+final class SyntheticJenkins {
+
+    final RunningBuildsRegistry registry;
+    final QueueIndex index;
+    final FreeStyleProject[] jobs;
+    final Node[] nodes;
+    final Queue.Item[] queue;
+    final Queue.BuildableItem[] buildable;
+
+    /**
+     * @param jobCount       number of jobs
+     * @param queueDepth     number of queued items, every second one buildable
+     * @param executors      number of executors, all of them busy
+     * @param patternsPerJob number of blocking job lines of every job
+     * @param folderDepth    number of folders above every job
+     * @param blockLevel     block level of all jobs, {@code global} or {@code node}
+     * @param scanQueueFor   queue scan scope of all jobs, {@code all}, {@code buildable} or {@code disabled}
+     */
+    SyntheticJenkins(int jobCount, int queueDepth, int executors, int patternsPerJob, int folderDepth,
+                     String blockLevel, String scanQueueFor) {
+        Random random = new Random(42);
+        registry = new RunningBuildsRegistry();
+        registry.reconcile(new Computer[0]);
+        index = new QueueIndex(new LabelMembershipCache());
+        index.reconcile(new Queue.Item[0], 0);
+
+        String[] names = new String[jobCount];
+        for (int i = 0; i < jobCount; i++) {
+            names[i] = name(i, folderDepth);
+        }
+        jobs = new FreeStyleProject[jobCount];
+        for (int i = 0; i < jobCount; i++) {
+            StringBuilder blockingJobs = new StringBuilder();
+            for (int p = 0; p < patternsPerJob; p++) {
+                blockingJobs.append(pattern(names[random.nextInt(jobCount)], random)).append('\n');
+            }
+            BuildBlockerProperty property = new BuildBlockerProperty(true, blockLevel, scanQueueFor,
+                    blockingJobs.toString());
+            FreeStyleProject job = mock(FreeStyleProject.class);
+            when(job.getFullName()).thenReturn(names[i]);
+            when(job.getProperty(BuildBlockerProperty.class)).thenReturn(property);
+            jobs[i] = job;
+        }
+
+        int nodeCount = Math.max(1, executors / 4);
+        nodes = new Node[nodeCount];
+        Executor[] nodeExecutors = new Executor[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            Node node = mock(Node.class);
+            when(node.getNodeName()).thenReturn("node-" + n);
+            nodes[n] = node;
+            Computer computer = mock(Computer.class);
+            when(computer.getName()).thenReturn("node-" + n);
+            Executor executor = mock(Executor.class);
+            when(executor.getOwner()).thenReturn(computer);
+            nodeExecutors[n] = executor;
+        }
+        for (int e = 0; e < executors; e++) {
+            FreeStyleBuild build = mock(FreeStyleBuild.class);
+            when(build.getParent()).thenReturn(jobs[random.nextInt(jobCount)]);
+            registry.onStarted(build, nodeExecutors[e % nodeCount]);
+        }
+
+        queue = new Queue.Item[queueDepth];
+        List<Queue.BuildableItem> buildableItems = new ArrayList<Queue.BuildableItem>();
+        for (int q = 0; q < queueDepth; q++) {
+            Queue.WaitingItem waiting = new Queue.WaitingItem(Calendar.getInstance(), jobs[random.nextInt(jobCount)],
+                    Collections.<Action>emptyList());
+            if (q % 2 == 0) {
+                queue[q] = waiting;
+                index.onEnter(waiting, QueueIndex.State.WAITING);
+            } else {
+                Queue.BuildableItem item = new Queue.BuildableItem(waiting);
+                queue[q] = item;
+                buildableItems.add(item);
+                index.onEnter(item, QueueIndex.State.BUILDABLE);
+            }
+        }
+        buildable = buildableItems.toArray(new Queue.BuildableItem[buildableItems.size()]);
+    }
+
+    /**
+     * @return a monitor factory sharing one monitor per matcher, reading this state
+     */
+    MonitorFactory monitorFactory() {
+        return new MonitorFactory() {
+            private final Map<BlockingJobsMatcher, BlockingJobsMonitor> monitors =
+                    new IdentityHashMap<BlockingJobsMatcher, BlockingJobsMonitor>();
+
+            public synchronized BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs) {
+                BlockingJobsMonitor monitor = monitors.get(blockingJobs);
+                if (monitor == null) {
+                    monitor = new BlockingJobsMonitor(blockingJobs, registry, index);
+                    monitors.put(blockingJobs, monitor);
+                }
+                return monitor;
+            }
+        };
+    }
+
+    private static String name(int i, int folderDepth) {
+        StringBuilder name = new StringBuilder();
+        int rest = i;
+        for (int d = 0; d < folderDepth; d++) {
+            name.append("folder-").append(rest % 10).append('/');
+            rest /= 10;
+        }
+        return name.append("job-").append(i).toString();
+    }
+
+    /**
+     * @return a blocking job line for the given name: the name itself, a prefix or a regular expression
+     */
+    private static String pattern(String name, Random random) {
+        int kind = random.nextInt(4);
+        if (kind < 2) {
+            return name;
+        }
+        String stem = name.substring(0, name.length() - 1);
+        return kind == 2 ? stem + ".*" : stem + "[0-9]";
+    }
+}
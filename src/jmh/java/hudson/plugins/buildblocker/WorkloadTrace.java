@@ -0,0 +1,175 @@
+package hudson.plugins.buildblocker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Workload replayed by the {@link Simulator}: the blocking configuration of every job and the
+ * arrivals of builds in the queue.
+ * <p/>
+ * The text format has one arrival per line, lines starting with {@code #} are comments:
+ * <pre>
+ * # arrival_ms,job,duration_ms,block_level,scan_queue_for,blocking_jobs
+ * 0,team-1/deploy,60000,global,all,team-1/build-.*;team-1/test
+ * 1500,team-1/build-3,30000,,,
+ * </pre>
+ * The blocking jobs are separated by {@code ;}, an empty list means the job does not use the
+ * blocker. The first line of a job defines its configuration.
+ */
+final class WorkloadTrace {
+
+    final Map<String, JobConfig> jobs = new LinkedHashMap<String, JobConfig>();
+
+    final List<Arrival> arrivals = new ArrayList<Arrival>();
+
+    /**
+     * Blocking configuration of a job.
+     */
+    static final class JobConfig {
+        final String name;
+        final String blockLevel;
+        final String scanQueueFor;
+        final String blockingJobs;
+
+        JobConfig(String name, String blockLevel, String scanQueueFor, String blockingJobs) {
+            this.name = name;
+            this.blockLevel = blockLevel;
+            this.scanQueueFor = scanQueueFor;
+            this.blockingJobs = blockingJobs;
+        }
+
+        boolean isUseBuildBlocker() {
+            return blockingJobs.length() > 0;
+        }
+    }
+
+    /**
+     * A build entering the queue.
+     */
+    static final class Arrival {
+        final long time;
+        final JobConfig job;
+        final long duration;
+
+        Arrival(long time, JobConfig job, long duration) {
+            this.time = time;
+            this.job = job;
+            this.duration = duration;
+        }
+    }
+
+    static WorkloadTrace read(File file) throws IOException {
+        WorkloadTrace trace = new WorkloadTrace();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                if (fields.length != 6) {
+                    throw new IOException(file + ":" + number + ": expected 6 fields but found " + fields.length);
+                }
+                try {
+                    trace.add(Long.parseLong(fields[0].trim()), fields[1].trim(), Long.parseLong(fields[2].trim()),
+                            fields[3].trim(), fields[4].trim(), fields[5].trim().replace(';', '\n'));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + number + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        trace.sort();
+        return trace;
+    }
+
+    /**
+     * Generates a workload of teams, each with build jobs and one deploy job. Deploy jobs are
+     * blocked on global level by the builds of their team, every fifth build job is blocked on
+     * node level by the build before it.
+     *
+     * @param jobCount         number of jobs
+     * @param builds           number of arrivals
+     * @param meanInterarrival mean time between arrivals in milliseconds
+     * @param meanDuration     mean build duration in milliseconds
+     * @param seed             seed of the random numbers
+     */
+    static WorkloadTrace generate(int jobCount, int builds, long meanInterarrival, long meanDuration, long seed) {
+        Random random = new Random(seed);
+        WorkloadTrace trace = new WorkloadTrace();
+        List<JobConfig> configs = new ArrayList<JobConfig>();
+        int teams = Math.max(1, jobCount / 10);
+        for (int i = 0; i < jobCount; i++) {
+            int team = i % teams;
+            int index = i / teams;
+            JobConfig config;
+            if (index == 0) {
+                config = new JobConfig("team-" + team + "/deploy", "global", i % 2 == 0 ? "all" : "buildable",
+                        "team-" + team + "/build-.*");
+            } else if (index % 5 == 0) {
+                config = new JobConfig("team-" + team + "/build-" + index, "node", "disabled",
+                        "team-" + team + "/build-" + (index - 1));
+            } else {
+                config = new JobConfig("team-" + team + "/build-" + index, "", "", "");
+            }
+            trace.jobs.put(config.name, config);
+            configs.add(config);
+        }
+        long time = 0;
+        for (int b = 0; b < builds; b++) {
+            time += exponential(random, meanInterarrival);
+            trace.arrivals.add(new Arrival(time, configs.get(random.nextInt(configs.size())),
+                    Math.max(1, exponential(random, meanDuration))));
+        }
+        return trace;
+    }
+
+    void write(PrintWriter out) {
+        out.println("# arrival_ms,job,duration_ms,block_level,scan_queue_for,blocking_jobs");
+        for (Arrival arrival : arrivals) {
+            JobConfig job = arrival.job;
+            out.println(arrival.time + "," + job.name + "," + arrival.duration + "," + job.blockLevel + ","
+                    + job.scanQueueFor + "," + job.blockingJobs.replace('\n', ';'));
+        }
+        out.flush();
+    }
+
+    private void add(long time, String name, long duration, String blockLevel, String scanQueueFor,
+                     String blockingJobs) {
+        JobConfig job = jobs.get(name);
+        if (job == null) {
+            job = new JobConfig(name, blockLevel, scanQueueFor, blockingJobs);
+            jobs.put(name, job);
+        }
+        arrivals.add(new Arrival(time, job, duration));
+    }
+
+    private void sort() {
+        // stable, arrivals at the same time keep the order of the trace
+        Collections.sort(arrivals, new Comparator<Arrival>() {
+            public int compare(Arrival a, Arrival b) {
+                return a.time < b.time ? -1 : a.time == b.time ? 0 : 1;
+            }
+        });
+    }
+
+    private static long exponential(Random random, long mean) {
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Evaluates the blocking jobs of all queued items in the background and publishes the decisions
+ * as an immutable map, so the dispatcher answers {@code canRun} with a volatile read and a map
+ * lookup instead of evaluating while the queue is locked.
+ * <p/>
+ * Changes of running builds, queued items and job configurations schedule a new evaluation after
+ * a short delay, a burst of changes results in a single evaluation. The dispatcher only uses a
+ * publication that is younger than the configured maximal staleness, was made at the current
+ * version of the blocking relevant state and knows the item; otherwise it evaluates synchronously
+ * and schedules a new evaluation. Builds starting and items becoming buildable or leaving the
+ * queue drop the publication at once. Only checks on global level are
+ * published, checks on node level are always evaluated synchronously.
+ * <p/>
+ * The mode is off by default and enabled in the {@link BuildBlockerConfiguration}.
+ */
+public final class AsyncEvaluator {
+
+    private static final Logger LOG = Logger.getLogger(AsyncEvaluator.class.getName());
+
+    /**
+     * delay in milliseconds to collect changes into one evaluation
+     */
+    public static long DELAY = Long.getLong(AsyncEvaluator.class.getName() + ".delay", 50);
+
+    private static final AsyncEvaluator INSTANCE = new AsyncEvaluator(DecisionCache.get());
+
+    private final DecisionCache decisionCache;
+
+    private final AtomicReference<Published> published = new AtomicReference<Published>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicLong evaluations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong stale = new AtomicLong();
+
+    private final AtomicLong unknown = new AtomicLong();
+
+    /**
+     * estimated time in nanoseconds the queue would have spent evaluating the answered checks
+     */
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    private volatile boolean enabled;
+
+    private volatile long maxStaleness = BuildBlockerConfiguration.DEFAULT_MAX_STALENESS;
+
+    private final Runnable evaluation = new Runnable() {
+        public void run() {
+            scheduled.set(false);
+            Jenkins jenkins = Jenkins.getInstance();
+            if (!enabled || jenkins == null) {
+                return;
+            }
+            BuildBlockerQueueTaskDispatcher dispatcher =
+                    jenkins.getExtensionList(QueueTaskDispatcher.class).get(BuildBlockerQueueTaskDispatcher.class);
+            if (dispatcher == null) {
+                return;
+            }
+            try {
+                evaluate(Arrays.asList(jenkins.getQueue().getItems()), dispatcher, System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOG.log(WARNING, "background evaluation of the blocking jobs failed", e);
+            }
+        }
+    };
+
+    //default scope for testability
+    AsyncEvaluator(DecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    /**
+     * @return the evaluator used by the dispatcher
+     */
+    public static AsyncEvaluator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the global configuration.
+     *
+     * @param enabled      true to publish decisions in the background
+     * @param maxStaleness the maximal age in milliseconds of a publication the dispatcher answers from
+     */
+    public void configure(boolean enabled, long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+        this.enabled = enabled;
+        if (enabled) {
+            requestEvaluation();
+        } else {
+            published.set(null);
+        }
+    }
+
+    /**
+     * @return true if the dispatcher answers from the published decisions
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the published decision for the given item on global level.
+     *
+     * @param item the queued item
+     * @return the decision, null if the mode is disabled, the publication is too old, was made at another
+     * version of the blocking relevant state or does not know the item
+     */
+    public DecisionCache.Decision lookup(Queue.Item item) {
+        return lookup(item, System.currentTimeMillis());
+    }
+
+    //default scope for testability
+    DecisionCache.Decision lookup(Queue.Item item, long now) {
+        if (!enabled) {
+            return null;
+        }
+        Published current = published.get();
+        if (current == null || now - current.timestamp > maxStaleness
+                || current.version != decisionCache.getVersion()) {
+            stale.incrementAndGet();
+            requestEvaluation();
+            return null;
+        }
+        DecisionCache.Decision decision = current.decisions.get(item);
+        if (decision == null) {
+            unknown.incrementAndGet();
+            requestEvaluation();
+            return null;
+        }
+        hits.incrementAndGet();
+        savedNanos.addAndGet(current.nanosPerItem);
+        return decision;
+    }
+
+    /**
+     * Schedules an evaluation unless one is already scheduled.
+     */
+    public void requestEvaluation() {
+        if (enabled && scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(evaluation, DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops the current publication, as the state it was made at changed, and schedules an evaluation.
+     */
+    public void onStateChange() {
+        published.set(null);
+        requestEvaluation();
+    }
+
+    /**
+     * Evaluates the given items on global level and publishes the decisions.
+     */
+    //default scope for testability
+    void evaluate(Collection<? extends Queue.Item> items, BuildBlockerQueueTaskDispatcher dispatcher, long now) {
+        // read before the evaluation, so a change during the evaluation invalidates the publication
+        long version = decisionCache.getVersion();
+        long start = System.nanoTime();
+        Map<Queue.Item, CauseOfBlockage> blocked = dispatcher.evaluateAll(items, null);
+        Map<Queue.Item, DecisionCache.Decision> decisions = new IdentityHashMap<Queue.Item, DecisionCache.Decision>();
+        for (Queue.Item item : items) {
+            decisions.put(item, new DecisionCache.Decision(blocked.get(item)));
+        }
+        long elapsed = System.nanoTime() - start;
+        published.set(new Published(now, version, Collections.unmodifiableMap(decisions),
+                items.isEmpty() ? 0 : elapsed / items.size()));
+        evaluations.incrementAndGet();
+        if (LOG.isLoggable(FINE)) {
+            LOG.logp(FINE, getClass().getName(), "evaluate", "published the decisions of " + items.size()
+                    + " queued items, " + blocked.size() + " blocked, in " + elapsed / 1000 + " microseconds");
+        }
+    }
+
+    /**
+     * @return the number of background evaluations
+     */
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of checks answered from the published decisions
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of checks evaluated synchronously because the publication was missing or too old
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * @return the number of checks evaluated synchronously because the item was not yet published
+     */
+    public long getUnknown() {
+        return unknown.get();
+    }
+
+    /**
+     * @return the estimated time in nanoseconds saved while holding the queue lock
+     */
+    public long getSavedNanos() {
+        return savedNanos.get();
+    }
+
+    /**
+     * @return the age in milliseconds of the current publication, -1 if there is none
+     */
+    public long getAge() {
+        Published current = published.get();
+        return current != null ? System.currentTimeMillis() - current.timestamp : -1;
+    }
+
+    /**
+     * Immutable decisions of one background evaluation. Items are compared by identity, an item that
+     * changed its state in the queue since is not known until the next evaluation. An item that stays
+     * in the same state, e.g. buildable while waiting for an executor, is only answered as long as the
+     * version of the blocking relevant state is the one the decisions were made at.
+     */
+    private static final class Published {
+        private final long timestamp;
+        private final long version;
+        private final Map<Queue.Item, DecisionCache.Decision> decisions;
+        private final long nanosPerItem;
+
+        private Published(long timestamp, long version, Map<Queue.Item, DecisionCache.Decision> decisions,
+                          long nanosPerItem) {
+            this.timestamp = timestamp;
+            this.version = version;
+            this.decisions = decisions;
+            this.nanosPerItem = nanosPerItem;
+        }
+    }
+
+    /**
+     * Drops the publication when builds start and schedules an evaluation when builds start or finish.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            get().onStateChange();
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            get().requestEvaluation();
+        }
+    }
+
+    /**
+     * Schedules an evaluation when items enter, move through or leave the queue. Items becoming buildable
+     * or leaving the queue may block others at once, so the publication is dropped.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            get().requestEvaluation();
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            get().onStateChange();
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            get().onStateChange();
+        }
+    }
+
+    /**
+     * Schedules an evaluation when the configuration of a job is saved.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                get().requestEvaluation();
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Evaluation of many queued items against one version of the blocking relevant state.
+ * <p/>
+ * Most checks of {@link BlockingJobsMonitor} do not depend on the item they are done for, only
+ * on its blocking jobs and the node. Their results are computed once per distinct blocking
+ * configuration and shared by all items checked at the same version. Queue checks are shared as
+ * well; they are only repeated for an item if the shared result is the job of the item itself.
+ */
+public final class BatchEvaluator {
+
+    /**
+     * marker for checks that found no blocking job
+     */
+    private static final Object NONE = new Object();
+
+    private final MonitorFactory monitorFactory;
+
+    private final long version;
+
+    private final ConcurrentMap<BlockingJobsMatcher, BlockingJobsMonitor> monitors =
+            new ConcurrentHashMap<BlockingJobsMatcher, BlockingJobsMonitor>();
+
+    /**
+     * @param monitorFactory the factory of the monitors doing the actual checks
+     * @param version        the version of the blocking relevant state the results belong to
+     */
+    public BatchEvaluator(MonitorFactory monitorFactory, long version) {
+        this.monitorFactory = monitorFactory;
+        this.version = version;
+    }
+
+    /**
+     * @return the version of the blocking relevant state the results belong to
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a monitor for the given blocking jobs that shares its results with all other
+     * monitors of this evaluation.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @return the monitor
+     */
+    public BlockingJobsMonitor monitor(BlockingJobsMatcher blockingJobs) {
+        BlockingJobsMonitor monitor = monitors.get(blockingJobs);
+        if (monitor == null) {
+            monitor = new SharedResultsMonitor(blockingJobs, monitorFactory.build(blockingJobs));
+            BlockingJobsMonitor existing = monitors.putIfAbsent(blockingJobs, monitor);
+            if (existing != null) {
+                monitor = existing;
+            }
+        }
+        return monitor;
+    }
+
+    /**
+     * The kinds of checks of {@link BlockingJobsMonitor}.
+     */
+    private enum Check {
+        RUNNING, QUEUED, BUILDABLE
+    }
+
+    /**
+     * Monitor answering from the results shared by the evaluation, delegating the checks
+     * that were not done yet. The results are kept per kind of check and node, so answering
+     * from them allocates nothing. It reads the state provider of its delegate, so a check
+     * that is not shared reads the same state as the delegate.
+     */
+    private final class SharedResultsMonitor extends BlockingJobsMonitor {
+        private final BlockingJobsMatcher blockingJobs;
+        private final BlockingJobsMonitor delegate;
+
+        /**
+         * the results on global level by ordinal of the check
+         */
+        private final AtomicReferenceArray<Object> global = new AtomicReferenceArray<Object>(Check.values().length);
+
+        /**
+         * the results on node level by ordinal of the check and node name
+         */
+        private final List<ConcurrentMap<String, Object>> nodes = new ArrayList<ConcurrentMap<String, Object>>();
+
+        private SharedResultsMonitor(BlockingJobsMatcher blockingJobs, BlockingJobsMonitor delegate) {
+            super(blockingJobs, delegate.getState());
+            this.blockingJobs = blockingJobs;
+            this.delegate = delegate;
+            for (int i = 0; i < Check.values().length; i++) {
+                nodes.add(new ConcurrentHashMap<String, Object>());
+            }
+        }
+
+        @Override
+        public Job checkAllNodesForRunningBuilds() {
+            Object result = global.get(Check.RUNNING.ordinal());
+            if (result == null) {
+                result = toResult(delegate.checkAllNodesForRunningBuilds());
+                global.set(Check.RUNNING.ordinal(), result);
+            }
+            return toJob(result);
+        }
+
+        @Override
+        public Job checkNodeForRunningBuilds(Node node) {
+            if (node == null) {
+                return null;
+            }
+            ConcurrentMap<String, Object> results = nodes.get(Check.RUNNING.ordinal());
+            Object result = results.get(node.getNodeName());
+            if (result == null) {
+                result = toResult(delegate.checkNodeForRunningBuilds(node));
+                results.put(node.getNodeName(), result);
+            }
+            return toJob(result);
+        }
+
+        @Override
+        public Job checkForQueueEntries(Queue.Item item) {
+            Object result = global.get(Check.QUEUED.ordinal());
+            if (result == null) {
+                result = toResult(delegate.checkForQueueEntries(null));
+                global.set(Check.QUEUED.ordinal(), result);
+            }
+            Job job = toJob(result);
+            return isOwnJob(job, item) || countsOwnItem(job, item) ? delegate.checkForQueueEntries(item) : job;
+        }
+
+        @Override
+        public Job checkForBuildableQueueEntries(Queue.Item item) {
+            Object result = global.get(Check.BUILDABLE.ordinal());
+            if (result == null) {
+                result = toResult(delegate.checkForBuildableQueueEntries(null));
+                global.set(Check.BUILDABLE.ordinal(), result);
+            }
+            Job job = toJob(result);
+            return isOwnJob(job, item) || countsOwnItem(job, item) ? delegate.checkForBuildableQueueEntries(item) : job;
+        }
+
+        @Override
+        public Job checkNodeForQueueEntries(Queue.Item item, Node node) {
+            ConcurrentMap<String, Object> results = nodes.get(Check.QUEUED.ordinal());
+            Object result = results.get(node.getNodeName());
+            if (result == null) {
+                result = toResult(delegate.checkNodeForQueueEntries(null, node));
+                results.put(node.getNodeName(), result);
+            }
+            Job job = toJob(result);
+            return isOwnJob(job, item) || countsOwnItem(job, item) ? delegate.checkNodeForQueueEntries(item, node) : job;
+        }
+
+        @Override
+        public Job checkNodeForBuildableQueueEntries(Queue.Item item, Node node) {
+            ConcurrentMap<String, Object> results = nodes.get(Check.BUILDABLE.ordinal());
+            Object result = results.get(node.getNodeName());
+            if (result == null) {
+                result = toResult(delegate.checkNodeForBuildableQueueEntries(null, node));
+                results.put(node.getNodeName(), result);
+            }
+            Job job = toJob(result);
+            return isOwnJob(job, item) || countsOwnItem(job, item) ? delegate.checkNodeForBuildableQueueEntries(item, node) : job;
+        }
+
+        /**
+         * A shared queue check counts the checked item itself towards the limited lines matching
+         * its job, so such a result has to be verified for the item as well.
+         */
+        private boolean countsOwnItem(Job job, Queue.Item item) {
+            return job != null && item != null && item.task instanceof Job
+                    && blockingJobs.matchesLimited(((Job) item.task).getFullName());
+        }
+    }
+
+    /**
+     * A queue check shared by all items may have found the job of the checked item, which might
+     * only be blocked by itself. Such a result has to be verified for the item.
+     */
+    private static boolean isOwnJob(Job job, Queue.Item item) {
+        return job != null && item != null && item.task == job;
+    }
+
+    private static Object toResult(Job job) {
+        return job != null ? job : NONE;
+    }
+
+    private static Job toJob(Object result) {
+        return result != NONE ? (Job) result : null;
+    }
+}
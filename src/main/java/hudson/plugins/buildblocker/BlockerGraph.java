@@ -0,0 +1,396 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Precomputed directed graph from every job with blocking jobs to the jobs whose full names
+ * match its blocking jobs.
+ * <p/>
+ * The relation only changes when jobs are created, renamed or deleted, or when the blocking jobs
+ * of a job are reconfigured, so it is maintained from {@link ItemListener} and
+ * {@link SaveableListener} events instead of being derived again on every queue maintenance.
+ * Blocking checks then look up the running and queued state of the precomputed blocker set
+ * only, with a matcher that does not use the regex engine. Jobs with identical blocking jobs
+ * share one blocker set, so it is computed once per distinct configuration.
+ */
+public final class BlockerGraph {
+
+    private static final Logger LOG = Logger.getLogger(BlockerGraph.class.getName());
+
+    /**
+     * Escape hatch to disable the graph and match the blocking jobs against all running and queued jobs.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(BlockerGraph.class.getName() + ".disabled");
+
+    private static final BlockerGraph INSTANCE = new BlockerGraph();
+
+    /**
+     * full names of all jobs, sorted to look up name prefixes, guarded by this
+     */
+    private final NavigableMap<String, String> jobNames = new TreeMap<String, String>();
+
+    /**
+     * blocker sets keyed by the full name of the job they belong to, changed while holding the lock
+     */
+    private final ConcurrentMap<String, Blockers> blockers = new ConcurrentHashMap<String, Blockers>();
+
+    private volatile boolean initialized;
+
+    /**
+     * number of events applied so far, used to detect scans that overlapped with events
+     */
+    private volatile long events;
+
+    //default scope for testability
+    BlockerGraph() {
+    }
+
+    /**
+     * @return the graph used by the dispatcher
+     */
+    public static BlockerGraph get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a matcher for the precomputed blocker set of the given job. The set is computed again
+     * if the blocking jobs of the property changed since it was computed. As long as the graph could
+     * not be computed, the blocking jobs of the property are returned.
+     *
+     * @param job      the job the check is done for
+     * @param property the build blocker property of the job
+     * @return the matcher for the full names of the blocking jobs, never null
+     */
+    public BlockingJobsMatcher getBlockingJobsMatcher(Job<?, ?> job, BuildBlockerProperty property) {
+        ensureInitialized();
+        BlockingJobsMatcher patterns = property.getBlockingJobsMatcher(job.getFullName());
+        if (!initialized) {
+            return patterns;
+        }
+        Blockers entry = blockers.get(job.getFullName());
+        if (entry == null || entry.patterns != patterns) {
+            entry = update(job.getFullName(), patterns);
+        }
+        return entry.matcher;
+    }
+
+    /**
+     * @param fullName the full name of a job
+     * @return the full names of the jobs blocking the given job, sorted
+     */
+    public SortedSet<String> getBlockers(String fullName) {
+        ensureInitialized();
+        Blockers entry = blockers.get(fullName);
+        return entry != null ? entry.fullNames : Collections.unmodifiableSortedSet(new TreeSet<String>());
+    }
+
+    /**
+     * @return the whole graph from the full name of every job with blocking jobs to the full names
+     * of the jobs blocking it, sorted
+     */
+    public SortedMap<String, SortedSet<String>> getGraph() {
+        ensureInitialized();
+        SortedMap<String, SortedSet<String>> graph = new TreeMap<String, SortedSet<String>>();
+        for (Map.Entry<String, Blockers> entry : blockers.entrySet()) {
+            graph.put(entry.getKey(), entry.getValue().fullNames);
+        }
+        return graph;
+    }
+
+    synchronized Blockers update(String fullName, BlockingJobsMatcher patterns) {
+        events++;
+        Blockers entry = null;
+        for (Blockers existing : blockers.values()) {
+            if (existing.patterns == patterns) {
+                // jobs with identical blocking jobs share their blocker set
+                entry = existing;
+                break;
+            }
+        }
+        if (entry == null) {
+            entry = new Blockers(patterns, patterns.findAll(jobNames));
+        }
+        blockers.put(fullName, entry);
+        return entry;
+    }
+
+    synchronized void onJobAdded(String fullName) {
+        events++;
+        jobNames.put(fullName, fullName);
+        Map<Blockers, Blockers> changed = new HashMap<Blockers, Blockers>();
+        for (Map.Entry<String, Blockers> entry : blockers.entrySet()) {
+            Blockers current = entry.getValue();
+            Blockers next = changed.get(current);
+            if (next == null) {
+                next = current.patterns.matches(fullName) ? current.with(fullName) : current;
+                changed.put(current, next);
+            }
+            if (next != current) {
+                blockers.put(entry.getKey(), next);
+            }
+        }
+    }
+
+    synchronized void onJobRemoved(String fullName) {
+        events++;
+        jobNames.remove(fullName);
+        blockers.remove(fullName);
+        Map<Blockers, Blockers> changed = new HashMap<Blockers, Blockers>();
+        for (Map.Entry<String, Blockers> entry : blockers.entrySet()) {
+            Blockers current = entry.getValue();
+            Blockers next = changed.get(current);
+            if (next == null) {
+                next = current.fullNames.contains(fullName) ? current.without(fullName) : current;
+                changed.put(current, next);
+            }
+            if (next != current) {
+                blockers.put(entry.getKey(), next);
+            }
+        }
+    }
+
+    synchronized void onJobRenamed(String oldFullName, String newFullName) {
+        Blockers own = blockers.get(oldFullName);
+        onJobRemoved(oldFullName);
+        onJobAdded(newFullName);
+        if (own != null) {
+            update(newFullName, own.patterns);
+        }
+    }
+
+    /**
+     * Computes the blocker set of the given job again if its blocking jobs changed.
+     *
+     * @param job the job that was saved or reconfigured
+     */
+    void onConfigured(Job<?, ?> job) {
+        BuildBlockerProperty property = job.getProperty(BuildBlockerProperty.class);
+        String fullName = job.getFullName();
+        if (property == null) {
+            if (blockers.containsKey(fullName)) {
+                synchronized (this) {
+                    events++;
+                    blockers.remove(fullName);
+                }
+            }
+            return;
+        }
+        Blockers entry = blockers.get(fullName);
+        BlockingJobsMatcher patterns = property.getBlockingJobsMatcher(fullName);
+        if (entry == null || entry.patterns != patterns) {
+            update(fullName, patterns);
+        }
+    }
+
+    /**
+     * Forces the graph to be computed again from all jobs on the next check.
+     */
+    void invalidate() {
+        initialized = false;
+    }
+
+    /**
+     * Replaces the graph with the one computed from the given jobs. The jobs are read without
+     * holding the lock of the graph. A read that overlapped with events is discarded and retried.
+     *
+     * @param jobs all jobs
+     */
+    void rebuild(Collection<? extends Job> jobs) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long eventsBefore = events;
+            NavigableMap<String, String> scannedNames = new TreeMap<String, String>();
+            Map<String, BlockingJobsMatcher> scannedPatterns = new HashMap<String, BlockingJobsMatcher>();
+            for (Job<?, ?> job : jobs) {
+                String fullName = job.getFullName();
+                scannedNames.put(fullName, fullName);
+                BuildBlockerProperty property = job.getProperty(BuildBlockerProperty.class);
+                if (property != null) {
+                    scannedPatterns.put(fullName, property.getBlockingJobsMatcher(fullName));
+                }
+            }
+            synchronized (this) {
+                if (eventsBefore == events) {
+                    jobNames.clear();
+                    jobNames.putAll(scannedNames);
+                    blockers.clear();
+                    Map<BlockingJobsMatcher, Blockers> shared = new HashMap<BlockingJobsMatcher, Blockers>();
+                    for (Map.Entry<String, BlockingJobsMatcher> entry : scannedPatterns.entrySet()) {
+                        BlockingJobsMatcher patterns = entry.getValue();
+                        Blockers blockerSet = shared.get(patterns);
+                        if (blockerSet == null) {
+                            blockerSet = new Blockers(patterns, patterns.findAll(jobNames));
+                            shared.put(patterns, blockerSet);
+                        }
+                        blockers.put(entry.getKey(), blockerSet);
+                    }
+                    initialized = true;
+                    return;
+                }
+            }
+        }
+        LOG.logp(FINE, getClass().getName(), "rebuild", "jobs changed while computing the blocker graph, retrying later");
+    }
+
+    private void ensureInitialized() {
+        if (!initialized) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                // the first check may run as any user, the jobs it cannot read are blockers as well
+                SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    rebuild(jenkins.getAllItems(Job.class));
+                } finally {
+                    SecurityContextHolder.setContext(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * The blocker set of a job together with the blocking jobs it was computed from.
+     */
+    private static final class Blockers {
+        private final BlockingJobsMatcher patterns;
+        private final SortedSet<String> fullNames;
+        private final BlockingJobsMatcher matcher;
+
+        private Blockers(BlockingJobsMatcher patterns, Set<String> fullNames) {
+            this.patterns = patterns;
+            this.fullNames = Collections.unmodifiableSortedSet(new TreeSet<String>(fullNames));
+            // the limited lines count the builds of all jobs they match, they are not part of the blocker set
+            this.matcher = BlockingJobsMatcher.forNames(this.fullNames, patterns.getLimits());
+        }
+
+        private Blockers with(String fullName) {
+            Set<String> changed = new TreeSet<String>(fullNames);
+            changed.add(fullName);
+            return new Blockers(patterns, changed);
+        }
+
+        private Blockers without(String fullName) {
+            Set<String> changed = new TreeSet<String>(fullNames);
+            changed.remove(fullName);
+            return new Blockers(patterns, changed);
+        }
+    }
+
+    /**
+     * Keeps the graph up to date when jobs are created, renamed, moved, deleted or reconfigured.
+     * Changes of folders compute the whole graph again.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            get().invalidate();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (DISABLED) {
+                return;
+            }
+            if (item instanceof Job) {
+                get().onJobAdded(item.getFullName());
+                get().onConfigured((Job<?, ?>) item);
+            } else {
+                get().invalidate();
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (DISABLED) {
+                return;
+            }
+            if (item instanceof Job) {
+                get().onJobRemoved(item.getFullName());
+            } else {
+                get().invalidate();
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (DISABLED) {
+                return;
+            }
+            if (item instanceof Job) {
+                get().onJobRenamed(oldFullName, newFullName);
+            } else {
+                get().invalidate();
+            }
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            if (!DISABLED && item instanceof Job) {
+                get().onConfigured((Job<?, ?>) item);
+            }
+        }
+    }
+
+    /**
+     * Computes the blocker set of a job again when its configuration is saved with changed blocking jobs.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (!DISABLED && o instanceof Job) {
+                get().onConfigured((Job<?, ?>) o);
+            }
+        }
+    }
+}
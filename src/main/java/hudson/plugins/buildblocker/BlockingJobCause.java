@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+
+/**
+ * Cause of blockage naming the blocking job. The description is built when it is shown, so a
+ * cached cause still reports how long the item has been waiting.
+ */
+public class BlockingJobCause extends CauseOfBlockage {
+
+    private final long inQueueSince;
+
+    private final Job blockingJob;
+
+    public BlockingJobCause(Queue.Item item, Job blockingJob) {
+        this.inQueueSince = item.getInQueueSince();
+        this.blockingJob = blockingJob;
+    }
+
+    /**
+     * @return the job blocking the item
+     */
+    public Job getBlockingJob() {
+        return blockingJob;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.BlockingJobIsRunning(Util.getTimeSpanString(System.currentTimeMillis() - inQueueSince),
+                blockingJob.getDisplayName());
+    }
+}
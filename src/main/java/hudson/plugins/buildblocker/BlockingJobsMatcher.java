@@ -0,0 +1,852 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.buildblocker;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Immutable, compiled form of the line feed separated list of
+ * regular expressions that define the blocking jobs.
+ * <p/>
+ * Instances are created once per configuration and shared by every
+ * blocking check, so the regular expressions are not compiled again
+ * for each queue maintenance pass. Lines that are not valid regular
+ * expressions are reported once at compile time and ignored afterwards.
+ * <p/>
+ * Lines that are plain job names, or plain names followed or preceded by
+ * {@code .*}, are answered from a hash set and prefix trees and can be looked
+ * up directly in maps keyed by job name. All other lines are merged into a
+ * single alternation, so a job name is tested with one match call no matter
+ * how many lines are configured. Lines using constructs that change their
+ * meaning inside a larger expression, such as back references or named
+ * groups, keep their own pattern.
+ * <p/>
+ * Identical configurations share one interned instance, which also remembers
+ * the result of the regular expressions for the job names it was asked for.
+ * <p/>
+ * A line of the form {@code regex >= n} does not block on the first match, but only
+ * once at least {@code n} builds of the matching jobs are active. Such lines are
+ * kept apart as {@link Limit}s and are not part of the first-hit lines.
+ * <p/>
+ * A line of the form {@code source => template}, e.g. {@code app/(.*)/deploy => app/$1/build},
+ * only applies to the jobs whose full name matches the source expression. The groups it captures
+ * replace {@code $1} to {@code $9} in the template, quoted, so for a given job the line usually
+ * turns into a plain job name or prefix. {@link #forJob(String)} returns the matcher with these
+ * lines resolved, which looks up the blocking jobs of the captured value directly in the maps keyed
+ * by job name instead of matching every running or queued job.
+ */
+public final class BlockingJobsMatcher {
+
+    private static final Logger LOG = Logger.getLogger(BlockingJobsMatcher.class.getName());
+
+    /**
+     * maximum number of job names a matcher remembers the result of its regular expressions and its
+     * resolved scoped lines for, the least recently used ones are dropped first
+     */
+    public static int MAX_CACHED_RESULTS = Integer.getInteger(BlockingJobsMatcher.class.getName() + ".maxCachedResults",
+            16384);
+
+    /**
+     * matcher that never matches, used for blank configurations
+     */
+    public static final BlockingJobsMatcher EMPTY = new BlockingJobsMatcher(null,
+            Collections.<Pattern>emptyList(), Collections.<String>emptyList(), Collections.<String>emptySet(),
+            Collections.<String>emptyList(), new CharTree(), null, Collections.<Pattern>emptyList(),
+            Collections.<Limit>emptyList(), Collections.<Scope>emptyList(), null);
+
+    /**
+     * matches any name, the wildcard of prefix and suffix lines
+     */
+    private static final String ANY = ".*";
+
+    /**
+     * the matchers of the configurations in use, keyed by their configuration text
+     */
+    private static final LoadingCache<String, BlockingJobsMatcher> INTERNED = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(new CacheLoader<String, BlockingJobsMatcher>() {
+                @Override
+                public BlockingJobsMatcher load(String blockingJobs) {
+                    return doCompile(blockingJobs);
+                }
+            });
+
+    /**
+     * a line followed by the number of active builds from which on it blocks
+     */
+    private static final Pattern LIMITED = Pattern.compile("(.*?)\\s+>=\\s*(\\d{1,9})\\s*");
+
+    /**
+     * a line applying only to the jobs matching its source expression
+     */
+    private static final Pattern SCOPED = Pattern.compile("(.+?)\\s+=>\\s+(.+)");
+
+    /**
+     * a reference to a group captured by the source expression of a scoped line
+     */
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\$([1-9])");
+
+    /**
+     * constructs that cannot be moved into an alternation of several lines: back references and
+     * named groups depend on the group numbering, quoting and comments may swallow the following lines
+     */
+    private static final Pattern NOT_MERGEABLE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]|\\\\Q|\\(\\?[a-zA-Z-]*x");
+
+    /**
+     * the configuration text this matcher was compiled from
+     */
+    private final String source;
+
+    /**
+     * the compiled regular expressions in configuration order
+     */
+    private final List<Pattern> patterns;
+
+    /**
+     * the lines that could not be compiled
+     */
+    private final List<String> invalidPatterns;
+
+    /**
+     * the lines that are plain job names
+     */
+    private final Set<String> literals;
+
+    /**
+     * the plain job names as array, iterated without allocating an iterator
+     */
+    private final String[] literalNames;
+
+    /**
+     * the plain name parts of the lines of the form {@code name.*}, sorted
+     */
+    private final String[] prefixNames;
+
+    private final CharTree prefixTree;
+
+    /**
+     * the plain name parts of the lines of the form {@code name.*} that do not start with another
+     * one, sorted, so the names starting with them do not overlap
+     */
+    private final String[] prefixRoots;
+
+    /**
+     * the reversed plain name parts of the lines of the form {@code .*name}
+     */
+    private final CharTree suffixTree;
+
+    /**
+     * alternation of all general lines that can be merged, null if there is none
+     */
+    private final Pattern merged;
+
+    /**
+     * the lines that have to be matched on their own
+     */
+    private final List<Pattern> unmerged;
+
+    /**
+     * the lines blocking only from a number of active builds on, in configuration order
+     */
+    private final List<Limit> limits;
+
+    /**
+     * the lines applying only to the jobs matching their source expression, in configuration order
+     */
+    private final List<Scope> scopes;
+
+    /**
+     * the configuration text without the scoped lines, null if there are no scoped lines
+     */
+    private final String unscopedSource;
+
+    /**
+     * the matchers with the scoped lines resolved, keyed by the full name of the job they were
+     * resolved for, null if there are no scoped lines
+     */
+    private final Cache<String, BlockingJobsMatcher> resolved;
+
+    /**
+     * results of the lines that cannot be looked up by name, keyed by job name, null if all lines
+     * can be looked up by name
+     */
+    private final Cache<String, Boolean> unindexedResults;
+
+    private BlockingJobsMatcher(String source, List<Pattern> patterns, List<String> invalidPatterns,
+                                Set<String> literals, List<String> prefixes, CharTree suffixTree,
+                                Pattern merged, List<Pattern> unmerged, List<Limit> limits, List<Scope> scopes,
+                                String unscopedSource) {
+        this.source = source;
+        this.patterns = patterns;
+        this.invalidPatterns = invalidPatterns;
+        this.literals = literals;
+        this.literalNames = literals.toArray(new String[literals.size()]);
+        this.prefixNames = prefixes.toArray(new String[prefixes.size()]);
+        this.prefixTree = new CharTree();
+        List<String> roots = new ArrayList<String>();
+        for (String prefix : prefixes) {
+            prefixTree.add(prefix);
+            if (roots.isEmpty() || !prefix.startsWith(roots.get(roots.size() - 1))) {
+                roots.add(prefix);
+            }
+        }
+        this.prefixRoots = roots.toArray(new String[roots.size()]);
+        this.suffixTree = suffixTree;
+        this.merged = merged;
+        this.unmerged = unmerged;
+        this.limits = limits;
+        this.scopes = scopes;
+        this.unscopedSource = unscopedSource;
+        this.resolved = scopes.isEmpty() ? null : CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_RESULTS)
+                .<String, BlockingJobsMatcher>build();
+        this.unindexedResults = merged == null && unmerged.isEmpty() ? null : CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_RESULTS)
+                .<String, Boolean>build();
+    }
+
+    /**
+     * Compiles the job configuration entry for blocking jobs. Identical entries share one
+     * instance as long as it is in use.
+     *
+     * @param blockingJobs line feed separated list of blocking jobs, may be null
+     * @return the compiled matcher, never null
+     */
+    public static BlockingJobsMatcher compile(String blockingJobs) {
+        if (StringUtils.isBlank(blockingJobs)) {
+            return EMPTY;
+        }
+        return INTERNED.getUnchecked(blockingJobs);
+    }
+
+    private static BlockingJobsMatcher doCompile(String blockingJobs) {
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<String> invalidPatterns = new ArrayList<String>();
+        List<Limit> limits = new ArrayList<Limit>();
+        List<Scope> scopes = new ArrayList<Scope>();
+        StringBuilder unscoped = new StringBuilder(blockingJobs.length());
+        for (String blockingJob : blockingJobs.split("\n")) {
+            Matcher scoped = SCOPED.matcher(blockingJob);
+            if (scoped.matches()) {
+                try {
+                    scopes.add(new Scope(Pattern.compile(scoped.group(1)), scoped.group(2).trim()));
+                } catch (PatternSyntaxException pse) {
+                    invalidPatterns.add(blockingJob);
+                    LOG.log(WARNING, "Ignoring invalid blocking job regular expression [" + blockingJob + "]: " +
+                            pse.getDescription());
+                }
+                continue;
+            }
+            if (unscoped.length() > 0) {
+                unscoped.append('\n');
+            }
+            unscoped.append(blockingJob);
+            Matcher limited = LIMITED.matcher(blockingJob);
+            if (limited.matches()) {
+                blockingJob = limited.group(1);
+                int threshold = Integer.parseInt(limited.group(2));
+                if (threshold > 1) {
+                    BlockingJobsMatcher matcher = doCompile(blockingJob);
+                    if (matcher.isEmpty()) {
+                        invalidPatterns.add(limited.group());
+                    } else {
+                        limits.add(new Limit(matcher, threshold));
+                    }
+                    continue;
+                }
+            }
+            try {
+                patterns.add(Pattern.compile(blockingJob));
+            } catch (PatternSyntaxException pse) {
+                invalidPatterns.add(blockingJob);
+                LOG.log(WARNING, "Ignoring invalid blocking job regular expression [" + blockingJob + "]: " +
+                        pse.getDescription());
+            }
+        }
+
+        Set<String> literals = new HashSet<String>();
+        List<String> prefixes = new ArrayList<String>();
+        CharTree suffixTree = new CharTree();
+        List<Pattern> general = new ArrayList<Pattern>();
+        for (Pattern pattern : patterns) {
+            String line = pattern.pattern();
+            String literal = unquote(line);
+            if (literal != null) {
+                literals.add(literal);
+                continue;
+            }
+            if (line.endsWith(ANY)) {
+                literal = unquote(line.substring(0, line.length() - ANY.length()));
+                if (literal != null) {
+                    prefixes.add(literal);
+                    continue;
+                }
+            }
+            if (line.startsWith(ANY)) {
+                literal = unquote(line.substring(ANY.length()));
+                if (literal != null) {
+                    suffixTree.add(new StringBuilder(literal).reverse().toString());
+                    continue;
+                }
+            }
+            general.add(pattern);
+        }
+        Collections.sort(prefixes);
+
+        StringBuilder alternation = new StringBuilder();
+        List<Pattern> unmerged = new ArrayList<Pattern>();
+        for (Pattern pattern : general) {
+            if (NOT_MERGEABLE.matcher(pattern.pattern()).find()) {
+                unmerged.add(pattern);
+            } else {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append("(?:").append(pattern.pattern()).append(')');
+            }
+        }
+        Pattern merged = null;
+        if (unmerged.size() < general.size()) {
+            try {
+                merged = Pattern.compile(alternation.toString());
+            } catch (PatternSyntaxException pse) {
+                // the lines are valid on their own, keep matching them one by one
+                unmerged = general;
+            }
+        }
+
+        return new BlockingJobsMatcher(blockingJobs, unmodifiableList(patterns), unmodifiableList(invalidPatterns),
+                unmodifiableSet(literals), unmodifiableList(prefixes), suffixTree, merged, unmodifiableList(unmerged),
+                unmodifiableList(limits), unmodifiableList(scopes), scopes.isEmpty() ? null : unscoped.toString());
+    }
+
+    /**
+     * Returns the text matched by a regular expression that only consists of literal characters.
+     * Escaped characters other than letters and digits are literal characters as well.
+     *
+     * @param regex the regular expression
+     * @return the matched text or null if the expression is not a plain literal
+     */
+    private static String unquote(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i == regex.length() || Character.isLetterOrDigit(regex.charAt(i))) {
+                    return null;
+                }
+                literal.append(regex.charAt(i));
+            } else if (".^$|?*+()[]{}".indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * @return the configuration text this matcher was compiled from, may be null
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the compiled regular expressions in configuration order
+     */
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @return the configuration lines that are not valid regular expressions
+     */
+    public List<String> getInvalidPatterns() {
+        return invalidPatterns;
+    }
+
+    /**
+     * @return true if there is no valid regular expression to match against on the first hit
+     */
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * @return the lines blocking only from a number of active builds on, in configuration order
+     */
+    public List<Limit> getLimits() {
+        return limits;
+    }
+
+    /**
+     * Checks the given full job name against the lines with a limit.
+     *
+     * @param fullName the full name of the job to check
+     * @return true if any of the limited lines matches the whole name
+     */
+    public boolean matchesLimited(String fullName) {
+        for (int i = 0; i < limits.size(); i++) {
+            if (limits.get(i).matcher.matches(fullName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the lines applying only to the jobs matching their source expression, in configuration order
+     */
+    public List<Scope> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * Returns the matcher to check the given job with. The scoped lines whose source expression
+     * matches the full name of the job are replaced by their template, with the captured groups
+     * filled in. The other scoped lines are dropped.
+     *
+     * @param fullName the full name of the job the check is done for
+     * @return this matcher if there are no scoped lines, the resolved matcher otherwise
+     */
+    public BlockingJobsMatcher forJob(String fullName) {
+        if (scopes.isEmpty()) {
+            return this;
+        }
+        BlockingJobsMatcher matcher = resolved.getIfPresent(fullName);
+        if (matcher == null) {
+            StringBuilder blockingJobs = new StringBuilder(unscopedSource);
+            for (Scope scope : scopes) {
+                String line = scope.resolve(fullName);
+                if (line != null) {
+                    if (blockingJobs.length() > 0) {
+                        blockingJobs.append('\n');
+                    }
+                    blockingJobs.append(line);
+                }
+            }
+            matcher = compile(blockingJobs.toString());
+            resolved.put(fullName, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * Checks the given full job name against all regular expressions.
+     *
+     * @param fullName the full name of the job to check
+     * @return true if any of the regular expressions matches the whole name
+     */
+    public boolean matches(String fullName) {
+        return literals.contains(fullName) || prefixTree.isPrefixOf(fullName) || matchesUnindexed(fullName);
+    }
+
+    /**
+     * Checks the given full job name against the lines that cannot be looked up by name.
+     *
+     * @param fullName the full name of the job to check
+     * @return true if any of these lines matches the whole name
+     */
+    private boolean matchesUnindexed(String fullName) {
+        if (suffixTree.isSuffixOf(fullName)) {
+            return true;
+        }
+        if (merged == null && unmerged.isEmpty()) {
+            return false;
+        }
+        Boolean result = unindexedResults.getIfPresent(fullName);
+        if (result == null) {
+            result = matchesExpressions(fullName);
+            unindexedResults.put(fullName, result);
+        }
+        return result;
+    }
+
+    private boolean matchesExpressions(String fullName) {
+        if (merged != null && merged.matcher(fullName).matches()) {
+            return true;
+        }
+        for (Pattern pattern : unmerged) {
+            if (pattern.matcher(fullName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first value of the given map whose full job name matches and that is accepted by
+     * the filter. Plain job names and prefixes are looked up in the map, so only the matching entries
+     * are visited. The whole map is scanned only if there are other lines.
+     *
+     * @param byFullName the values keyed by full job name
+     * @param filter     the additional condition for a value
+     * @param <V>        the type of the values
+     * @return the first matching value or null
+     */
+    public <V> V findFirst(NavigableMap<String, V> byFullName, Filter<? super V> filter) {
+        for (String literal : literalNames) {
+            V value = byFullName.get(literal);
+            if (value != null && filter.accept(value)) {
+                return value;
+            }
+        }
+        for (String prefix : prefixNames) {
+            // walking the keys does not create entries or views like tailMap does
+            for (String key = byFullName.ceilingKey(prefix); key != null && key.startsWith(prefix);
+                 key = byFullName.higherKey(key)) {
+                V value = byFullName.get(key);
+                if (filter.accept(value)) {
+                    return value;
+                }
+            }
+        }
+        if (suffixTree.isEmpty() && merged == null && unmerged.isEmpty()) {
+            return null;
+        }
+        for (Map.Entry<String, V> entry : byFullName.entrySet()) {
+            if (matchesUnindexed(entry.getKey()) && filter.accept(entry.getValue())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all values of the given map whose full job name matches, without duplicates.
+     *
+     * @param byFullName the values keyed by full job name
+     * @param <V>        the type of the values
+     * @return the matching values in the order they were found
+     */
+    public <V> Set<V> findAll(NavigableMap<String, V> byFullName) {
+        final Set<V> found = new LinkedHashSet<V>();
+        findFirst(byFullName, new Filter<V>() {
+            public boolean accept(V value) {
+                found.add(value);
+                return false;
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Sums the weights of the values whose full job name matches, each value counted once. Plain
+     * job names and prefixes are looked up in the map like by {@link #findFirst(NavigableMap, Filter)},
+     * the whole map is scanned once only if there are other lines. The sum is returned as soon as it
+     * reaches the given limit. Nothing is allocated unless the map is scanned.
+     *
+     * @param byFullName the values keyed by full job name
+     * @param weight     the weight of a value, e.g. its number of builds
+     * @param argument   passed on to the weight, so it can be a constant
+     * @param limit      the sum from which on the remaining values are not visited
+     * @param <V>        the type of the values
+     * @param <A>        the type of the argument of the weight
+     * @return the sum of the weights, at least the limit if it was reached
+     */
+    public <V, A> int count(NavigableMap<String, V> byFullName, Weight<? super V, ? super A> weight, A argument,
+                            int limit) {
+        int sum = 0;
+        if (!suffixTree.isEmpty() || merged != null || !unmerged.isEmpty()) {
+            // every name is visited once, no matter how many lines match it
+            for (Map.Entry<String, V> entry : byFullName.entrySet()) {
+                if (matches(entry.getKey())) {
+                    sum += weight.of(entry.getValue(), argument);
+                    if (sum >= limit) {
+                        return sum;
+                    }
+                }
+            }
+            return sum;
+        }
+        for (String literal : literalNames) {
+            V value = prefixTree.isPrefixOf(literal) ? null : byFullName.get(literal);
+            if (value != null) {
+                sum += weight.of(value, argument);
+                if (sum >= limit) {
+                    return sum;
+                }
+            }
+        }
+        for (String prefix : prefixRoots) {
+            for (String key = byFullName.ceilingKey(prefix); key != null && key.startsWith(prefix);
+                 key = byFullName.higherKey(key)) {
+                sum += weight.of(byFullName.get(key), argument);
+                if (sum >= limit) {
+                    return sum;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Creates a matcher for the given full job names only, which is answered without the regex engine.
+     *
+     * @param fullNames the full names of the jobs to match
+     * @return the matcher, never null
+     */
+    public static BlockingJobsMatcher forNames(Collection<String> fullNames) {
+        return forNames(fullNames, Collections.<Limit>emptyList());
+    }
+
+    /**
+     * Creates a matcher for the given full job names, which is answered without the regex engine,
+     * together with the given limited lines.
+     *
+     * @param fullNames the full names of the jobs to match on the first hit
+     * @param limits    the lines blocking only from a number of active builds on
+     * @return the matcher, never null
+     */
+    public static BlockingJobsMatcher forNames(Collection<String> fullNames, List<Limit> limits) {
+        if (fullNames.isEmpty() && limits.isEmpty()) {
+            return EMPTY;
+        }
+        List<Pattern> patterns = new ArrayList<Pattern>(fullNames.size());
+        for (String fullName : fullNames) {
+            patterns.add(Pattern.compile(Pattern.quote(fullName)));
+        }
+        return new BlockingJobsMatcher(null, unmodifiableList(patterns), Collections.<String>emptyList(),
+                unmodifiableSet(new HashSet<String>(fullNames)), Collections.<String>emptyList(), new CharTree(),
+                null, Collections.<Pattern>emptyList(), limits, Collections.<Scope>emptyList(), null);
+    }
+
+    /**
+     * Additional condition for the values selected by {@link #findFirst(NavigableMap, Filter)}.
+     *
+     * @param <V> the type of the values
+     */
+    public interface Filter<V> {
+        /**
+         * filter that accepts every value
+         */
+        Filter<Object> ALL = new Filter<Object>() {
+            public boolean accept(Object value) {
+                return true;
+            }
+        };
+
+        boolean accept(V value);
+    }
+
+    /**
+     * Weight of the values summed by {@link #count(NavigableMap, Weight, Object, int)}.
+     *
+     * @param <V> the type of the values
+     * @param <A> the type of the argument passed on by the count
+     */
+    public interface Weight<V, A> {
+        int of(V value, A argument);
+    }
+
+    /**
+     * A line that blocks only once at least {@link #getThreshold()} builds of the jobs matching it
+     * are active, e.g. {@code integration-.* >= 3}.
+     */
+    public static final class Limit {
+        private final BlockingJobsMatcher matcher;
+        private final int threshold;
+
+        Limit(BlockingJobsMatcher matcher, int threshold) {
+            this.matcher = matcher;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return the compiled regular expression of the line
+         */
+        public BlockingJobsMatcher getMatcher() {
+            return matcher;
+        }
+
+        /**
+         * @return the number of active builds from which on the line blocks
+         */
+        public int getThreshold() {
+            return threshold;
+        }
+
+        @Override
+        public String toString() {
+            return matcher.getSource() + " >= " + threshold;
+        }
+    }
+
+    /**
+     * A line applying only to the jobs whose full name matches its source expression, e.g.
+     * {@code app/(.*)/deploy => app/$1/build}.
+     */
+    public static final class Scope {
+        private final Pattern source;
+        private final String template;
+
+        Scope(Pattern source, String template) {
+            this.source = source;
+            this.template = template;
+        }
+
+        /**
+         * @return the expression selecting the jobs the line applies to
+         */
+        public Pattern getSource() {
+            return source;
+        }
+
+        /**
+         * @return the blocking jobs line, referring to the captured groups as {@code $1} to {@code $9}
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * Fills the groups the source expression captures from the given name into the template.
+         * The captured values are quoted, so they only match themselves.
+         *
+         * @param fullName the full name of the job the check is done for
+         * @return the blocking jobs line for the job, null if the line does not apply to it
+         */
+        public String resolve(String fullName) {
+            Matcher job = source.matcher(fullName);
+            if (!job.matches()) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder(template.length() + fullName.length());
+            Matcher reference = GROUP_REFERENCE.matcher(template);
+            int end = 0;
+            while (reference.find()) {
+                int group = reference.group(1).charAt(0) - '0';
+                if (group > job.groupCount()) {
+                    continue;
+                }
+                line.append(template, end, reference.start());
+                String value = job.group(group);
+                if (value != null) {
+                    quote(value, line);
+                }
+                end = reference.end();
+            }
+            return line.append(template, end, template.length()).toString();
+        }
+
+        /**
+         * Appends the given text with the characters that have a meaning in a regular expression
+         * escaped, which keeps a plain name recognizable as such.
+         */
+        private static void quote(String text, StringBuilder line) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (".^$|?*+()[]{}\\".indexOf(c) >= 0) {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return source.pattern() + " => " + template;
+        }
+    }
+
+    /**
+     * Tree of characters used to check a name against many prefixes or suffixes in one pass.
+     */
+    private static final class CharTree {
+        private final Map<Character, CharTree> children = new HashMap<Character, CharTree>();
+        private boolean terminal;
+
+        private void add(String key) {
+            CharTree tree = this;
+            for (int i = 0; i < key.length(); i++) {
+                Character c = Character.valueOf(key.charAt(i));
+                CharTree child = tree.children.get(c);
+                if (child == null) {
+                    child = new CharTree();
+                    tree.children.put(c, child);
+                }
+                tree = child;
+            }
+            tree.terminal = true;
+        }
+
+        private boolean isEmpty() {
+            return !terminal && children.isEmpty();
+        }
+
+        private boolean isPrefixOf(String name) {
+            CharTree tree = this;
+            for (int i = 0; !tree.terminal; i++) {
+                if (i == name.length()) {
+                    return false;
+                }
+                tree = tree.children.get(Character.valueOf(name.charAt(i)));
+                if (tree == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSuffixOf(String name) {
+            CharTree tree = this;
+            for (int i = name.length() - 1; !tree.terminal; i--) {
+                if (i < 0) {
+                    return false;
+                }
+                tree = tree.children.get(Character.valueOf(name.charAt(i)));
+                if (tree == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -24,21 +24,15 @@
 
 package hudson.plugins.buildblocker;
 
-import hudson.matrix.MatrixConfiguration;
-import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Queue;
-import jenkins.model.Jenkins;
-import org.apache.commons.lang.StringUtils;
+import hudson.plugins.buildblocker.BlockingMetrics.Probe;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
-import static java.util.Arrays.asList;
-import static java.util.Collections.emptyList;
 import static java.util.logging.Level.FINE;
 
 /**
@@ -46,14 +40,26 @@ import static java.util.logging.Level.FINE;
  * one of their names matches with one of the given blocking job's
  * regular expressions.
  * <p/>
- * The first hit returns the blocking job's name.
+ * The first hit returns the blocking job's name. Lines with a limit only block once the
+ * running builds, and the queued items for the queue checks, of their jobs reach the limit.
+ * The running builds and queued items are supplied by a {@link StateProvider}.
  */
 public class BlockingJobsMonitor {
 
     /**
-     * the list of regular expressions from the job configuration
+     * the compiled regular expressions from the job configuration
      */
-    private List<String> blockingJobs = emptyList();
+    private final BlockingJobsMatcher blockingJobs;
+
+    /**
+     * the source of the running builds and queued items
+     */
+    private final StateProvider state;
+
+    /**
+     * the registry the checks are recorded in, null to record nothing
+     */
+    private final BlockingMetrics metrics;
 
     private static final Logger LOG = Logger.getLogger(BlockingJobsMonitor.class.getName());
 
@@ -64,133 +70,192 @@ public class BlockingJobsMonitor {
      * @param blockingJobs line feed separated list og blocking jobs
      */
     public BlockingJobsMonitor(String blockingJobs) {
-        if (StringUtils.isNotBlank(blockingJobs)) {
-            this.blockingJobs = asList(blockingJobs.split("\n"));
-        }
+        this(BlockingJobsMatcher.compile(blockingJobs));
     }
 
-    public Job checkForBuildableQueueEntries(Queue.Item item) {
-        List<Queue.BuildableItem> buildableItems = Jenkins.getInstance().getQueue().getBuildableItems();
+    /**
+     * Constructor using the already compiled blocking jobs of a job configuration, scanning the
+     * executors and the queue
+     *
+     * @param blockingJobs the compiled blocking jobs
+     */
+    public BlockingJobsMonitor(BlockingJobsMatcher blockingJobs) {
+        this(blockingJobs, new LiveStateProvider());
+    }
 
-        Job buildableItem = checkForPlannedBuilds(item, buildableItems);
+    /**
+     * Constructor using the already compiled blocking jobs of a job configuration, the
+     * registry of running builds and the index of queued items.
+     *
+     * @param blockingJobs  the compiled blocking jobs
+     * @param runningBuilds the registry of running builds, null to scan the executors
+     * @param queuedItems   the index of queued items, null to scan the queue
+     */
+    public BlockingJobsMonitor(BlockingJobsMatcher blockingJobs, RunningBuildsRegistry runningBuilds,
+                               QueueIndex queuedItems) {
+        this(blockingJobs, new IndexedStateProvider(runningBuilds, queuedItems));
+    }
+
+    /**
+     * Constructor using the already compiled blocking jobs of a job configuration and the
+     * provider of the running builds and queued items.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @param state        the source of the running builds and queued items
+     */
+    public BlockingJobsMonitor(BlockingJobsMatcher blockingJobs, StateProvider state) {
+        this.blockingJobs = blockingJobs != null ? blockingJobs : BlockingJobsMatcher.EMPTY;
+        this.state = state;
+        this.metrics = BlockingMetrics.DISABLED ? null : BlockingMetrics.get();
+    }
+
+    /**
+     * @return the source of the running builds and queued items
+     */
+    StateProvider getState() {
+        return state;
+    }
+
+    public Job checkForBuildableQueueEntries(Queue.Item item) {
+        long start = System.nanoTime();
+        Job buildableItem = state.findQueued(item, blockingJobs, QueueScanScope.BUILDABLE);
+        if (buildableItem == null) {
+            buildableItem = checkLimits(item, null, QueueScanScope.BUILDABLE);
+        }
+        record(Probe.QUEUE_BUILDABLE, start, buildableItem);
         if (buildableItem != null) {
-            LOG.logp(FINE, getClass().getName(), "checkForBuildableQueueEntries", "build " + item + " blocked by queued build " + buildableItem);
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "checkForBuildableQueueEntries", "build " + item + " blocked by queued build " + buildableItem);
+            }
             return buildableItem;
         }
         return null;
     }
 
     public Job checkForQueueEntries(Queue.Item item) {
-        List<Queue.Item> buildableItems = asList(Jenkins.getInstance().getQueue().getItems());
-
-        Job buildableItem = checkForPlannedBuilds(item, buildableItems);
+        long start = System.nanoTime();
+        Job buildableItem = state.findQueued(item, blockingJobs, QueueScanScope.ALL);
+        if (buildableItem == null) {
+            buildableItem = checkLimits(item, null, QueueScanScope.ALL);
+        }
+        record(Probe.QUEUE_ALL, start, buildableItem);
         if (buildableItem != null) {
-            LOG.logp(FINE, getClass().getName(), "checkForQueueEntries", "build " + item + " blocked by queued " + "build " + buildableItem);
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "checkForQueueEntries", "build " + item + " blocked by queued " + "build " + buildableItem);
+            }
             return buildableItem;
         }
         return null;
     }
 
     public Job checkNodeForBuildableQueueEntries(Queue.Item item, Node node) {
-        List<? extends Queue.Item> buildableItems = Jenkins.getInstance().getQueue().getBuildableItems(node.toComputer());
-
-        Job buildableItem = checkForPlannedBuilds(item, buildableItems);
+        long start = System.nanoTime();
+        Job buildableItem = state.findQueuedForNode(item, node, blockingJobs, QueueScanScope.BUILDABLE);
+        if (buildableItem == null) {
+            buildableItem = checkLimits(item, node, QueueScanScope.BUILDABLE);
+        }
+        record(Probe.NODE_QUEUE_BUILDABLE, start, buildableItem);
         if (buildableItem != null) {
-            LOG.logp(FINE, getClass().getName(), "checkNodeForBuildableQueueEntries", "build " + item + " blocked by " + "queued build " + buildableItem);
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "checkNodeForBuildableQueueEntries", "build " + item + " blocked by " + "queued build " + buildableItem);
+            }
             return buildableItem;
         }
         return null;
     }
 
     public Job checkNodeForQueueEntries(Queue.Item item, Node node) {
-        List<Queue.Item> buildableItemsOnNode = new ArrayList<Queue.Item>();
-        for (Queue.Item buildableItem : Jenkins.getInstance().getQueue().getItems()) {
-            if (buildableItem.getAssignedLabel().contains(node)) {
-                buildableItemsOnNode.add(buildableItem);
-            }
+        long start = System.nanoTime();
+        Job buildableItem = state.findQueuedForNode(item, node, blockingJobs, QueueScanScope.ALL);
+        if (buildableItem == null) {
+            buildableItem = checkLimits(item, node, QueueScanScope.ALL);
         }
-
-        Job buildableItem = checkForPlannedBuilds(item, buildableItemsOnNode);
+        record(Probe.NODE_QUEUE_ALL, start, buildableItem);
         if (buildableItem != null) {
-            LOG.logp(FINE, getClass().getName(), "checkNodeForQueueEntries", "build " + item + " blocked by queued build " +
-                    buildableItem);
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "checkNodeForQueueEntries", "build " + item + " blocked by queued build " +
+                        buildableItem);
+            }
             return buildableItem;
         }
         return null;
     }
 
     public Job checkAllNodesForRunningBuilds() {
-        Computer[] computers = Jenkins.getInstance().getComputers();
-
-        for (Computer computer : computers) {
-            Job task = checkComputerForRunningBuilds(computer);
-            if (task != null) {
-                return task;
-            }
+        long start = System.nanoTime();
+        Job task = state.findRunning(blockingJobs);
+        if (task == null) {
+            task = checkLimits(null, null, null);
         }
-        return null;
-    }
-
-    private Job checkComputerForRunningBuilds(Computer computer) {
-        List<Executor> executors = computer.getExecutors();
-
-        executors.addAll(computer.getOneOffExecutors());
-
-        for (Executor executor : executors) {
-            Job task = checkForRunningBuilds(executor);
-            if (task != null) {
-                LOG.logp(FINE, getClass().getName(), "checkComputerForRunningBuilds", "build blocked by running build " + task);
-                return task;
-            }
+        if (task != null && LOG.isLoggable(FINE)) {
+            LOG.logp(FINE, getClass().getName(), "checkAllNodesForRunningBuilds", "build blocked by running build " + task);
         }
-        return null;
+        record(Probe.ALL_NODES_RUNNING, start, task);
+        return task;
     }
 
     public Job checkNodeForRunningBuilds(Node node) {
         if (node == null) {
             return null;
         }
-        return checkComputerForRunningBuilds(node.toComputer());
+        long start = System.nanoTime();
+        Job task = state.findRunningOnNode(node, blockingJobs);
+        if (task == null) {
+            task = checkLimits(null, node, null);
+        }
+        if (task != null && LOG.isLoggable(FINE)) {
+            LOG.logp(FINE, getClass().getName(), "checkNodeForRunningBuilds", "build blocked by running build " + task);
+        }
+        record(Probe.NODE_RUNNING, start, task);
+        return task;
     }
 
-    private Job checkForPlannedBuilds(Queue.Item item, List<? extends Queue.Item> buildableItems) {
-        for (Queue.Item buildableItem : buildableItems) {
-            if (item != buildableItem) {
-                for (String blockingJob : this.blockingJobs) {
-                    if (buildableItem.task instanceof Job) {
-                        Job project = (Job) buildableItem.task;
-                        if (project.getFullName().matches(blockingJob)) {
-                            return project;
-                        }
-                    }
+    /**
+     * Returns a job of the first limited line whose active builds reach its threshold.
+     *
+     * @param item  the item the check is done for, never counted
+     * @param node  the node to count the running builds and queued items for, null for all nodes
+     * @param scope the queue states to count as active as well, null to only count running builds
+     * @return a running or queued job of the line, null if no threshold is reached
+     */
+    private Job checkLimits(Queue.Item item, Node node, QueueScanScope scope) {
+        List<BlockingJobsMatcher.Limit> limits = blockingJobs.getLimits();
+        for (int i = 0; i < limits.size(); i++) {
+            BlockingJobsMatcher.Limit limit = limits.get(i);
+            BlockingJobsMatcher matcher = limit.getMatcher();
+            int threshold = limit.getThreshold();
+            int running = node == null ? state.countRunning(matcher, threshold)
+                    : state.countRunningOnNode(node, matcher, threshold);
+            int queued = 0;
+            if (scope != null && running < threshold) {
+                queued = node == null ? state.countQueued(item, matcher, scope, threshold - running)
+                        : state.countQueuedForNode(item, node, matcher, scope, threshold - running);
+            }
+            if (running + queued >= threshold) {
+                if (LOG.isLoggable(FINE)) {
+                    LOG.logp(FINE, getClass().getName(), "checkLimits", "build " + item + " blocked by "
+                            + running + " running and " + queued + " queued builds of " + limit);
+                }
+                Job job = null;
+                if (running > 0) {
+                    job = node == null ? state.findRunning(matcher) : state.findRunningOnNode(node, matcher);
+                }
+                if (job == null && scope != null) {
+                    job = node == null ? state.findQueued(item, matcher, scope)
+                            : state.findQueuedForNode(item, node, matcher, scope);
+                }
+                if (job != null) {
+                    return job;
                 }
             }
         }
         return null;
     }
 
-    private Job checkForRunningBuilds(Executor executor) {
-        if (executor.isBusy()) {
-            Queue.Task task = executor.getCurrentWorkUnit().work.getOwnerTask();
-
-            if (task instanceof MatrixConfiguration) {
-                task = ((MatrixConfiguration) task).getParent();
-            }
-
-            if (task instanceof Job) {
-                Job job = (Job) task;
-                for (String blockingJob : this.blockingJobs) {
-                    try {
-                        if (job.getFullName().matches(blockingJob)) {
-                            return job;
-                        }
-                    } catch (java.util.regex.PatternSyntaxException pse) {
-                        continue;
-                    }
-                }
-            }
+    private void record(Probe probe, long start, Job result) {
+        if (metrics != null) {
+            metrics.record(probe, start, result != null, blockingJobs.getPatterns().size());
         }
-        return null;
     }
 
 }
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import net.sf.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of timing and throughput metrics of the blocking checks.
+ * <p/>
+ * Every probe counts its calls split by outcome, the number of blocking job patterns evaluated
+ * and the latency in a fixed bucket histogram. All counters are atomics, so recording never
+ * takes a lock and does not add contention to the queue maintenance it measures.
+ */
+public final class BlockingMetrics {
+
+    /**
+     * Escape hatch to disable recording.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(BlockingMetrics.class.getName() + ".disabled");
+
+    /**
+     * upper bounds of the latency buckets in nanoseconds, the last bucket is unbounded
+     */
+    private static final long[] BOUNDS = {
+            1000L, 2500L, 5000L, 10000L, 25000L, 50000L, 100000L, 250000L, 500000L,
+            1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L
+    };
+
+    private static final BlockingMetrics INSTANCE = new BlockingMetrics();
+
+    private final Metric[] metrics;
+
+    //default scope for testability
+    BlockingMetrics() {
+        Probe[] probes = Probe.values();
+        metrics = new Metric[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            metrics[i] = new Metric();
+        }
+    }
+
+    /**
+     * @return the registry used by the dispatcher and the monitors
+     */
+    public static BlockingMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * The measured points of the blocking evaluation.
+     */
+    public enum Probe {
+        CAN_RUN("canRun"),
+        CAN_TAKE("canTake"),
+        ALL_NODES_RUNNING("allNodesRunning"),
+        NODE_RUNNING("nodeRunning"),
+        QUEUE_ALL("queueAll"),
+        QUEUE_BUILDABLE("queueBuildable"),
+        NODE_QUEUE_ALL("nodeQueueAll"),
+        NODE_QUEUE_BUILDABLE("nodeQueueBuildable");
+
+        private final String name;
+
+        Probe(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name used in the exported metrics
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param probe      the measured point
+     * @param startNanos the {@link System#nanoTime()} at the start of the call
+     * @param blocked    true if the call found a blocking job
+     * @param patterns   the number of blocking job patterns evaluated
+     */
+    public void record(Probe probe, long startNanos, boolean blocked, int patterns) {
+        metrics[probe.ordinal()].record(System.nanoTime() - startNanos, blocked, patterns);
+    }
+
+    /**
+     * @return the number of calls of the given probe
+     */
+    public long getCalls(Probe probe) {
+        Metric metric = metrics[probe.ordinal()];
+        return metric.blocked.get() + metric.allowed.get();
+    }
+
+    /**
+     * @return the number of calls of the given probe that found a blocking job
+     */
+    public long getBlocked(Probe probe) {
+        return metrics[probe.ordinal()].blocked.get();
+    }
+
+    /**
+     * @return the number of patterns evaluated by the given probe
+     */
+    public long getPatterns(Probe probe) {
+        return metrics[probe.ordinal()].patterns.get();
+    }
+
+    /**
+     * @return all metrics as JSON object by probe name
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        for (Probe probe : Probe.values()) {
+            Metric metric = metrics[probe.ordinal()];
+            long blocked = metric.blocked.get();
+            long allowed = metric.allowed.get();
+            long calls = blocked + allowed;
+            JSONObject values = new JSONObject();
+            values.put("calls", calls);
+            values.put("blocked", blocked);
+            values.put("allowed", allowed);
+            values.put("patterns", metric.patterns.get());
+            values.put("patternsPerCall", calls > 0 ? (double) metric.patterns.get() / calls : 0d);
+            values.put("totalNanos", metric.nanos.get());
+            JSONObject buckets = new JSONObject();
+            long cumulative = 0;
+            for (int i = 0; i <= BOUNDS.length; i++) {
+                cumulative += metric.buckets.get(i);
+                buckets.put(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf", cumulative);
+            }
+            values.put("latencyNanos", buckets);
+            json.put(probe.getName(), values);
+        }
+        return json;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     *
+     * @param out the writer to write to
+     */
+    public void writePrometheus(PrintWriter out) {
+        line(out, "# HELP buildblocker_check_seconds Latency of the blocking checks.");
+        line(out, "# TYPE buildblocker_check_seconds histogram");
+        for (Probe probe : Probe.values()) {
+            Metric metric = metrics[probe.ordinal()];
+            long cumulative = 0;
+            for (int i = 0; i <= BOUNDS.length; i++) {
+                cumulative += metric.buckets.get(i);
+                String le = i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf";
+                line(out, "buildblocker_check_seconds_bucket{check=\"" + probe.getName() + "\",le=\"" + le + "\"} "
+                        + cumulative);
+            }
+            line(out, "buildblocker_check_seconds_sum{check=\"" + probe.getName() + "\"} "
+                    + seconds(metric.nanos.get()));
+            line(out, "buildblocker_check_seconds_count{check=\"" + probe.getName() + "\"} " + cumulative);
+        }
+        line(out, "# HELP buildblocker_check_decisions_total Calls of the blocking checks by outcome.");
+        line(out, "# TYPE buildblocker_check_decisions_total counter");
+        for (Probe probe : Probe.values()) {
+            Metric metric = metrics[probe.ordinal()];
+            line(out, "buildblocker_check_decisions_total{check=\"" + probe.getName() + "\",decision=\"blocked\"} "
+                    + metric.blocked.get());
+            line(out, "buildblocker_check_decisions_total{check=\"" + probe.getName() + "\",decision=\"allowed\"} "
+                    + metric.allowed.get());
+        }
+        line(out, "# HELP buildblocker_check_patterns_total Blocking job patterns evaluated by the checks.");
+        line(out, "# TYPE buildblocker_check_patterns_total counter");
+        for (Probe probe : Probe.values()) {
+            line(out, "buildblocker_check_patterns_total{check=\"" + probe.getName() + "\"} "
+                    + metrics[probe.ordinal()].patterns.get());
+        }
+    }
+
+    /**
+     * Prometheus expects line feeds regardless of the platform.
+     */
+    private static void line(PrintWriter out, String line) {
+        out.print(line);
+        out.print('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ENGLISH, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * The counters of one probe.
+     */
+    private static final class Metric {
+        private final AtomicLong blocked = new AtomicLong();
+        private final AtomicLong allowed = new AtomicLong();
+        private final AtomicLong patterns = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+        private void record(long elapsed, boolean isBlocked, int evaluated) {
+            (isBlocked ? blocked : allowed).incrementAndGet();
+            if (evaluated > 0) {
+                patterns.addAndGet(evaluated);
+            }
+            nanos.addAndGet(elapsed);
+            buckets.incrementAndGet(bucket(elapsed));
+        }
+
+        private static int bucket(long elapsed) {
+            int i = 0;
+            while (i < BOUNDS.length && elapsed > BOUNDS[i]) {
+                i++;
+            }
+            return i;
+        }
+    }
+}
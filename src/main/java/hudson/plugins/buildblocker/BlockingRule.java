@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Global blocking rule: jobs whose full names match the source jobs are blocked by the blocking
+ * jobs, on the given level and considering the given queue scope, as if they had a
+ * {@link BuildBlockerProperty} with these settings.
+ */
+public class BlockingRule extends AbstractDescribableImpl<BlockingRule> {
+
+    private final String sourceJobs;
+    private final String blockingJobs;
+    private final String blockLevel;
+    private final String scanQueueFor;
+
+    /**
+     * @param sourceJobs   line feed separated regular expressions of the full names of the blocked jobs
+     * @param blockingJobs line feed separated regular expressions of the full names of the blocking jobs
+     * @param blockLevel   the block level, see {@link BuildBlockerProperty.BlockLevel}
+     * @param scanQueueFor the queue scan scope, see {@link BuildBlockerProperty.QueueScanScope}
+     */
+    @DataBoundConstructor
+    public BlockingRule(String sourceJobs, String blockingJobs, String blockLevel, String scanQueueFor) {
+        this.sourceJobs = sourceJobs;
+        this.blockingJobs = blockingJobs;
+        this.blockLevel = blockLevel;
+        this.scanQueueFor = scanQueueFor;
+    }
+
+    public String getSourceJobs() {
+        return sourceJobs;
+    }
+
+    public String getBlockingJobs() {
+        return blockingJobs;
+    }
+
+    public String getBlockLevel() {
+        return blockLevel;
+    }
+
+    public String getScanQueueFor() {
+        return scanQueueFor;
+    }
+
+    /**
+     * @return true if the rule has source and blocking jobs
+     */
+    public boolean isValid() {
+        return StringUtils.isNotBlank(sourceJobs) && StringUtils.isNotBlank(blockingJobs);
+    }
+
+    /**
+     * @return the blocking configuration of the rule, evaluated like the property of a job
+     */
+    BuildBlockerProperty toProperty() {
+        return new BuildBlockerProperty(true, blockLevel, scanQueueFor, blockingJobs);
+    }
+
+    /**
+     * Descriptor
+     */
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<BlockingRule> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.BlockingRule_DisplayName();
+        }
+
+        public ListBoxModel doFillBlockLevelItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add(Messages.BlockingRule_GlobalLevel(), "global");
+            items.add(Messages.BlockingRule_NodeLevel(), "node");
+            return items;
+        }
+
+        public ListBoxModel doFillScanQueueForItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add(Messages.BlockingRule_QueueDisabled(), "disabled");
+            items.add(Messages.BlockingRule_QueueBuildable(), "buildable");
+            items.add(Messages.BlockingRule_QueueAll(), "all");
+            return items;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The global blocking rules compiled into one table.
+ * <p/>
+ * Every valid rule is compiled once into a matcher of its source jobs and a
+ * {@link BuildBlockerProperty} holding its blocking jobs, which the dispatcher evaluates like the
+ * property of a job. The rules applying to a job are collected on its first check and kept by
+ * its full name, so every later check finds them with a single map lookup. The table is replaced
+ * as a whole when the rules are reconfigured.
+ */
+public final class BlockingRules {
+
+    /**
+     * no rules, returned for jobs no rule applies to
+     */
+    public static final BuildBlockerProperty[] NONE = new BuildBlockerProperty[0];
+
+    private static final BlockingRules INSTANCE = new BlockingRules();
+
+    private volatile Table table = new Table(new ArrayList<BlockingRule>());
+
+    //default scope for testability
+    BlockingRules() {
+    }
+
+    /**
+     * @return the rules used by the dispatcher
+     */
+    public static BlockingRules get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Compiles the given rules and replaces the current ones. Invalid rules are ignored.
+     *
+     * @param rules the rules of the global configuration
+     */
+    public void configure(List<BlockingRule> rules) {
+        table = new Table(rules);
+    }
+
+    /**
+     * @param fullName the full name of a job
+     * @return the compiled rules applying to the job, in configuration order, never null
+     */
+    public BuildBlockerProperty[] getRules(String fullName) {
+        return table.get(fullName);
+    }
+
+    /**
+     * @return the number of compiled rules
+     */
+    public int size() {
+        return table.sources.length;
+    }
+
+    private static final class Table {
+        private final BlockingJobsMatcher[] sources;
+        private final BuildBlockerProperty[] properties;
+
+        /**
+         * the rules applying to a job by its full name
+         */
+        private final ConcurrentMap<String, BuildBlockerProperty[]> bySource =
+                new ConcurrentHashMap<String, BuildBlockerProperty[]>();
+
+        private Table(List<BlockingRule> rules) {
+            List<BlockingJobsMatcher> sourceList = new ArrayList<BlockingJobsMatcher>();
+            List<BuildBlockerProperty> propertyList = new ArrayList<BuildBlockerProperty>();
+            for (BlockingRule rule : rules) {
+                if (rule.isValid()) {
+                    sourceList.add(BlockingJobsMatcher.compile(rule.getSourceJobs()));
+                    propertyList.add(rule.toProperty());
+                }
+            }
+            sources = sourceList.toArray(new BlockingJobsMatcher[sourceList.size()]);
+            properties = propertyList.toArray(new BuildBlockerProperty[propertyList.size()]);
+        }
+
+        private BuildBlockerProperty[] get(String fullName) {
+            if (sources.length == 0) {
+                return NONE;
+            }
+            BuildBlockerProperty[] applying = bySource.get(fullName);
+            if (applying == null) {
+                List<BuildBlockerProperty> matching = new ArrayList<BuildBlockerProperty>();
+                for (int i = 0; i < sources.length; i++) {
+                    if (sources[i].matches(fullName)) {
+                        matching.add(properties[i]);
+                    }
+                }
+                applying = matching.isEmpty() ? NONE : matching.toArray(new BuildBlockerProperty[matching.size()]);
+                bySource.put(fullName, applying);
+            }
+            return applying;
+        }
+    }
+}
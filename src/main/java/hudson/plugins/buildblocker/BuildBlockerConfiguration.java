@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.util.ListBoxModel;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Global settings of the plugin, shown on the system configuration page.
+ */
+@Extension
+public class BuildBlockerConfiguration extends GlobalConfiguration {
+
+    /**
+     * default for the maximal age of published decisions in milliseconds
+     */
+    public static final long DEFAULT_MAX_STALENESS = 2000;
+
+    private boolean asyncEvaluation;
+
+    private long maxStaleness = DEFAULT_MAX_STALENESS;
+
+    private String stateProvider;
+
+    /**
+     * default for the percentage of checks compared in shadow mode
+     */
+    public static final int DEFAULT_SHADOW_SAMPLE_PERCENT = 5;
+
+    private boolean shadowEvaluation;
+
+    private int shadowSamplePercent = DEFAULT_SHADOW_SAMPLE_PERCENT;
+
+    private List<BlockingRule> rules = new ArrayList<BlockingRule>();
+
+    private String resources;
+
+    public BuildBlockerConfiguration() {
+        load();
+        apply();
+    }
+
+    /**
+     * @return the configuration of the running Jenkins, null if there is none
+     */
+    public static BuildBlockerConfiguration get() {
+        return GlobalConfiguration.all().get(BuildBlockerConfiguration.class);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.DisplayName();
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // an empty list is not submitted at all
+        rules = new ArrayList<BlockingRule>();
+        req.bindJSON(this, json);
+        save();
+        apply();
+        return true;
+    }
+
+    /**
+     * @return true if the dispatcher answers from the decisions published by the background evaluation
+     */
+    public boolean isAsyncEvaluation() {
+        return asyncEvaluation;
+    }
+
+    public void setAsyncEvaluation(boolean asyncEvaluation) {
+        this.asyncEvaluation = asyncEvaluation;
+    }
+
+    /**
+     * @return the maximal age in milliseconds of published decisions the dispatcher answers from
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness > 0 ? maxStaleness : DEFAULT_MAX_STALENESS;
+    }
+
+    /**
+     * @return the id of the {@link StateProvider} the blocking jobs are matched against, null for the default
+     */
+    public String getStateProvider() {
+        return stateProvider;
+    }
+
+    public void setStateProvider(String stateProvider) {
+        this.stateProvider = stateProvider != null && stateProvider.length() > 0 ? stateProvider : null;
+    }
+
+    /**
+     * @return true if the dispatcher answers with the legacy engine and compares the configured one on a sample
+     */
+    public boolean isShadowEvaluation() {
+        return shadowEvaluation;
+    }
+
+    public void setShadowEvaluation(boolean shadowEvaluation) {
+        this.shadowEvaluation = shadowEvaluation;
+    }
+
+    /**
+     * @return the percentage of the checks the configured engine runs on in shadow mode
+     */
+    public int getShadowSamplePercent() {
+        return shadowSamplePercent;
+    }
+
+    public void setShadowSamplePercent(int shadowSamplePercent) {
+        this.shadowSamplePercent = Math.max(1, Math.min(shadowSamplePercent, ShadowEvaluator.MAX_SAMPLE_PERCENT));
+    }
+
+    /**
+     * @return the global blocking rules, applied in addition to the blocking jobs of the job configurations
+     */
+    public List<BlockingRule> getRules() {
+        return rules;
+    }
+
+    public void setRules(List<BlockingRule> rules) {
+        this.rules = rules != null ? new ArrayList<BlockingRule>(rules) : new ArrayList<BlockingRule>();
+    }
+
+    /**
+     * @return the line feed separated capacities of the resources the jobs put weights on, as {@code name: capacity}
+     */
+    public String getResources() {
+        return resources;
+    }
+
+    public void setResources(String resources) {
+        this.resources = resources != null && resources.trim().length() > 0 ? resources.trim() : null;
+    }
+
+    public ListBoxModel doFillStateProviderItems() {
+        ListBoxModel items = new ListBoxModel();
+        for (StateProvider provider : StateProvider.all()) {
+            items.add(provider.getDisplayName(), provider.getId());
+        }
+        return items;
+    }
+
+    private void apply() {
+        BlockingRules.get().configure(rules != null ? rules : new ArrayList<BlockingRule>());
+        DecisionCache.get().onConfigurationChange();
+        AsyncEvaluator.get().configure(asyncEvaluation, maxStaleness);
+        StateProvider.select(stateProvider);
+        ShadowEvaluator.get().configure(shadowEvaluation, shadowSamplePercent);
+        ResourceBudgets.get().configure(resources);
+    }
+}
@@ -25,16 +25,21 @@
 package hudson.plugins.buildblocker;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.util.FormValidation;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -54,6 +59,31 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
     private QueueScanScope scanQueueFor;
     private String blockingJobs;
 
+    /**
+     * comma or line feed separated names of the mutual exclusion groups the job belongs to
+     */
+    private String exclusionGroups;
+
+    /**
+     * line feed separated weights of the resources a build of the job uses, as {@code name: weight}
+     */
+    private String resources;
+
+    /**
+     * compiled form of {@link #blockingJobs}, shared by every blocking check
+     */
+    private transient BlockingJobsMatcher blockingJobsMatcher;
+
+    /**
+     * parsed form of {@link #exclusionGroups}
+     */
+    private transient String[] exclusionGroupNames;
+
+    /**
+     * parsed form of {@link #resources}
+     */
+    private transient Map<String, Integer> resourceWeights;
+
     public BlockLevel getBlockLevel() {
         return blockLevel != null ? blockLevel : BlockLevel.UNDEFINED;
     }
@@ -70,6 +100,77 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
         return blockingJobs;
     }
 
+    /**
+     * Returns the compiled blocking jobs. The regular expressions are compiled once when the
+     * configuration is created or loaded, not on every queue check.
+     *
+     * @return the compiled blocking jobs, never null
+     */
+    public BlockingJobsMatcher getBlockingJobsMatcher() {
+        if (blockingJobsMatcher == null) {
+            blockingJobsMatcher = BlockingJobsMatcher.compile(blockingJobs);
+        }
+        return blockingJobsMatcher;
+    }
+
+    /**
+     * Returns the compiled blocking jobs to check the given job with, the lines scoped by a source
+     * expression resolved for its name.
+     *
+     * @param fullName the full name of the job the check is done for
+     * @return the compiled blocking jobs, never null
+     */
+    public BlockingJobsMatcher getBlockingJobsMatcher(String fullName) {
+        return getBlockingJobsMatcher().forJob(fullName);
+    }
+
+    public String getExclusionGroups() {
+        return exclusionGroups;
+    }
+
+    @DataBoundSetter
+    public void setExclusionGroups(String exclusionGroups) {
+        this.exclusionGroups = Util.fixEmptyAndTrim(exclusionGroups);
+        this.exclusionGroupNames = parseExclusionGroups(this.exclusionGroups);
+    }
+
+    /**
+     * Returns the names of the mutual exclusion groups of the job. A build of the job is only
+     * started while no other build of the same groups runs, on any node or on the same node
+     * according to the {@link #getBlockLevel() block level}.
+     *
+     * @return the distinct group names, never null
+     */
+    public String[] getExclusionGroupNames() {
+        if (exclusionGroupNames == null) {
+            exclusionGroupNames = parseExclusionGroups(exclusionGroups);
+        }
+        return exclusionGroupNames;
+    }
+
+    public String getResources() {
+        return resources;
+    }
+
+    @DataBoundSetter
+    public void setResources(String resources) {
+        this.resources = Util.fixEmptyAndTrim(resources);
+        this.resourceWeights = ResourceBudgets.parse(this.resources);
+    }
+
+    /**
+     * Returns the weights of the resources a build of the job uses. A build is only started while
+     * the weights of the running builds plus its own stay within the capacity of every resource.
+     *
+     * @return the weights by resource name, never null
+     */
+    public Map<String, Integer> getResourceWeights() {
+        if (resourceWeights == null) {
+            resourceWeights = ResourceBudgets.parse(resources);
+        }
+        return resourceWeights;
+    }
+
     @DataBoundConstructor
     public BuildBlockerProperty(boolean useBuildBlocker, String blockLevel, String scanQueueFor, String blockingJobs) {
         LOG.logp(FINE, getClass().getName(), "BuildBlockerProperty", "useBuildBlocker: " + useBuildBlocker + " blockLevel: " + blockLevel + " scanQueueFor: " +
@@ -77,7 +178,43 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
         this.useBuildBlocker = useBuildBlocker;
         this.scanQueueFor = QueueScanScope.from(scanQueueFor);
         this.blockLevel = BlockLevel.from(blockLevel);
-        this.blockingJobs = blockingJobs;
+        this.blockingJobsMatcher = BlockingJobsMatcher.compile(blockingJobs);
+        this.blockingJobs = intern(blockingJobs, blockingJobsMatcher);
+    }
+
+    /**
+     * Compiles the blocking jobs of configurations loaded from disk.
+     *
+     * @return this property
+     */
+    protected Object readResolve() {
+        this.blockingJobsMatcher = BlockingJobsMatcher.compile(blockingJobs);
+        this.blockingJobs = intern(blockingJobs, blockingJobsMatcher);
+        this.exclusionGroupNames = parseExclusionGroups(exclusionGroups);
+        this.resourceWeights = ResourceBudgets.parse(resources);
+        return this;
+    }
+
+    private static String[] parseExclusionGroups(String exclusionGroups) {
+        if (StringUtils.isBlank(exclusionGroups)) {
+            return ExclusionGroups.NONE;
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        for (String name : exclusionGroups.split("[,\\n]")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                names.add(name);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Jobs generated from templates often carry identical blocking jobs. They share the
+     * configuration text of the interned matcher instead of holding a copy each.
+     */
+    private static String intern(String blockingJobs, BlockingJobsMatcher matcher) {
+        return blockingJobs != null && blockingJobs.equals(matcher.getSource()) ? matcher.getSource() : blockingJobs;
     }
 
     /**
@@ -121,6 +258,22 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
             }
         }
 
+        /**
+         * Check the resource weights entered by the user against the capacities of the global
+         * configuration, a build needing more of a resource than its capacity would never start
+         */
+        public FormValidation doCheckResources(@QueryParameter final String value) {
+            Map<String, Integer> capacities = ResourceBudgets.get().getCapacities();
+            for (Map.Entry<String, Integer> entry : ResourceBudgets.parse(value).entrySet()) {
+                Integer capacity = capacities.get(entry.getKey());
+                if (capacity != null && entry.getValue() > capacity) {
+                    return FormValidation.error(Messages.ResourceWeightExceedsCapacity(entry.getKey(),
+                            entry.getValue(), capacity));
+                }
+            }
+            return FormValidation.ok();
+        }
+
         /**
          * Returns always true as it can be used in all types of jobs.
          *
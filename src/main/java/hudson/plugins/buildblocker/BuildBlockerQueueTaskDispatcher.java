@@ -29,10 +29,14 @@ import hudson.matrix.MatrixConfiguration;
 import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.plugins.buildblocker.BlockingMetrics.Probe;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
 
 import javax.annotation.CheckForNull;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
@@ -48,15 +52,120 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
 
     private MonitorFactory monitorFactory;
 
+    /**
+     * the precomputed blocker sets, null to match the blocking jobs against all running and queued jobs
+     */
+    private BlockerGraph blockerGraph;
+
+    /**
+     * the cached decisions, null to evaluate every check. The cache relies on the versions of the
+     * registry of running builds and the queue index, so it is only used together with them.
+     */
+    private DecisionCache decisionCache;
+
+    /**
+     * the scheduler to notify about blocked items, null to rely on the periodic queue maintenance
+     */
+    private UnblockingScheduler unblockingScheduler;
+
+    /**
+     * the decisions published by the background evaluation, null to evaluate every check on global level
+     */
+    private AsyncEvaluator asyncEvaluator;
+
+    /**
+     * the global blocking rules, null to only check the blocking jobs of the job configurations
+     */
+    private BlockingRules blockingRules;
+
+    /**
+     * the comparison with the legacy engine, null to always use the configured engine
+     */
+    private ShadowEvaluator shadowEvaluator;
+
+    /**
+     * the occupancy counters of the mutual exclusion groups, null to ignore the groups
+     */
+    private ExclusionGroups exclusionGroups;
+
+    /**
+     * the usage of the weighted resources, null to ignore the resource weights
+     */
+    private ResourceBudgets resourceBudgets;
+
+    /**
+     * the registry the calls are recorded in, null to record nothing
+     */
+    private BlockingMetrics metrics;
+
+    /**
+     * the results shared by the checks done at the current version of the blocking relevant state
+     */
+    private volatile BatchEvaluator batch;
+
     public BuildBlockerQueueTaskDispatcher() {
         monitorFactory = new DefaultMonitorFactory();
+        blockerGraph = BlockerGraph.DISABLED ? null : BlockerGraph.get();
+        decisionCache = DecisionCache.DISABLED || RunningBuildsRegistry.DISABLED || QueueIndex.DISABLED
+                ? null : DecisionCache.get();
+        unblockingScheduler = UnblockingScheduler.DISABLED ? null : UnblockingScheduler.get();
+        asyncEvaluator = AsyncEvaluator.get();
+        shadowEvaluator = ShadowEvaluator.get();
+        blockingRules = BlockingRules.get();
+        exclusionGroups = ExclusionGroups.DISABLED ? null : ExclusionGroups.get();
+        resourceBudgets = ResourceBudgets.DISABLED ? null : ResourceBudgets.get();
+        metrics = BlockingMetrics.DISABLED ? null : BlockingMetrics.get();
     }
 
+    /**
+     * Creates a dispatcher using only the given monitor factory. The other parts are switched off
+     * until set with the setters below.
+     */
     //default scope for testability
     BuildBlockerQueueTaskDispatcher(MonitorFactory monitorFactory) {
         this.monitorFactory = monitorFactory;
     }
 
+    //default scope for testability
+    void setBlockerGraph(BlockerGraph blockerGraph) {
+        this.blockerGraph = blockerGraph;
+    }
+
+    //default scope for testability
+    void setDecisionCache(DecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    //default scope for testability
+    void setUnblockingScheduler(UnblockingScheduler unblockingScheduler) {
+        this.unblockingScheduler = unblockingScheduler;
+    }
+
+    //default scope for testability
+    void setAsyncEvaluator(AsyncEvaluator asyncEvaluator) {
+        this.asyncEvaluator = asyncEvaluator;
+    }
+
+    //default scope for testability
+    void setShadowEvaluator(ShadowEvaluator shadowEvaluator) {
+        this.shadowEvaluator = shadowEvaluator;
+    }
+
+    //default scope for testability
+    void setBlockingRules(BlockingRules blockingRules) {
+        this.blockingRules = blockingRules;
+    }
+
+    //default scope for testability
+    void setExclusionGroups(ExclusionGroups exclusionGroups) {
+        this.exclusionGroups = exclusionGroups;
+    }
+
+    //default scope for testability
+    void setResourceBudgets(ResourceBudgets resourceBudgets) {
+        this.resourceBudgets = resourceBudgets;
+    }
+
     /**
      * Called whenever {@link hudson.model.Queue} is considering if {@link hudson.model.Queue.Item} is ready to
      * execute immediately
@@ -90,10 +199,22 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
     @Override
     public CauseOfBlockage canRun(Queue.Item item) {
         if (item.task instanceof Job) {
-            BuildBlockerProperty property = getBuildBlockerProperty(item);
+            CauseOfBlockage groupCause = checkExclusionGroups(null, item);
+            if (groupCause != null) {
+                return groupCause;
+            }
+            CauseOfBlockage budgetCause = checkResourceBudgets(null, item);
+            if (budgetCause != null) {
+                return budgetCause;
+            }
+
+            BuildBlockerProperty property = getEnabledProperty(item);
+            BuildBlockerProperty[] rules = getRules(item);
 
-            if (property != null && property.isUseBuildBlocker()) {
-                CauseOfBlockage Job = checkForBlock(item, property);
+            if (property != null || rules.length > 0) {
+                long start = System.nanoTime();
+                CauseOfBlockage Job = check(null, item, property, rules);
+                record(Probe.CAN_RUN, start, Job, property, rules);
                 if (Job != null) {
                     return Job;
                 }
@@ -105,9 +226,21 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
 
     @Override
     public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
-        BuildBlockerProperty property = getBuildBlockerProperty(item);
-        if (property != null && property.isUseBuildBlocker()) {
-            CauseOfBlockage causeOfBlockage = checkForBlock(node, item, property);
+        CauseOfBlockage groupCause = checkExclusionGroups(node, item);
+        if (groupCause != null) {
+            return groupCause;
+        }
+        CauseOfBlockage budgetCause = checkResourceBudgets(node, item);
+        if (budgetCause != null) {
+            return budgetCause;
+        }
+
+        BuildBlockerProperty property = getEnabledProperty(item);
+        BuildBlockerProperty[] rules = getRules(item);
+        if (property != null || rules.length > 0) {
+            long start = System.nanoTime();
+            CauseOfBlockage causeOfBlockage = check(node, item, property, rules);
+            record(Probe.CAN_TAKE, start, causeOfBlockage, property, rules);
             if (causeOfBlockage != null) {
                 return causeOfBlockage;
             }
@@ -115,30 +248,235 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
         return super.canTake(node, item);
     }
 
-    private CauseOfBlockage checkForBlock(Queue.Item item, BuildBlockerProperty blockingJobs) {
-        return checkForBlock(null, item, blockingJobs);
+    /**
+     * Checks whether a mutual exclusion group of the item is held, on all nodes or on the given
+     * node according to the block level of the job. The counters are looked up directly, so the
+     * check is neither cached nor evaluated in the background.
+     */
+    private CauseOfBlockage checkExclusionGroups(Node node, Queue.Item item) {
+        if (exclusionGroups == null) {
+            return null;
+        }
+        String[] groups = ExclusionGroups.groupsOf(item.task);
+        if (groups.length == 0) {
+            return null;
+        }
+        BuildBlockerProperty.BlockLevel blockLevel = ((Job<?, ?>) item.task)
+                .getProperty(BuildBlockerProperty.class).getBlockLevel();
+        String group = null;
+        if (checkWasCalledInGlobalContext(node) && blockLevel.isGlobal()) {
+            group = exclusionGroups.findOccupied(groups);
+        } else if (checkWasCalledInNodeContext(node) && blockLevel.isNode()) {
+            group = exclusionGroups.findOccupiedOnNode(node.getNodeName(), groups);
+        }
+        if (group == null) {
+            return null;
+        }
+        if (LOG.isLoggable(FINE)) {
+            LOG.logp(FINE, getClass().getName(), "checkExclusionGroups", "exclusion group " + group
+                    + " is held, blocking " + item.task.getFullDisplayName());
+        }
+        return new ExclusionGroupCause(item, group);
     }
 
-    private CauseOfBlockage checkForBlock(Node node, Queue.Item item, BuildBlockerProperty property) {
-        if (property.getBlockingJobs() == null) {
+    /**
+     * Checks whether the resource weights of the item fit into the capacities, on all nodes or on
+     * the given node according to the block level of the job.
+     */
+    private CauseOfBlockage checkResourceBudgets(Node node, Queue.Item item) {
+        if (resourceBudgets == null) {
+            return null;
+        }
+        Map<String, Integer> weights = ResourceBudgets.weightsOf(item.task);
+        if (weights.isEmpty()) {
             return null;
         }
+        BuildBlockerProperty.BlockLevel blockLevel = ((Job<?, ?>) item.task)
+                .getProperty(BuildBlockerProperty.class).getBlockLevel();
+        if (checkWasCalledInGlobalContext(node) && blockLevel.isGlobal()) {
+            return resourceBudgets.check(item, weights);
+        }
+        if (checkWasCalledInNodeContext(node) && blockLevel.isNode()) {
+            return resourceBudgets.checkOnNode(item, node.getNodeName(), weights);
+        }
+        return null;
+    }
 
-        Job result = checkAccordingToProperties(node, item, property);
+    private void record(Probe probe, long start, CauseOfBlockage cause, BuildBlockerProperty property,
+                        BuildBlockerProperty[] rules) {
+        if (metrics != null) {
+            int patterns = property != null ? property.getBlockingJobsMatcher().getPatterns().size() : 0;
+            for (BuildBlockerProperty rule : rules) {
+                patterns += rule.getBlockingJobsMatcher().getPatterns().size();
+            }
+            metrics.record(probe, start, cause != null, patterns);
+        }
+    }
 
+    /**
+     * Checks the item with the configured engine or, in shadow mode, with the legacy engine while
+     * the configured engine runs on a sample of the checks for comparison.
+     */
+    private CauseOfBlockage check(Node node, Queue.Item item, BuildBlockerProperty property,
+                                  BuildBlockerProperty[] rules) {
+        if (shadowEvaluator == null || !shadowEvaluator.isEnabled()) {
+            return node == null ? checkForBlock(item, property, rules) : checkForBlock(node, item, property, rules);
+        }
+        CauseOfBlockage candidate = null;
+        long candidateTime = -1;
+        if (shadowEvaluator.sample()) {
+            // runs first, so the scheduler keeps the blocker reported by the legacy engine
+            long start = System.nanoTime();
+            candidate = node == null ? checkForBlock(item, property, rules) : checkForBlock(node, item, property, rules);
+            candidateTime = System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        Job result = null;
+        if (property != null) {
+            result = checkAccordingToProperties(node, item, property,
+                    shadowEvaluator.legacyMonitor(blockingJobsOf(property, item)));
+        }
+        for (int i = 0; result == null && i < rules.length; i++) {
+            result = checkAccordingToProperties(node, item, rules[i],
+                    shadowEvaluator.legacyMonitor(blockingJobsOf(rules[i], item)));
+        }
+        CauseOfBlockage legacy = decide(item, result);
+        shadowEvaluator.record(item, node, legacy, System.nanoTime() - start, candidate, candidateTime);
+        return legacy;
+    }
+
+    private CauseOfBlockage checkForBlock(Queue.Item item, BuildBlockerProperty property,
+                                          BuildBlockerProperty[] rules) {
+        if (asyncEvaluator != null) {
+            DecisionCache.Decision published = asyncEvaluator.lookup(item);
+            if (published != null) {
+                return published.getCause();
+            }
+        }
+        return checkForBlock(null, item, property, rules);
+    }
 
+    private CauseOfBlockage checkForBlock(Node node, Queue.Item item, BuildBlockerProperty property,
+                                          BuildBlockerProperty[] rules) {
+        long version = 0;
+        if (decisionCache != null) {
+            // read the version before the check, a decision based on older state is never reused
+            version = decisionCache.getVersion();
+            DecisionCache.Decision decision = decisionCache.get(version, item, node);
+            if (decision != null) {
+                return decision.getCause();
+            }
+        }
+
+        Job result = checkAccordingToProperties(node, item, property, rules,
+                decisionCache != null ? batchFor(version) : null);
+        return decide(version, node, item, result);
+    }
+
+    /**
+     * Turns the blocking job found for an item into the decision of the dispatcher and
+     * records it for the scheduler and the decision cache.
+     */
+    private CauseOfBlockage decide(long version, Node node, Queue.Item item, Job result) {
+        CauseOfBlockage cause = decide(item, result);
+        if (decisionCache != null) {
+            decisionCache.put(version, item, node, cause);
+        }
+        return cause;
+    }
+
+    /**
+     * Turns the blocking job found for an item into the decision of the dispatcher and
+     * records it for the scheduler.
+     */
+    private CauseOfBlockage decide(Queue.Item item, Job result) {
+        CauseOfBlockage cause = null;
         if (result != null) {
-            if (result instanceof MatrixConfiguration) {
-                result = ((MatrixConfiguration) result).getParent();
+            result = foldJob(result);
+            cause = new BlockingJobCause(item, result);
+        }
+        if (unblockingScheduler != null) {
+            if (result != null) {
+                unblockingScheduler.onBlocked(item, result);
+            } else {
+                unblockingScheduler.onNotBlocked(item);
             }
+        }
+        return cause;
+    }
 
-            return CauseOfBlockage.fromMessage(Messages._BlockingJobIsRunning(item.getInQueueForString(), result.getDisplayName()));
+    /**
+     * Evaluates all given items in one batch. Checks that do not depend on the item are done once
+     * per distinct blocking configuration. The decisions are cached if the decision cache is used.
+     *
+     * @param items the queued items to evaluate
+     * @param node  the node for checks on node level, null for checks on global level
+     * @return the causes of blockage of the blocked items
+     */
+    public Map<Queue.Item, CauseOfBlockage> evaluateAll(Collection<? extends Queue.Item> items, Node node) {
+        long version = decisionCache != null ? decisionCache.getVersion() : 0;
+        BatchEvaluator batch = decisionCache != null ? batchFor(version) : new BatchEvaluator(monitorFactory, version);
+        Map<Queue.Item, CauseOfBlockage> blocked = new LinkedHashMap<Queue.Item, CauseOfBlockage>();
+        for (Queue.Item item : items) {
+            BuildBlockerProperty property = getEnabledProperty(item);
+            BuildBlockerProperty[] rules = getRules(item);
+            if (property == null && rules.length == 0) {
+                continue;
+            }
+            Job result = checkAccordingToProperties(node, item, property, rules, batch);
+            CauseOfBlockage cause = decide(version, node, item, result);
+            if (cause != null) {
+                blocked.put(item, cause);
+            }
         }
-        return null;
+        return blocked;
     }
 
-    private Job checkAccordingToProperties(Node node, Queue.Item item, BuildBlockerProperty properties) {
-        BlockingJobsMonitor jobsMonitor = monitorFactory.build(properties.getBlockingJobs());
+    /**
+     * @return the batch sharing the results of the checks done at the given version
+     */
+    private BatchEvaluator batchFor(long version) {
+        BatchEvaluator current = batch;
+        if (current == null || current.getVersion() != version) {
+            current = new BatchEvaluator(monitorFactory, version);
+            batch = current;
+        }
+        return current;
+    }
+
+    /**
+     * Checks the blocking jobs of the job configuration, then those of the global rules applying
+     * to the item. The first blocking job found wins.
+     */
+    private Job checkAccordingToProperties(Node node, Queue.Item item, BuildBlockerProperty property,
+                                           BuildBlockerProperty[] rules, BatchEvaluator batch) {
+        Job result = null;
+        if (property != null) {
+            BlockingJobsMatcher blockingJobs = blockerGraph != null
+                    ? blockerGraph.getBlockingJobsMatcher((Job<?, ?>) item.task, property)
+                    : blockingJobsOf(property, item);
+            result = checkAccordingToProperties(node, item, property, monitor(blockingJobs, batch));
+        }
+        // the blocker graph only knows the blocking jobs of the job configurations
+        for (int i = 0; result == null && i < rules.length; i++) {
+            result = checkAccordingToProperties(node, item, rules[i], monitor(blockingJobsOf(rules[i], item), batch));
+        }
+        return result;
+    }
+
+    /**
+     * @return the blocking jobs of the property, resolved for the job of the item
+     */
+    private static BlockingJobsMatcher blockingJobsOf(BuildBlockerProperty property, Queue.Item item) {
+        return property.getBlockingJobsMatcher(((Job<?, ?>) item.task).getFullName());
+    }
+
+    private BlockingJobsMonitor monitor(BlockingJobsMatcher blockingJobs, BatchEvaluator batch) {
+        return batch != null ? batch.monitor(blockingJobs) : monitorFactory.build(blockingJobs);
+    }
+
+    private Job checkAccordingToProperties(Node node, Queue.Item item, BuildBlockerProperty properties,
+                                           BlockingJobsMonitor jobsMonitor) {
 
         if (checkWasCalledInGlobalContext(node) && properties.getBlockLevel().isGlobal()) {
             LOG.logp(FINE, getClass().getName(), "checkAccordingToProperties", "calling checkAllNodesForRunningBuilds");
@@ -183,6 +521,10 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
         return null;
     }
 
+    private static Job foldJob(Job job) {
+        return job instanceof MatrixConfiguration ? ((MatrixConfiguration) job).getParent() : job;
+    }
+
     private boolean checkWasCalledInNodeContext(Node node) {
         return node != null;
     }
@@ -195,13 +537,28 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
         return result != null;
     }
 
+    /**
+     * @return the build blocker property of the job of the item if it is used and has blocking jobs
+     */
     @CheckForNull
-    private BuildBlockerProperty getBuildBlockerProperty(Queue.Item item) {
+    private BuildBlockerProperty getEnabledProperty(Queue.Item item) {
         if (!(item.task instanceof Job)) {
             return null;
         }
         Job<?,?> job = (Job<?,?>) item.task;
 
-        return job.getProperty(BuildBlockerProperty.class);
+        BuildBlockerProperty property = job.getProperty(BuildBlockerProperty.class);
+        return property != null && property.isUseBuildBlocker() && property.getBlockingJobs() != null
+                ? property : null;
+    }
+
+    /**
+     * @return the compiled global rules applying to the job of the item, never null
+     */
+    private BuildBlockerProperty[] getRules(Queue.Item item) {
+        if (blockingRules == null || !(item.task instanceof Job)) {
+            return BlockingRules.NONE;
+        }
+        return blockingRules.getRules(((Job<?, ?>) item.task).getFullName());
     }
 }
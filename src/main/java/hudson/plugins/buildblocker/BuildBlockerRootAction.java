@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Invisible root action at {@code /buildBlocker} to inspect the internal state of the plugin.
+ */
+@Extension
+public class BuildBlockerRootAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.DisplayName();
+    }
+
+    public String getUrlName() {
+        return "buildBlocker";
+    }
+
+    /**
+     * Serves the precomputed blocker graph at {@code /buildBlocker/graph} as JSON object from the
+     * full name of every job with blocking jobs to the full names of the jobs blocking it.
+     */
+    public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        JSONObject graph = new JSONObject();
+        for (Map.Entry<String, SortedSet<String>> entry : BlockerGraph.get().getGraph().entrySet()) {
+            graph.put(entry.getKey(), JSONArray.fromObject(entry.getValue()));
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(graph.toString(2));
+    }
+
+    /**
+     * Serves the statistics of the decision cache at {@code /buildBlocker/decisionCache} as JSON object.
+     */
+    public void doDecisionCache(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        DecisionCache cache = DecisionCache.get();
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", !DecisionCache.DISABLED && !RunningBuildsRegistry.DISABLED && !QueueIndex.DISABLED);
+        stats.put("version", cache.getVersion());
+        stats.put("size", cache.size());
+        stats.put("hits", cache.getHits());
+        stats.put("misses", cache.getMisses());
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(stats.toString(2));
+    }
+
+    /**
+     * Serves the statistics of the background evaluation at {@code /buildBlocker/asyncEvaluation} as JSON
+     * object, including the estimated time saved while holding the queue lock.
+     */
+    public void doAsyncEvaluation(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        AsyncEvaluator evaluator = AsyncEvaluator.get();
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", evaluator.isEnabled());
+        stats.put("evaluations", evaluator.getEvaluations());
+        stats.put("age", evaluator.getAge());
+        stats.put("hits", evaluator.getHits());
+        stats.put("stale", evaluator.getStale());
+        stats.put("unknown", evaluator.getUnknown());
+        stats.put("savedMillis", evaluator.getSavedNanos() / 1000000);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(stats.toString(2));
+    }
+
+    /**
+     * Serves the comparison of the legacy and the configured engine at {@code /buildBlocker/shadowEvaluation}
+     * as JSON object, with the time of both engines on the sampled checks and the last divergences.
+     */
+    public void doShadowEvaluation(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        ShadowEvaluator evaluator = ShadowEvaluator.get();
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", evaluator.isEnabled());
+        stats.put("checks", evaluator.getChecks());
+        stats.put("samples", evaluator.getSamples());
+        stats.put("skippedForOverhead", evaluator.getSkippedForOverhead());
+        stats.put("divergences", evaluator.getDivergences());
+        stats.put("differentBlockers", evaluator.getDifferentBlockers());
+        stats.put("legacyMillis", evaluator.getLegacyNanos() / 1000000);
+        stats.put("sampledLegacyMillis", evaluator.getSampledLegacyNanos() / 1000000);
+        stats.put("configuredMillis", evaluator.getCandidateNanos() / 1000000);
+        stats.put("lastDivergences", JSONArray.fromObject(evaluator.getLastDivergences()));
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(stats.toString(2));
+    }
+
+    /**
+     * Serves the metrics of the blocking checks at {@code /buildBlocker/metrics} as JSON object, or in the
+     * Prometheus text format with {@code ?format=prometheus}.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        BlockingMetrics metrics = BlockingMetrics.get();
+        if ("prometheus".equals(req.getParameter("format"))) {
+            rsp.setContentType("text/plain; version=0.0.4;charset=UTF-8");
+            metrics.writePrometheus(rsp.getWriter());
+        } else {
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(metrics.toJson().toString(2));
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.slaves.ComputerListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the blocking decisions of the dispatcher, keyed by queue item and node.
+ * <p/>
+ * Every decision is stamped with the version of the blocking relevant state: the versions of
+ * the {@link RunningBuildsRegistry} and the {@link QueueIndex}, plus a counter of configuration
+ * changes of jobs and nodes. An item that stays blocked by a long running build is answered
+ * from the cache until one of them moves. All decisions are dropped at once when the version
+ * changes, so the cache never holds more than the decisions of one version.
+ */
+public final class DecisionCache {
+
+    /**
+     * Escape hatch to disable the cache and evaluate every check.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(DecisionCache.class.getName() + ".disabled");
+
+    private static final DecisionCache INSTANCE = new DecisionCache(RunningBuildsRegistry.get(), QueueIndex.get());
+
+    private final RunningBuildsRegistry runningBuilds;
+
+    private final QueueIndex queuedItems;
+
+    /**
+     * number of configuration changes of jobs and nodes
+     */
+    private final AtomicLong configurations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile Generation generation = new Generation(-1);
+
+    //default scope for testability
+    DecisionCache(RunningBuildsRegistry runningBuilds, QueueIndex queuedItems) {
+        this.runningBuilds = runningBuilds;
+        this.queuedItems = queuedItems;
+    }
+
+    /**
+     * @return the cache used by the dispatcher
+     */
+    public static DecisionCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the current version of the blocking relevant state
+     */
+    public long getVersion() {
+        // all parts only ever grow, so the sum moves whenever one of them moves
+        return runningBuilds.getVersion() + queuedItems.getVersion() + configurations.get();
+    }
+
+    /**
+     * Returns the decision cached for the given item and node at the given version.
+     *
+     * @param version the version obtained from {@link #getVersion()} before the check
+     * @param item    the queued item
+     * @param node    the node for checks on node level, null for checks on global level
+     * @return the cached decision, null if there is none
+     */
+    public Decision get(long version, Queue.Item item, Node node) {
+        Generation current = generation;
+        Decision decision = current.version == version ? current.get(item, node) : null;
+        if (decision != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return decision;
+    }
+
+    /**
+     * Caches the decision made for the given item and node. A decision made at a version that
+     * is no longer current is not cached.
+     *
+     * @param version the version obtained from {@link #getVersion()} before the check
+     * @param item    the queued item
+     * @param node    the node for checks on node level, null for checks on global level
+     * @param cause   the cause of blockage, null if the item is not blocked
+     */
+    public void put(long version, Queue.Item item, Node node, CauseOfBlockage cause) {
+        Generation current = generation;
+        if (current.version != version) {
+            if (current.version > version) {
+                return;
+            }
+            current = new Generation(version);
+            generation = current;
+        }
+        current.put(item, node, new Decision(cause));
+    }
+
+    /**
+     * @return the number of checks answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of checks that had to be evaluated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of decisions cached for the current version
+     */
+    public int size() {
+        return generation.size();
+    }
+
+    void onConfigurationChange() {
+        configurations.incrementAndGet();
+    }
+
+    /**
+     * A cached decision of the dispatcher.
+     */
+    public static final class Decision {
+        private final CauseOfBlockage cause;
+
+        Decision(CauseOfBlockage cause) {
+            this.cause = cause;
+        }
+
+        /**
+         * @return the cause of blockage, null if the item is not blocked
+         */
+        public CauseOfBlockage getCause() {
+            return cause;
+        }
+    }
+
+    /**
+     * The decisions made at one version, by node name and queue item. Items are compared by
+     * identity: an item is replaced by a new object whenever it changes its state in the queue,
+     * which also changes the version. Looking up a decision allocates nothing.
+     */
+    private static final class Generation {
+        private final long version;
+        private final ConcurrentMap<Queue.Item, Decision> global = new ConcurrentHashMap<Queue.Item, Decision>();
+        private final ConcurrentMap<String, ConcurrentMap<Queue.Item, Decision>> nodes =
+                new ConcurrentHashMap<String, ConcurrentMap<Queue.Item, Decision>>();
+
+        private Generation(long version) {
+            this.version = version;
+        }
+
+        private Decision get(Queue.Item item, Node node) {
+            if (node == null) {
+                return global.get(item);
+            }
+            ConcurrentMap<Queue.Item, Decision> decisions = nodes.get(node.getNodeName());
+            return decisions != null ? decisions.get(item) : null;
+        }
+
+        private void put(Queue.Item item, Node node, Decision decision) {
+            if (node == null) {
+                global.put(item, decision);
+                return;
+            }
+            ConcurrentMap<Queue.Item, Decision> decisions = nodes.get(node.getNodeName());
+            if (decisions == null) {
+                decisions = new ConcurrentHashMap<Queue.Item, Decision>();
+                ConcurrentMap<Queue.Item, Decision> existing = nodes.putIfAbsent(node.getNodeName(), decisions);
+                if (existing != null) {
+                    decisions = existing;
+                }
+            }
+            decisions.put(item, decision);
+        }
+
+        private int size() {
+            int size = global.size();
+            for (ConcurrentMap<Queue.Item, Decision> decisions : nodes.values()) {
+                size += decisions.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Moves the version when the configuration of a job or node is saved.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job || o instanceof Node) {
+                get().onConfigurationChange();
+            }
+        }
+    }
+
+    /**
+     * Moves the version when jobs are renamed, moved or deleted, as their names are matched.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            get().onConfigurationChange();
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().onConfigurationChange();
+        }
+    }
+
+    /**
+     * Moves the version when nodes are added, removed or reconfigured, as their labels are matched.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            get().onConfigurationChange();
+        }
+    }
+}
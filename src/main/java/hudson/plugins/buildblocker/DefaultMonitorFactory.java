@@ -1,8 +1,48 @@
 package hudson.plugins.buildblocker;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
 public class DefaultMonitorFactory implements MonitorFactory {
+
+    /**
+     * the monitors reading the state provider selected in the global configuration
+     */
+    private volatile Monitors monitors;
+
     @Override
-    public BlockingJobsMonitor build(String blockingJobs) {
-        return new BlockingJobsMonitor(blockingJobs);
+    public BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs) {
+        StateProvider provider = StateProvider.get();
+        Monitors current = monitors;
+        if (current == null || current.provider != provider) {
+            // the configuration selected another provider, the monitors of the old one are dropped
+            current = new Monitors(provider);
+            monitors = current;
+        }
+        return current.monitors.getUnchecked(blockingJobs != null ? blockingJobs : BlockingJobsMatcher.EMPTY);
+    }
+
+    private static final class Monitors {
+        private final StateProvider provider;
+
+        /**
+         * the monitors are immutable, so one monitor per compiled blocking jobs is shared by all checks.
+         * A monitor references its matcher, so the values are soft to let unused entries be collected.
+         */
+        private final LoadingCache<BlockingJobsMatcher, BlockingJobsMonitor> monitors;
+
+        private Monitors(final StateProvider provider) {
+            this.provider = provider;
+            this.monitors = CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .softValues()
+                    .build(new CacheLoader<BlockingJobsMatcher, BlockingJobsMonitor>() {
+                        @Override
+                        public BlockingJobsMonitor load(BlockingJobsMatcher blockingJobs) {
+                            return new BlockingJobsMonitor(blockingJobs, provider);
+                        }
+                    });
+        }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Job;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Occupancy counters of the mutual exclusion groups declared by the jobs in their
+ * {@link BuildBlockerProperty}.
+ * <p/>
+ * Every build of a member holds its groups with weight one, the number of holders is counted per
+ * group on all nodes and per node as described in {@link Occupancy}. An admission check is a
+ * lookup of the group names of the item, independent of the number of members and running builds.
+ */
+public final class ExclusionGroups extends Occupancy {
+
+    /**
+     * Escape hatch to disable the mutual exclusion groups.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(ExclusionGroups.class.getName() + ".disabled");
+
+    /**
+     * the groups of a job that is not a member of any group
+     */
+    static final String[] NONE = new String[0];
+
+    private static final ExclusionGroups INSTANCE = new ExclusionGroups();
+
+    /**
+     * groups that blocked queued items since they were last released
+     */
+    private final ConcurrentMap<String, Boolean> contended = new ConcurrentHashMap<String, Boolean>();
+
+    //default scope for testability
+    ExclusionGroups() {
+    }
+
+    /**
+     * @return the counters used by the dispatcher
+     */
+    public static ExclusionGroups get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the groups of the given job. Matrix configurations are part of the build of their
+     * parent, which already holds the groups, so they are no members of their own.
+     *
+     * @param task the task of a queued item or the job of a build
+     * @return the groups the job is a member of, never null
+     */
+    public static String[] groupsOf(Object task) {
+        if (!(task instanceof Job) || task instanceof MatrixConfiguration) {
+            return NONE;
+        }
+        BuildBlockerProperty property = ((Job<?, ?>) task).getProperty(BuildBlockerProperty.class);
+        return property != null && property.isUseBuildBlocker() ? property.getExclusionGroupNames() : NONE;
+    }
+
+    /**
+     * Returns the first of the given groups that is held by a build on any node.
+     *
+     * @param groups the groups of the item to be admitted
+     * @return the occupied group or null
+     */
+    public String findOccupied(String[] groups) {
+        for (String group : groups) {
+            if (count(group) > 0) {
+                return contend(group);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first of the given groups that is held by a build on the given node, or by an
+     * item that is about to start on any node.
+     *
+     * @param nodeName the name of the node, empty for the master
+     * @param groups   the groups of the item to be admitted
+     * @return the occupied group or null
+     */
+    public String findOccupiedOnNode(String nodeName, String[] groups) {
+        for (String group : groups) {
+            if (usageOnNode(nodeName, group) > 0) {
+                return contend(group);
+            }
+        }
+        return null;
+    }
+
+    private String contend(String group) {
+        contended.put(group, Boolean.TRUE);
+        return group;
+    }
+
+    @Override
+    boolean isDisabled() {
+        return DISABLED;
+    }
+
+    @Override
+    Claims claimsOf(Object task) {
+        String[] groups = groupsOf(task);
+        if (groups.length == 0) {
+            return Claims.NONE;
+        }
+        int[] weights = new int[groups.length];
+        Arrays.fill(weights, 1);
+        return new Claims(groups, weights);
+    }
+
+    @Override
+    void onReleased(String group, int usage) {
+        if (usage == 0 && contended.remove(group) != null && !UnblockingScheduler.DISABLED) {
+            UnblockingScheduler.get().requestMaintenance();
+        }
+    }
+}
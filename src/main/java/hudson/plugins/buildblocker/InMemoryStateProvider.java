@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A state set up explicitly instead of being read from Jenkins, for tests, benchmarks and
+ * simulations. Builds are recorded by job and node name, queued items with their state and the
+ * names of the nodes they could run on. Checks scan the recorded entries in order.
+ * <p/>
+ * Not registered as an extension, as it never reflects the state of a running Jenkins.
+ */
+public class InMemoryStateProvider extends StateProvider {
+
+    private final List<RunningBuild> running = new ArrayList<RunningBuild>();
+
+    private final List<QueuedItem> queued = new ArrayList<QueuedItem>();
+
+    @Override
+    public String getDisplayName() {
+        return Messages.InMemoryStateProvider_DisplayName();
+    }
+
+    /**
+     * Records a build of the given job started on the given node.
+     *
+     * @param job      the job
+     * @param nodeName the name of the node, empty for the master
+     */
+    public synchronized void started(Job job, String nodeName) {
+        running.add(new RunningBuild(job, nodeName));
+    }
+
+    /**
+     * Removes one build of the given job on the given node.
+     *
+     * @param job      the job
+     * @param nodeName the name of the node, empty for the master
+     */
+    public synchronized void finished(Job job, String nodeName) {
+        for (int i = 0; i < running.size(); i++) {
+            RunningBuild build = running.get(i);
+            if (build.job == job && build.nodeName.equals(nodeName)) {
+                running.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the given item in the given queue state, replacing an entry of the same item.
+     *
+     * @param item      the queued item
+     * @param state     its state in the queue
+     * @param nodeNames the names of the nodes the item could run on, none for every node
+     */
+    public synchronized void queued(Queue.Item item, QueueIndex.State state, String... nodeNames) {
+        left(item);
+        queued.add(new QueuedItem(item, state, nodeNames));
+    }
+
+    /**
+     * Removes the given item from the queue.
+     *
+     * @param item the item
+     */
+    public synchronized void left(Queue.Item item) {
+        for (int i = 0; i < queued.size(); i++) {
+            if (isSameItem(queued.get(i).item, item)) {
+                queued.remove(i);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized Job findRunning(BlockingJobsMatcher blockingJobs) {
+        for (RunningBuild build : running) {
+            if (blockingJobs.matches(build.job.getFullName())) {
+                return build.job;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Job findRunningOnNode(Node node, BlockingJobsMatcher blockingJobs) {
+        for (RunningBuild build : running) {
+            if (build.nodeName.equals(node.getNodeName()) && blockingJobs.matches(build.job.getFullName())) {
+                return build.job;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Job findQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope) {
+        return findQueued(item, null, blockingJobs, scope);
+    }
+
+    @Override
+    public synchronized Job findQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                              QueueScanScope scope) {
+        if (scope.isDisabled()) {
+            return null;
+        }
+        for (QueuedItem queuedItem : queued) {
+            if (queuedItem.state.isScannedFor(scope) && !isSameItem(queuedItem.item, item)
+                    && (node == null || queuedItem.canRunOn(node)) && queuedItem.item.task instanceof Job) {
+                Job job = (Job) queuedItem.item.task;
+                if (blockingJobs.matches(job.getFullName())) {
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+        return countRunningOnNode(null, blockingJobs, limit);
+    }
+
+    @Override
+    public synchronized int countRunningOnNode(Node node, BlockingJobsMatcher blockingJobs, int limit) {
+        int count = 0;
+        for (int i = 0; i < running.size() && count < limit; i++) {
+            RunningBuild build = running.get(i);
+            if ((node == null || build.nodeName.equals(node.getNodeName()))
+                    && blockingJobs.matches(build.job.getFullName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int countQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope, int limit) {
+        return countQueuedForNode(item, null, blockingJobs, scope, limit);
+    }
+
+    @Override
+    public synchronized int countQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                               QueueScanScope scope, int limit) {
+        if (scope.isDisabled()) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < queued.size() && count < limit; i++) {
+            QueuedItem queuedItem = queued.get(i);
+            if (queuedItem.state.isScannedFor(scope) && !isSameItem(queuedItem.item, item)
+                    && (node == null || queuedItem.canRunOn(node)) && queuedItem.item.task instanceof Job
+                    && blockingJobs.matches(((Job) queuedItem.item.task).getFullName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isSameItem(Queue.Item queued, Queue.Item item) {
+        return item != null && (queued == item || queued.getId() == item.getId());
+    }
+
+    private static final class RunningBuild {
+        private final Job job;
+        private final String nodeName;
+
+        private RunningBuild(Job job, String nodeName) {
+            this.job = job;
+            this.nodeName = nodeName;
+        }
+    }
+
+    private static final class QueuedItem {
+        private final Queue.Item item;
+        private final QueueIndex.State state;
+        private final List<String> nodeNames;
+
+        private QueuedItem(Queue.Item item, QueueIndex.State state, String[] nodeNames) {
+            this.item = item;
+            this.state = state;
+            this.nodeNames = Arrays.asList(nodeNames);
+        }
+
+        private boolean canRunOn(Node node) {
+            return nodeNames.isEmpty() || nodeNames.contains(node.getNodeName());
+        }
+    }
+}
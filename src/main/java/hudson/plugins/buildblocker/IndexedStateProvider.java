@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
+
+/**
+ * Answers from the {@link RunningBuildsRegistry} and the {@link QueueIndex}, which are kept up
+ * to date by listeners. A check costs the lookup of the blocking jobs in the sorted job names,
+ * independent of the number of executors and queued items. A part that is disabled by its
+ * escape hatch is scanned live instead. This is the default provider.
+ */
+@Extension(ordinal = 100)
+public class IndexedStateProvider extends LiveStateProvider {
+
+    /**
+     * the registry of running builds, null to scan the executors instead
+     */
+    private final RunningBuildsRegistry runningBuilds;
+
+    /**
+     * the index of queued items, null to scan the queue instead
+     */
+    private final QueueIndex queuedItems;
+
+    public IndexedStateProvider() {
+        this(RunningBuildsRegistry.DISABLED ? null : RunningBuildsRegistry.get(),
+                QueueIndex.DISABLED ? null : QueueIndex.get());
+    }
+
+    /**
+     * @param runningBuilds the registry of running builds, null to scan the executors
+     * @param queuedItems   the index of queued items, null to scan the queue
+     */
+    public IndexedStateProvider(RunningBuildsRegistry runningBuilds, QueueIndex queuedItems) {
+        this.runningBuilds = runningBuilds;
+        this.queuedItems = queuedItems;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.IndexedStateProvider_DisplayName();
+    }
+
+    @Override
+    public Job findRunning(BlockingJobsMatcher blockingJobs) {
+        if (runningBuilds == null) {
+            return super.findRunning(blockingJobs);
+        }
+        return runningBuilds.findRunning(blockingJobs);
+    }
+
+    @Override
+    public Job findRunningOnNode(Node node, BlockingJobsMatcher blockingJobs) {
+        if (runningBuilds == null) {
+            return super.findRunningOnNode(node, blockingJobs);
+        }
+        return runningBuilds.findRunningOnNode(node.getNodeName(), blockingJobs);
+    }
+
+    @Override
+    public Job findQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope) {
+        if (queuedItems == null) {
+            return super.findQueued(item, blockingJobs, scope);
+        }
+        return queuedItems.findQueued(item, blockingJobs, scope);
+    }
+
+    @Override
+    public Job findQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                 QueueScanScope scope) {
+        if (queuedItems == null) {
+            return super.findQueuedForNode(item, node, blockingJobs, scope);
+        }
+        return queuedItems.findQueuedForNode(item, node, blockingJobs, scope);
+    }
+
+    @Override
+    public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+        if (runningBuilds == null) {
+            return super.countRunning(blockingJobs, limit);
+        }
+        return runningBuilds.countRunning(blockingJobs, limit);
+    }
+
+    @Override
+    public int countRunningOnNode(Node node, BlockingJobsMatcher blockingJobs, int limit) {
+        if (runningBuilds == null) {
+            return super.countRunningOnNode(node, blockingJobs, limit);
+        }
+        return runningBuilds.countRunningOnNode(node.getNodeName(), blockingJobs, limit);
+    }
+
+    @Override
+    public int countQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope, int limit) {
+        if (queuedItems == null) {
+            return super.countQueued(item, blockingJobs, scope, limit);
+        }
+        return queuedItems.countQueued(item, blockingJobs, scope, limit);
+    }
+
+    @Override
+    public int countQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs, QueueScanScope scope,
+                                  int limit) {
+        if (queuedItems == null) {
+            return super.countQueuedForNode(item, node, blockingJobs, scope, limit);
+        }
+        return queuedItems.countQueuedForNode(item, node, blockingJobs, scope, limit);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the label membership of the nodes, used to select the queued items that could
+ * run on a node without evaluating their label expressions again for every blocking check.
+ * <p/>
+ * Every node gets a small integer id. For every label, two bit sets over these ids record
+ * for which nodes the label expression was evaluated and which of them it contains. The
+ * whole cache is dropped when the node list or the node configuration changes.
+ */
+public final class LabelMembershipCache {
+
+    private static final LabelMembershipCache INSTANCE = new LabelMembershipCache();
+
+    private volatile Generation generation = new Generation();
+
+    //default scope for testability
+    LabelMembershipCache() {
+    }
+
+    /**
+     * @return the cache used by the dispatcher
+     */
+    public static LabelMembershipCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if the given item could run on the given node according to its assigned label.
+     * Items without an assigned label can run on every node that is not reserved for tied jobs.
+     *
+     * @param item the queued item
+     * @param node the node
+     * @return true if the node matches the assigned label of the item
+     */
+    public boolean canRunOn(Queue.Item item, Node node) {
+        Label label = item.getAssignedLabel();
+        if (label == null) {
+            return node.getMode() == Node.Mode.NORMAL;
+        }
+        return contains(label, node);
+    }
+
+    /**
+     * Cached version of {@link Label#contains(Node)}.
+     *
+     * @param label the label expression
+     * @param node  the node
+     * @return true if the label contains the node
+     */
+    public boolean contains(Label label, Node node) {
+        Generation current = generation;
+        return current.membership(label).contains(current.idOf(node), label, node);
+    }
+
+    /**
+     * Same check as {@link #canRunOn(Queue.Item, Node)}, without caching.
+     *
+     * @param item the queued item
+     * @param node the node
+     * @return true if the node matches the assigned label of the item
+     */
+    public static boolean canRunOnUncached(Queue.Item item, Node node) {
+        Label label = item.getAssignedLabel();
+        if (label == null) {
+            return node.getMode() == Node.Mode.NORMAL;
+        }
+        return label.contains(node);
+    }
+
+    /**
+     * Drops all cached memberships, e.g. because nodes or their labels changed.
+     */
+    public void invalidate() {
+        generation = new Generation();
+    }
+
+    /**
+     * The node ids and label memberships valid for one configuration of the nodes.
+     */
+    private static final class Generation {
+        private final ConcurrentMap<String, Integer> nodeIds = new ConcurrentHashMap<String, Integer>();
+        private final ConcurrentMap<Label, Membership> memberships = new ConcurrentHashMap<Label, Membership>();
+
+        private int idOf(Node node) {
+            String nodeName = node.getNodeName();
+            Integer id = nodeIds.get(nodeName);
+            if (id == null) {
+                synchronized (this) {
+                    id = nodeIds.get(nodeName);
+                    if (id == null) {
+                        id = nodeIds.size();
+                        nodeIds.put(nodeName, id);
+                    }
+                }
+            }
+            return id;
+        }
+
+        private Membership membership(Label label) {
+            Membership membership = memberships.get(label);
+            if (membership == null) {
+                membership = new Membership();
+                Membership existing = memberships.putIfAbsent(label, membership);
+                if (existing != null) {
+                    membership = existing;
+                }
+            }
+            return membership;
+        }
+    }
+
+    /**
+     * The nodes a label was evaluated for and the nodes it contains, as bit sets over node ids.
+     */
+    private static final class Membership {
+        private final BitSet evaluated = new BitSet();
+        private final BitSet members = new BitSet();
+
+        private synchronized boolean contains(int nodeId, Label label, Node node) {
+            if (!evaluated.get(nodeId)) {
+                members.set(nodeId, label.contains(node));
+                evaluated.set(nodeId);
+            }
+            return members.get(nodeId);
+        }
+    }
+
+    /**
+     * Drops the cache when nodes are added, removed, renamed or reconfigured.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            get().invalidate();
+        }
+    }
+
+    /**
+     * Drops the cache when a node or the master configuration, including its labels, is saved.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Node) {
+                get().invalidate();
+            }
+        }
+    }
+}
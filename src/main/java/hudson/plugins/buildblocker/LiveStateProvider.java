@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixRun;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scans the executors of all computers and the items of the queue of the running Jenkins for
+ * every check. Needs no bookkeeping, but the cost of a check grows with the executors and the
+ * queue.
+ */
+@Extension
+public class LiveStateProvider extends StateProvider {
+
+    @Override
+    public String getDisplayName() {
+        return Messages.LiveStateProvider_DisplayName();
+    }
+
+    @Override
+    public Job findRunning(BlockingJobsMatcher blockingJobs) {
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            Job job = findRunning(computer, blockingJobs);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Job findRunningOnNode(Node node, BlockingJobsMatcher blockingJobs) {
+        Computer computer = node.toComputer();
+        return computer != null ? findRunning(computer, blockingJobs) : null;
+    }
+
+    @Override
+    public Job findQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope) {
+        if (scope.isDisabled()) {
+            return null;
+        }
+        Queue queue = Jenkins.getInstance().getQueue();
+        if (scope.isBuildable()) {
+            return findQueued(item, queue.getBuildableItems(), blockingJobs);
+        }
+        return findQueued(item, queue.getItems(), null, blockingJobs);
+    }
+
+    @Override
+    public Job findQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                 QueueScanScope scope) {
+        if (scope.isDisabled()) {
+            return null;
+        }
+        Queue queue = Jenkins.getInstance().getQueue();
+        if (scope.isBuildable()) {
+            return findQueued(item, queue.getBuildableItems(node.toComputer()), blockingJobs);
+        }
+        return findQueued(item, queue.getItems(), node, blockingJobs);
+    }
+
+    @Override
+    public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+        int count = 0;
+        Set<Object> counted = new HashSet<Object>();
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            count += countRunning(computer, blockingJobs, counted, limit - count);
+            if (count >= limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int countRunningOnNode(Node node, BlockingJobsMatcher blockingJobs, int limit) {
+        Computer computer = node.toComputer();
+        return computer != null ? countRunning(computer, blockingJobs, new HashSet<Object>(), limit) : 0;
+    }
+
+    @Override
+    public int countQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope, int limit) {
+        if (scope.isDisabled()) {
+            return 0;
+        }
+        Queue queue = Jenkins.getInstance().getQueue();
+        if (scope.isBuildable()) {
+            List<Queue.BuildableItem> buildableItems = queue.getBuildableItems();
+            return countQueued(item, buildableItems.toArray(new Queue.Item[buildableItems.size()]), null,
+                    blockingJobs, limit);
+        }
+        return countQueued(item, queue.getItems(), null, blockingJobs, limit);
+    }
+
+    @Override
+    public int countQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs, QueueScanScope scope,
+                                  int limit) {
+        if (scope.isDisabled()) {
+            return 0;
+        }
+        Queue queue = Jenkins.getInstance().getQueue();
+        if (scope.isBuildable()) {
+            List<Queue.BuildableItem> buildableItems = queue.getBuildableItems(node.toComputer());
+            return countQueued(item, buildableItems.toArray(new Queue.Item[buildableItems.size()]), null,
+                    blockingJobs, limit);
+        }
+        return countQueued(item, queue.getItems(), node, blockingJobs, limit);
+    }
+
+    /**
+     * @param counted the builds counted so far, a matrix build counts once for all its configurations
+     */
+    private int countRunning(Computer computer, BlockingJobsMatcher blockingJobs, Set<Object> counted, int limit) {
+        int count = 0;
+        List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+        executors.addAll(computer.getOneOffExecutors());
+        for (int i = 0; i < executors.size() && count < limit; i++) {
+            Executor executor = executors.get(i);
+            if (findRunning(executor, blockingJobs) != null && counted.add(buildOf(executor))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the build occupying the busy executor, the matrix build for its configuration runs
+     */
+    private static Object buildOf(Executor executor) {
+        Queue.Executable executable = executor.getCurrentExecutable();
+        if (executable instanceof MatrixRun) {
+            MatrixBuild parentBuild = ((MatrixRun) executable).getParentBuild();
+            if (parentBuild != null) {
+                return parentBuild;
+            }
+        }
+        return executable != null ? executable : executor;
+    }
+
+    /**
+     * @param node the node the queued items have to be able to run on, null for all queued items
+     */
+    private int countQueued(Queue.Item item, Queue.Item[] queuedItems, Node node,
+                            BlockingJobsMatcher blockingJobs, int limit) {
+        int count = 0;
+        for (int i = 0; i < queuedItems.length && count < limit; i++) {
+            Queue.Item queuedItem = queuedItems[i];
+            if ((node == null || LabelMembershipCache.canRunOnUncached(queuedItem, node))
+                    && match(item, queuedItem, blockingJobs) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param blockingJobs the blocking jobs
+     * @param fullName     the full name of a running or queued job
+     * @return true if the blocking jobs match the job
+     */
+    boolean matches(BlockingJobsMatcher blockingJobs, String fullName) {
+        return blockingJobs.matches(fullName);
+    }
+
+    private Job findRunning(Computer computer, BlockingJobsMatcher blockingJobs) {
+        Job job = findRunning(computer.getExecutors(), blockingJobs);
+        if (job == null) {
+            job = findRunning(computer.getOneOffExecutors(), blockingJobs);
+        }
+        return job;
+    }
+
+    private Job findRunning(List<? extends Executor> executors, BlockingJobsMatcher blockingJobs) {
+        for (int i = 0; i < executors.size(); i++) {
+            Job job = findRunning(executors.get(i), blockingJobs);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private Job findRunning(Executor executor, BlockingJobsMatcher blockingJobs) {
+        if (executor.isBusy()) {
+            Queue.Task task = executor.getCurrentWorkUnit().work.getOwnerTask();
+
+            if (task instanceof MatrixConfiguration) {
+                task = ((MatrixConfiguration) task).getParent();
+            }
+
+            if (task instanceof Job) {
+                Job job = (Job) task;
+                if (matches(blockingJobs, job.getFullName())) {
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Job findQueued(Queue.Item item, List<? extends Queue.Item> queuedItems,
+                           BlockingJobsMatcher blockingJobs) {
+        for (int i = 0; i < queuedItems.size(); i++) {
+            Job job = match(item, queuedItems.get(i), blockingJobs);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param node the node the queued items have to be able to run on, null for all queued items
+     */
+    private Job findQueued(Queue.Item item, Queue.Item[] queuedItems, Node node,
+                           BlockingJobsMatcher blockingJobs) {
+        for (Queue.Item queuedItem : queuedItems) {
+            if (node == null || LabelMembershipCache.canRunOnUncached(queuedItem, node)) {
+                Job job = match(item, queuedItem, blockingJobs);
+                if (job != null) {
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Job match(Queue.Item item, Queue.Item queuedItem, BlockingJobsMatcher blockingJobs) {
+        if (item != queuedItem && queuedItem.task instanceof Job) {
+            Job job = (Job) queuedItem.task;
+            if (matches(blockingJobs, job.getFullName())) {
+                return job;
+            }
+        }
+        return null;
+    }
+}
@@ -1,5 +1,5 @@
 package hudson.plugins.buildblocker;
 
 public interface MonitorFactory {
-    BlockingJobsMonitor build(String blockingJobs);
+    BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs);
 }
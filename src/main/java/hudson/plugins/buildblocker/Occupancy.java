@@ -0,0 +1,457 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Weighted occupancy of named resources by the builds of the jobs claiming them, counted on all
+ * nodes and per node.
+ * <p/>
+ * A build holds its claims from the moment its queue item is handed to an executor until the
+ * build is finalized. The weights are summed per name as the holders come and go, so the usage
+ * of a name is a lookup, independent of the number of jobs claiming it. Items handed to an
+ * executor have not chosen their node in the queue events yet, they are counted on every node
+ * until their build starts. The counters are fed by queue and run events and periodically
+ * verified against the executors.
+ */
+public abstract class Occupancy {
+
+    private static final Logger LOG = Logger.getLogger(Occupancy.class.getName());
+
+    /**
+     * the current holders of claims, keyed by their build, by the executor starting their build,
+     * or by the id of their pending queue item, guarded by this
+     */
+    private final Map<Object, Holder> holders = new HashMap<Object, Holder>();
+
+    /**
+     * usage by name, on all nodes, including pending items
+     */
+    private final ConcurrentMap<String, Integer> global = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * usage by node name and name, excluding pending items
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Integer>> nodes =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+
+    /**
+     * usage of pending items by name, counted on every node
+     */
+    private final ConcurrentMap<String, Integer> pending = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * number of changes of the counters
+     */
+    private volatile long events;
+
+    /**
+     * @return the counters fed by the listeners
+     */
+    private static Occupancy[] all() {
+        return new Occupancy[]{ExclusionGroups.get(), ResourceBudgets.get()};
+    }
+
+    /**
+     * @return true if the counters are switched off by their escape hatch
+     */
+    abstract boolean isDisabled();
+
+    /**
+     * @param task the task of a queued item or the job of a build
+     * @return the claims of the task, never null
+     */
+    abstract Claims claimsOf(Object task);
+
+    /**
+     * Called while holding the lock after the usage of a name went down.
+     *
+     * @param name  the name
+     * @param usage the remaining usage on all nodes
+     */
+    void onReleased(String name, int usage) {
+    }
+
+    /**
+     * Called when a queued item left the queue.
+     *
+     * @param item the item
+     */
+    void onItemLeft(Queue.Item item) {
+    }
+
+    /**
+     * @param name a name
+     * @return the usage of the name on all nodes
+     */
+    public int count(String name) {
+        return get(global, name);
+    }
+
+    /**
+     * @param nodeName the name of the node, empty for the master
+     * @param name     a name
+     * @return the usage of the name on the given node, not counting pending items
+     */
+    public int countOnNode(String nodeName, String name) {
+        Map<String, Integer> counts = nodes.get(nodeName);
+        return counts != null ? get(counts, name) : 0;
+    }
+
+    /**
+     * @param nodeName the name of the node, empty for the master
+     * @param name     a name
+     * @return the usage of the name on the given node, including the items about to start on any node
+     */
+    int usageOnNode(String nodeName, String name) {
+        return countOnNode(nodeName, name) + get(pending, name);
+    }
+
+    /**
+     * @return the version of the counters, changed whenever a claim is taken or released
+     */
+    public long getVersion() {
+        return events;
+    }
+
+    /**
+     * A buildable item left that state: it is handed to an executor, or is blocked again, in which
+     * case the queue reports it entering that state right after.
+     */
+    synchronized void onPending(Queue.Item item) {
+        put(Integer.valueOf(item.getId()), new Holder(claimsOf(item.task), null));
+    }
+
+    /**
+     * The item is back in the queue, or left it without being started.
+     */
+    synchronized void onNotPending(Queue.Item item) {
+        remove(Integer.valueOf(item.getId()));
+    }
+
+    /**
+     * The item left the queue on the executor that starts it. The executor holds its claims
+     * until the build of the item is reported as started.
+     */
+    synchronized void onLeft(Queue.Item item, Executor executor) {
+        Holder holder = remove(Integer.valueOf(item.getId()));
+        if (holder != null && executor != null) {
+            put(executor, new Holder(holder.claims, nodeNameOf(executor)));
+        }
+    }
+
+    synchronized void onStarted(Run<?, ?> run, Executor executor) {
+        if (executor != null) {
+            remove(executor);
+        }
+        if (!holders.containsKey(run)) {
+            put(run, new Holder(claimsOf(run.getParent()), nodeNameOf(executor)));
+        }
+    }
+
+    synchronized void onFinalized(Run<?, ?> run) {
+        remove(run);
+    }
+
+    /**
+     * Replaces the holders on executors with the builds found on the given computers. Pending
+     * items are kept, executors that no longer start a build are dropped.
+     *
+     * @param computers the computers to scan
+     */
+    void reconcile(Computer[] computers) {
+        Map<Object, Holder> scanned = new HashMap<Object, Holder>();
+        for (Computer computer : computers) {
+            List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor : executors) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof Run && ((Run<?, ?>) executable).isBuilding()) {
+                    Claims claims = claimsOf(((Run<?, ?>) executable).getParent());
+                    if (!claims.isEmpty()) {
+                        scanned.put(executable, new Holder(claims, computer.getName()));
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            for (Iterator<Map.Entry<Object, Holder>> it = holders.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Object, Holder> entry = it.next();
+                Object key = entry.getKey();
+                boolean starting = key instanceof Executor && ((Executor) key).getCurrentWorkUnit() != null;
+                if (!(key instanceof Integer) && !starting && !scanned.containsKey(key)) {
+                    if (LOG.isLoggable(FINE)) {
+                        LOG.logp(FINE, getClass().getName(), "reconcile", "releasing claims of " + key
+                                + " no longer running");
+                    }
+                    it.remove();
+                    release(entry.getValue());
+                }
+            }
+            for (Map.Entry<Object, Holder> entry : scanned.entrySet()) {
+                if (!holders.containsKey(entry.getKey())) {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void put(Object key, Holder holder) {
+        if (holder.claims.isEmpty()) {
+            return;
+        }
+        Holder previous = holders.put(key, holder);
+        if (previous != null) {
+            release(previous);
+        }
+        for (int i = 0; i < holder.claims.names.length; i++) {
+            String name = holder.claims.names[i];
+            int weight = holder.claims.weights[i];
+            add(global, name, weight);
+            if (holder.nodeName == null) {
+                add(pending, name, weight);
+            } else {
+                ConcurrentMap<String, Integer> counts = nodes.get(holder.nodeName);
+                if (counts == null) {
+                    counts = new ConcurrentHashMap<String, Integer>();
+                    nodes.put(holder.nodeName, counts);
+                }
+                add(counts, name, weight);
+            }
+        }
+        events++;
+    }
+
+    private Holder remove(Object key) {
+        Holder holder = holders.remove(key);
+        if (holder != null) {
+            release(holder);
+        }
+        return holder;
+    }
+
+    private void release(Holder holder) {
+        for (int i = 0; i < holder.claims.names.length; i++) {
+            String name = holder.claims.names[i];
+            int weight = holder.claims.weights[i];
+            if (holder.nodeName == null) {
+                add(pending, name, -weight);
+            } else {
+                ConcurrentMap<String, Integer> counts = nodes.get(holder.nodeName);
+                if (counts != null) {
+                    add(counts, name, -weight);
+                }
+            }
+            onReleased(name, add(global, name, -weight));
+        }
+        events++;
+    }
+
+    /**
+     * @return the new usage of the name
+     */
+    private static int add(ConcurrentMap<String, Integer> counts, String name, int weight) {
+        int usage = get(counts, name) + weight;
+        if (usage <= 0) {
+            counts.remove(name);
+            return 0;
+        }
+        counts.put(name, usage);
+        return usage;
+    }
+
+    private static int get(Map<String, Integer> counts, String name) {
+        Integer usage = counts.get(name);
+        return usage != null ? usage : 0;
+    }
+
+    private static String nodeNameOf(Executor executor) {
+        if (executor == null) {
+            return null;
+        }
+        Computer computer = executor.getOwner();
+        return computer != null ? computer.getName() : null;
+    }
+
+    /**
+     * The names claimed by a job together with their weights.
+     */
+    static final class Claims {
+        static final Claims NONE = new Claims(new String[0], new int[0]);
+
+        private final String[] names;
+        private final int[] weights;
+
+        Claims(String[] names, int[] weights) {
+            this.names = names;
+            this.weights = weights;
+        }
+
+        boolean isEmpty() {
+            return names.length == 0;
+        }
+    }
+
+    /**
+     * The claims held by a build, an executor starting a build or a pending item.
+     */
+    private static final class Holder {
+        private final Claims claims;
+
+        /**
+         * the node the claims are held on, null for a pending item
+         */
+        private final String nodeName;
+
+        private Holder(Claims claims, String nodeName) {
+            this.claims = claims;
+            this.nodeName = nodeName;
+        }
+    }
+
+    /**
+     * Takes the claims of items handed to an executor and passes them on to their build.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeaveBuildable(Queue.BuildableItem bi) {
+            for (Occupancy occupancy : all()) {
+                if (!occupancy.isDisabled()) {
+                    occupancy.onPending(bi);
+                }
+            }
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            onNotPending(bi);
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            onNotPending(bi);
+        }
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            onNotPending(wi);
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            for (Occupancy occupancy : all()) {
+                if (occupancy.isDisabled()) {
+                    continue;
+                }
+                if (li.isCancelled()) {
+                    occupancy.onNotPending(li);
+                } else {
+                    occupancy.onLeft(li, Executor.currentExecutor());
+                }
+                occupancy.onItemLeft(li);
+            }
+        }
+
+        private static void onNotPending(Queue.Item item) {
+            for (Occupancy occupancy : all()) {
+                if (!occupancy.isDisabled()) {
+                    occupancy.onNotPending(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the claims from the starting executor to the build and releases them when it is finalized.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            for (Occupancy occupancy : all()) {
+                if (!occupancy.isDisabled()) {
+                    occupancy.onStarted(run, Executor.currentExecutor());
+                }
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            for (Occupancy occupancy : all()) {
+                if (!occupancy.isDisabled()) {
+                    occupancy.onFinalized(run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Periodically verifies the holders against the executors.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return;
+            }
+            for (Occupancy occupancy : all()) {
+                if (!occupancy.isDisabled()) {
+                    occupancy.reconcile(jenkins.getComputers());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Plugin wide index of the queued items, keyed by the full name of their job and
+ * tagged with their queue state.
+ * <p/>
+ * The index is maintained through {@link QueueListener} events, so queue scanning only
+ * looks at the distinct queued jobs instead of copying and walking the whole queue for
+ * every blocking check. It is periodically verified against {@link Queue#getItems()}.
+ * <p/>
+ * Blocking checks read an immutable {@link Snapshot} of the index, which is built at most
+ * once per version of the index instead of once per check.
+ */
+public final class QueueIndex {
+
+    private static final Logger LOG = Logger.getLogger(QueueIndex.class.getName());
+
+    /**
+     * Escape hatch to disable the index and fall back to scanning the queue.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(QueueIndex.class.getName() + ".disabled");
+
+    private static final QueueIndex INSTANCE = new QueueIndex(LabelMembershipCache.get());
+
+    /**
+     * The queue states an indexed item can be in.
+     */
+    public enum State {
+        WAITING, BLOCKED, BUILDABLE, PENDING;
+
+        /**
+         * @param scope the queue scan scope of a blocking configuration
+         * @return true if items in this state are considered by the given scope
+         */
+        public boolean isScannedFor(BuildBlockerProperty.QueueScanScope scope) {
+            if (scope.isAll()) {
+                return true;
+            }
+            // Queue#getBuildableItems() contains the pending items as well
+            return scope.isBuildable() && (this == BUILDABLE || this == PENDING);
+        }
+
+        static State of(Queue.Item item) {
+            if (item instanceof Queue.WaitingItem) {
+                return WAITING;
+            }
+            if (item instanceof Queue.BlockedItem) {
+                return BLOCKED;
+            }
+            if (item instanceof Queue.BuildableItem && ((Queue.BuildableItem) item).isPending()) {
+                return PENDING;
+            }
+            return BUILDABLE;
+        }
+    }
+
+    /**
+     * queued jobs by full name, guarded by this
+     */
+    private final NavigableMap<String, QueuedJob> jobs = new TreeMap<String, QueuedJob>();
+
+    /**
+     * full names of the indexed items by item id, guarded by this
+     */
+    private final Map<Long, String> fullNames = new HashMap<Long, String>();
+
+    /**
+     * the label membership of the nodes, used for checks on node level
+     */
+    private final LabelMembershipCache labels;
+
+    private volatile boolean initialized;
+
+    /**
+     * number of events applied so far, used to detect scans that overlapped with events
+     * and as version of the published snapshot
+     */
+    private volatile long events;
+
+    /**
+     * the immutable view of the index read by the blocking checks
+     */
+    private volatile Snapshot snapshot;
+
+    //default scope for testability
+    QueueIndex(LabelMembershipCache labels) {
+        this.labels = labels;
+        this.snapshot = new Snapshot(-1, new TreeMap<String, QueuedJob>(), labels);
+    }
+
+    /**
+     * @return the index used by the dispatcher
+     */
+    public static QueueIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the first job with a queued item other than the given one whose full name matches
+     * the given blocking jobs.
+     *
+     * @param item         the item the check is done for, never reported as its own blocker
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @return the queued job or null
+     */
+    public Job findQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, BuildBlockerProperty.QueueScanScope scope) {
+        return snapshot().findQueued(item, blockingJobs, scope);
+    }
+
+    /**
+     * Returns the first job with a queued item other than the given one whose full name matches
+     * the given blocking jobs and whose assigned label allows it to run on the given node.
+     *
+     * @param item         the item the check is done for, never reported as its own blocker
+     * @param node         the node the item is about to be started on
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @return the queued job or null
+     */
+    public Job findQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                 BuildBlockerProperty.QueueScanScope scope) {
+        return snapshot().findQueuedForNode(item, node, blockingJobs, scope);
+    }
+
+    /**
+     * Counts the queued items other than the given one of the jobs whose full names match the
+     * given blocking jobs.
+     *
+     * @param item         the item the check is done for, never counted
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @param limit        the count from which on counting stops
+     * @return the number of queued items, at least the limit if it was reached
+     */
+    public int countQueued(Queue.Item item, BlockingJobsMatcher blockingJobs,
+                           BuildBlockerProperty.QueueScanScope scope, int limit) {
+        return snapshot().countQueued(item, null, blockingJobs, scope, limit);
+    }
+
+    /**
+     * Counts the queued items other than the given one of the jobs whose full names match the
+     * given blocking jobs and whose assigned label allows them to run on the given node.
+     *
+     * @param item         the item the check is done for, never counted
+     * @param node         the node the item is about to be started on
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @param limit        the count from which on counting stops
+     * @return the number of queued items, at least the limit if it was reached
+     */
+    public int countQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                  BuildBlockerProperty.QueueScanScope scope, int limit) {
+        return snapshot().countQueued(item, node, blockingJobs, scope, limit);
+    }
+
+    /**
+     * @param fullName the full name of a job
+     * @param scope    the queue states to consider
+     * @return the number of queued items of this job in the given states
+     */
+    public int countQueued(String fullName, BuildBlockerProperty.QueueScanScope scope) {
+        return snapshot().countQueued(fullName, scope);
+    }
+
+    /**
+     * @return the version of the index, changed by every applied queue event
+     */
+    public long getVersion() {
+        return events;
+    }
+
+    /**
+     * Returns the immutable view of the queued items. The view is built once per version of the
+     * index and shared by all blocking checks until the next queue event.
+     *
+     * @return the current snapshot
+     */
+    public Snapshot snapshot() {
+        ensureInitialized();
+        Snapshot current = snapshot;
+        if (current.version != events) {
+            synchronized (this) {
+                current = snapshot;
+                if (current.version != events) {
+                    current = new Snapshot(events, jobs, labels);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    synchronized void onEnter(Queue.Item item, State state) {
+        if (!(item.task instanceof Job)) {
+            return;
+        }
+        Job job = (Job) item.task;
+        String fullName = job.getFullName();
+        Long id = Long.valueOf(item.getId());
+
+        String previous = fullNames.put(id, fullName);
+        if (previous != null && !previous.equals(fullName)) {
+            removeItem(previous, id);
+        }
+        QueuedJob queuedJob = jobs.get(fullName);
+        if (queuedJob == null) {
+            queuedJob = new QueuedJob(job);
+            jobs.put(fullName, queuedJob);
+        }
+        queuedJob.items.put(id, new QueuedItem(item, state));
+        events++;
+    }
+
+    /**
+     * Buildable items leave that state when they are handed to an executor. They stay in the
+     * queue as pending items until the executor starts them and the queue reports them as left.
+     *
+     * @param item the item that is no longer buildable
+     */
+    synchronized void onLeaveBuildable(Queue.BuildableItem item) {
+        String fullName = fullNames.get(Long.valueOf(item.getId()));
+        QueuedJob queuedJob = fullName != null ? jobs.get(fullName) : null;
+        if (queuedJob != null) {
+            Long id = Long.valueOf(item.getId());
+            QueuedItem queuedItem = queuedJob.items.get(id);
+            if (queuedItem != null && queuedItem.item == item) {
+                queuedJob.items.put(id, new QueuedItem(item, State.PENDING));
+                events++;
+            }
+        }
+    }
+
+    synchronized void onLeft(Queue.Item item) {
+        Long id = Long.valueOf(item.getId());
+        String fullName = fullNames.remove(id);
+        if (fullName != null) {
+            removeItem(fullName, id);
+            events++;
+        }
+    }
+
+    /**
+     * Replaces the content of the index with the given queue content. Differences to the event
+     * based state are logged, as they indicate missed events. A queue snapshot that overlapped
+     * with events is discarded.
+     *
+     * @param items       the items in the queue
+     * @param eventsBefore the number of events applied before the snapshot was taken
+     */
+    synchronized void reconcile(Queue.Item[] items, long eventsBefore) {
+        if (eventsBefore != events) {
+            LOG.logp(FINE, getClass().getName(), "reconcile", "queue changed while reconciling, retrying later");
+            return;
+        }
+
+        NavigableMap<String, QueuedJob> rebuilt = new TreeMap<String, QueuedJob>();
+        Map<Long, String> rebuiltFullNames = new HashMap<Long, String>();
+        for (Queue.Item item : items) {
+            if (item.task instanceof Job) {
+                Job job = (Job) item.task;
+                String fullName = job.getFullName();
+                QueuedJob queuedJob = rebuilt.get(fullName);
+                if (queuedJob == null) {
+                    queuedJob = new QueuedJob(job);
+                    rebuilt.put(fullName, queuedJob);
+                }
+                Long id = Long.valueOf(item.getId());
+                queuedJob.items.put(id, new QueuedItem(item, State.of(item)));
+                rebuiltFullNames.put(id, fullName);
+            }
+        }
+
+        if (initialized && !rebuiltFullNames.equals(fullNames)) {
+            LOG.logp(FINE, getClass().getName(), "reconcile", "index " + fullNames.values() + " differs from queue "
+                    + rebuiltFullNames.values() + ", repairing");
+        }
+
+        fullNames.clear();
+        fullNames.putAll(rebuiltFullNames);
+        jobs.clear();
+        jobs.putAll(rebuilt);
+        events++;
+        initialized = true;
+    }
+
+    /**
+     * Reconciles the index with the queue of the running Jenkins instance. The queue is read
+     * without holding the index lock, as queue events are fired while the queue lock is held.
+     */
+    void reconcile() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            long eventsBefore = events;
+            reconcile(jenkins.getQueue().getItems(), eventsBefore);
+        }
+    }
+
+    private void ensureInitialized() {
+        if (!initialized) {
+            reconcile();
+        }
+    }
+
+    private void removeItem(String fullName, Long id) {
+        QueuedJob queuedJob = jobs.get(fullName);
+        if (queuedJob != null) {
+            queuedJob.items.remove(id);
+            if (queuedJob.items.isEmpty()) {
+                jobs.remove(fullName);
+            }
+        }
+    }
+
+    /**
+     * Immutable view of the index at one version. Blocking checks done while the queue does
+     * not change all read the same view, so their decisions are consistent with each other.
+     * <p/>
+     * The filters of the checks do not depend on the checked item, so they are created once per
+     * scope and node and a check allocates nothing. Only if the first queued job found is the job
+     * of the checked item itself, the check is repeated excluding the item. The weights of the
+     * counts are created once per scope and node as well and get the checked item passed.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final NavigableMap<String, QueuedItems> jobs = new TreeMap<String, QueuedItems>();
+        private final LabelMembershipCache labels;
+        private final Map<BuildBlockerProperty.QueueScanScope, BlockingJobsMatcher.Filter<QueuedItems>> filters =
+                new EnumMap<BuildBlockerProperty.QueueScanScope, BlockingJobsMatcher.Filter<QueuedItems>>(
+                        BuildBlockerProperty.QueueScanScope.class);
+        private final Map<BuildBlockerProperty.QueueScanScope, ConcurrentMap<Node, BlockingJobsMatcher.Filter<QueuedItems>>> nodeFilters =
+                new EnumMap<BuildBlockerProperty.QueueScanScope, ConcurrentMap<Node, BlockingJobsMatcher.Filter<QueuedItems>>>(
+                        BuildBlockerProperty.QueueScanScope.class);
+        private final Map<BuildBlockerProperty.QueueScanScope, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>> weights =
+                new EnumMap<BuildBlockerProperty.QueueScanScope, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>>(
+                        BuildBlockerProperty.QueueScanScope.class);
+        private final Map<BuildBlockerProperty.QueueScanScope, ConcurrentMap<Node, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>>> nodeWeights =
+                new EnumMap<BuildBlockerProperty.QueueScanScope, ConcurrentMap<Node, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>>>(
+                        BuildBlockerProperty.QueueScanScope.class);
+
+        private Snapshot(long version, NavigableMap<String, QueuedJob> jobs, LabelMembershipCache labels) {
+            this.version = version;
+            this.labels = labels;
+            for (Map.Entry<String, QueuedJob> entry : jobs.entrySet()) {
+                QueuedJob queuedJob = entry.getValue();
+                this.jobs.put(entry.getKey(), new QueuedItems(queuedJob.job,
+                        queuedJob.items.values().toArray(new QueuedItem[queuedJob.items.size()])));
+            }
+            for (final BuildBlockerProperty.QueueScanScope scope : BuildBlockerProperty.QueueScanScope.values()) {
+                filters.put(scope, new BlockingJobsMatcher.Filter<QueuedItems>() {
+                    public boolean accept(QueuedItems queuedItems) {
+                        return queuedItems.hasItemOtherThan(null, scope);
+                    }
+                });
+                nodeFilters.put(scope, new ConcurrentHashMap<Node, BlockingJobsMatcher.Filter<QueuedItems>>());
+                weights.put(scope, newWeight(scope, null));
+                nodeWeights.put(scope, new ConcurrentHashMap<Node, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>>());
+            }
+        }
+
+        /**
+         * @return the version of the index this view was built from
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @see QueueIndex#findQueued(Queue.Item, BlockingJobsMatcher, BuildBlockerProperty.QueueScanScope)
+         */
+        public Job findQueued(final Queue.Item item, BlockingJobsMatcher blockingJobs,
+                              final BuildBlockerProperty.QueueScanScope scope) {
+            if (blockingJobs.isEmpty() || scope.isDisabled()) {
+                return null;
+            }
+            QueuedItems queuedItems = blockingJobs.findFirst(jobs, filters.get(scope));
+            if (queuedItems != null && !queuedItems.hasItemOtherThan(item, scope)) {
+                queuedItems = blockingJobs.findFirst(jobs, new BlockingJobsMatcher.Filter<QueuedItems>() {
+                    public boolean accept(QueuedItems queuedItems) {
+                        return queuedItems.hasItemOtherThan(item, scope);
+                    }
+                });
+            }
+            return queuedItems != null ? queuedItems.job : null;
+        }
+
+        /**
+         * @see QueueIndex#findQueuedForNode(Queue.Item, Node, BlockingJobsMatcher, BuildBlockerProperty.QueueScanScope)
+         */
+        public Job findQueuedForNode(final Queue.Item item, final Node node, BlockingJobsMatcher blockingJobs,
+                                     final BuildBlockerProperty.QueueScanScope scope) {
+            if (blockingJobs.isEmpty() || scope.isDisabled()) {
+                return null;
+            }
+            QueuedItems queuedItems = blockingJobs.findFirst(jobs, nodeFilter(scope, node));
+            if (queuedItems != null && !queuedItems.hasItemOtherThan(item, scope, node, labels)) {
+                queuedItems = blockingJobs.findFirst(jobs, new BlockingJobsMatcher.Filter<QueuedItems>() {
+                    public boolean accept(QueuedItems queuedItems) {
+                        return queuedItems.hasItemOtherThan(item, scope, node, labels);
+                    }
+                });
+            }
+            return queuedItems != null ? queuedItems.job : null;
+        }
+
+        private BlockingJobsMatcher.Filter<QueuedItems> nodeFilter(final BuildBlockerProperty.QueueScanScope scope,
+                                                                   final Node node) {
+            ConcurrentMap<Node, BlockingJobsMatcher.Filter<QueuedItems>> byNode = nodeFilters.get(scope);
+            BlockingJobsMatcher.Filter<QueuedItems> filter = byNode.get(node);
+            if (filter == null) {
+                filter = new BlockingJobsMatcher.Filter<QueuedItems>() {
+                    public boolean accept(QueuedItems queuedItems) {
+                        return queuedItems.hasItemOtherThan(null, scope, node, labels);
+                    }
+                };
+                byNode.put(node, filter);
+            }
+            return filter;
+        }
+
+        /**
+         * @param node the node the items have to be able to run on, null for all items
+         * @see QueueIndex#countQueued(Queue.Item, BlockingJobsMatcher, BuildBlockerProperty.QueueScanScope, int)
+         * @see QueueIndex#countQueuedForNode(Queue.Item, Node, BlockingJobsMatcher, BuildBlockerProperty.QueueScanScope, int)
+         */
+        public int countQueued(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                               BuildBlockerProperty.QueueScanScope scope, int limit) {
+            if (scope.isDisabled()) {
+                return 0;
+            }
+            return blockingJobs.count(jobs, weight(scope, node), item, limit);
+        }
+
+        private BlockingJobsMatcher.Weight<QueuedItems, Queue.Item> weight(BuildBlockerProperty.QueueScanScope scope,
+                                                                            Node node) {
+            if (node == null) {
+                return weights.get(scope);
+            }
+            ConcurrentMap<Node, BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>> byNode = nodeWeights.get(scope);
+            BlockingJobsMatcher.Weight<QueuedItems, Queue.Item> weight = byNode.get(node);
+            if (weight == null) {
+                weight = newWeight(scope, node);
+                byNode.put(node, weight);
+            }
+            return weight;
+        }
+
+        private BlockingJobsMatcher.Weight<QueuedItems, Queue.Item> newWeight(
+                final BuildBlockerProperty.QueueScanScope scope, final Node node) {
+            return new BlockingJobsMatcher.Weight<QueuedItems, Queue.Item>() {
+                public int of(QueuedItems queuedItems, Queue.Item item) {
+                    return queuedItems.countOtherThan(item, scope, node, labels);
+                }
+            };
+        }
+
+        /**
+         * @see QueueIndex#countQueued(String, BuildBlockerProperty.QueueScanScope)
+         */
+        public int countQueued(String fullName, BuildBlockerProperty.QueueScanScope scope) {
+            QueuedItems queuedItems = jobs.get(fullName);
+            return queuedItems != null ? queuedItems.count(scope) : 0;
+        }
+    }
+
+    /**
+     * A job together with its queued items by item id, changed while holding the index lock.
+     */
+    private static final class QueuedJob {
+        private final Job job;
+        private final Map<Long, QueuedItem> items = new LinkedHashMap<Long, QueuedItem>();
+
+        private QueuedJob(Job job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * A job together with its queued items as part of a snapshot.
+     */
+    private static final class QueuedItems {
+        private final Job job;
+        private final QueuedItem[] items;
+
+        private QueuedItems(Job job, QueuedItem[] items) {
+            this.job = job;
+            this.items = items;
+        }
+
+        private boolean hasItemOtherThan(Queue.Item item, BuildBlockerProperty.QueueScanScope scope) {
+            for (QueuedItem queuedItem : items) {
+                if (queuedItem.state.isScannedFor(scope) && !isSameItem(queuedItem.item, item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasItemOtherThan(Queue.Item item, BuildBlockerProperty.QueueScanScope scope, Node node,
+                                         LabelMembershipCache labels) {
+            for (QueuedItem queuedItem : items) {
+                if (queuedItem.state.isScannedFor(scope) && !isSameItem(queuedItem.item, item)
+                        && labels.canRunOn(queuedItem.item, node)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isSameItem(Queue.Item queued, Queue.Item item) {
+            return item != null && (queued == item || queued.getId() == item.getId());
+        }
+
+        private int countOtherThan(Queue.Item item, BuildBlockerProperty.QueueScanScope scope, Node node,
+                                   LabelMembershipCache labels) {
+            int count = 0;
+            for (QueuedItem queuedItem : items) {
+                if (queuedItem.state.isScannedFor(scope) && !isSameItem(queuedItem.item, item)
+                        && (node == null || labels.canRunOn(queuedItem.item, node))) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int count(BuildBlockerProperty.QueueScanScope scope) {
+            int count = 0;
+            for (QueuedItem queuedItem : items) {
+                if (queuedItem.state.isScannedFor(scope)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A queued item together with its queue state.
+     */
+    private static final class QueuedItem {
+        private final Queue.Item item;
+        private final State state;
+
+        private QueuedItem(Queue.Item item, State state) {
+            this.item = item;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Feeds the index with queue events.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            if (!DISABLED) {
+                get().onEnter(wi, State.WAITING);
+            }
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            if (!DISABLED) {
+                get().onEnter(bi, State.BLOCKED);
+            }
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            if (!DISABLED) {
+                get().onEnter(bi, State.BUILDABLE);
+            }
+        }
+
+        @Override
+        public void onLeaveBuildable(Queue.BuildableItem bi) {
+            if (!DISABLED) {
+                get().onLeaveBuildable(bi);
+            }
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (!DISABLED) {
+                get().onLeft(li);
+            }
+        }
+    }
+
+    /**
+     * Periodically verifies the index against the queue.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            if (!DISABLED) {
+                get().reconcile();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Util;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+
+/**
+ * Cause of blockage naming the resource whose capacity the item would exceed, or which is left
+ * to waiting items with a smaller weight. An item whose weight alone exceeds the capacity never
+ * fits, which is told apart from waiting for the capacity.
+ */
+public class ResourceBudgetCause extends CauseOfBlockage {
+
+    private final long inQueueSince;
+
+    private final String resource;
+
+    private final int weight;
+
+    private final int usage;
+
+    private final int capacity;
+
+    private final boolean leftToSmaller;
+
+    public ResourceBudgetCause(Queue.Item item, String resource, int weight, int usage, int capacity,
+                               boolean leftToSmaller) {
+        this.inQueueSince = item.getInQueueSince();
+        this.resource = resource;
+        this.weight = weight;
+        this.usage = usage;
+        this.capacity = capacity;
+        this.leftToSmaller = leftToSmaller;
+    }
+
+    /**
+     * @return the name of the resource blocking the item
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return true if the item would fit, but the resource is left to a waiting item with a smaller weight
+     */
+    public boolean isLeftToSmaller() {
+        return leftToSmaller;
+    }
+
+    /**
+     * @return true if the weight of the item alone exceeds the capacity, so the item never fits
+     */
+    public boolean isAboveCapacity() {
+        return weight > capacity;
+    }
+
+    @Override
+    public String getShortDescription() {
+        String waiting = Util.getTimeSpanString(System.currentTimeMillis() - inQueueSince);
+        if (isAboveCapacity()) {
+            return Messages.ResourceWeightAboveCapacity(waiting, resource, weight, capacity);
+        }
+        return leftToSmaller ? Messages.ResourceLeftToSmallerBuilds(waiting, resource)
+                : Messages.ResourceBudgetExceeded(waiting, resource, usage, capacity);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Weighted budgets of named resources with a capacity set in the global configuration.
+ * <p/>
+ * Jobs declare the weight a build of theirs puts on resources in their {@link BuildBlockerProperty}.
+ * The weights of the running builds are summed per resource on all nodes and per node as
+ * described in {@link Occupancy}. A build is admitted while the usage plus its own weight stays
+ * within the capacity, on all nodes or per node according to the block level of the job.
+ * <p/>
+ * Items blocked on global level wait per resource ordered by weight. When capacity is released,
+ * an item is only admitted if no waiting item with a smaller weight would fit, so the freed
+ * capacity goes to the smallest builds that fit first. An item leaves the waiting items as soon
+ * as the budgets admit it, also if something else still blocks it. A waiting item that is not
+ * checked again within {@link #RECHECK_PERIOD} after capacity was released, e.g. because an
+ * exclusion group or the queue itself holds it, no longer holds back others until it is.
+ */
+public final class ResourceBudgets extends Occupancy {
+
+    private static final Logger LOG = Logger.getLogger(ResourceBudgets.class.getName());
+
+    /**
+     * Escape hatch to disable the resource budgets.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(ResourceBudgets.class.getName() + ".disabled");
+
+    /**
+     * time in milliseconds a waiting item has after a release to be checked again before the released
+     * capacity is given to larger items
+     */
+    public static long RECHECK_PERIOD = Long.getLong(ResourceBudgets.class.getName() + ".recheckPeriod", 1000);
+
+    private static final ResourceBudgets INSTANCE = new ResourceBudgets();
+
+    private volatile Map<String, Integer> capacities = Collections.emptyMap();
+
+    /**
+     * the items blocked on global level by resource, smallest weight first
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListSet<Waiter>> waiting =
+            new ConcurrentHashMap<String, ConcurrentSkipListSet<Waiter>>();
+
+    /**
+     * the resource each blocked item waits for, by item id
+     */
+    private final ConcurrentMap<Integer, Waiter> waiters = new ConcurrentHashMap<Integer, Waiter>();
+
+    /**
+     * resources that blocked items on node level since they were last released
+     */
+    private final ConcurrentMap<String, Boolean> contended = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * the last release of each resource waited for
+     */
+    private final ConcurrentMap<String, Release> releases = new ConcurrentHashMap<String, Release>();
+
+    /**
+     * number of releases of resources waited for
+     */
+    private final AtomicLong releaseCount = new AtomicLong();
+
+    //default scope for testability
+    ResourceBudgets() {
+    }
+
+    /**
+     * @return the budgets used by the dispatcher
+     */
+    public static ResourceBudgets get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the capacities of the resources. Resources without a capacity are not limited.
+     *
+     * @param capacities line feed or comma separated capacities, as {@code name: capacity}
+     */
+    public void configure(String capacities) {
+        this.capacities = parse(capacities);
+    }
+
+    /**
+     * @return the capacities by resource name
+     */
+    public Map<String, Integer> getCapacities() {
+        return capacities;
+    }
+
+    /**
+     * Parses line feed or comma separated entries of the form {@code name: number}. The number
+     * defaults to one, entries with an invalid number are ignored.
+     *
+     * @param text the entries, may be null
+     * @return the numbers by name in configuration order, never null
+     */
+    public static Map<String, Integer> parse(String text) {
+        if (StringUtils.isBlank(text)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> parsed = new LinkedHashMap<String, Integer>();
+        for (String entry : text.split("[,\\n]")) {
+            String name = StringUtils.substringBefore(entry, ":").trim();
+            String number = entry.indexOf(':') >= 0 ? StringUtils.substringAfter(entry, ":").trim() : "1";
+            if (name.length() == 0) {
+                continue;
+            }
+            try {
+                int value = Integer.parseInt(number);
+                if (value > 0) {
+                    parsed.put(name, value);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            LOG.logp(WARNING, ResourceBudgets.class.getName(), "parse", "Ignoring invalid resource entry ["
+                    + entry.trim() + "]");
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Returns the resource weights of the given job. Matrix configurations are part of the build
+     * of their parent, which already holds the resources.
+     *
+     * @param task the task of a queued item or the job of a build
+     * @return the weights by resource name, never null
+     */
+    public static Map<String, Integer> weightsOf(Object task) {
+        if (!(task instanceof Job) || task instanceof MatrixConfiguration) {
+            return Collections.emptyMap();
+        }
+        BuildBlockerProperty property = ((Job<?, ?>) task).getProperty(BuildBlockerProperty.class);
+        return property != null && property.isUseBuildBlocker() ? property.getResourceWeights()
+                : Collections.<String, Integer>emptyMap();
+    }
+
+    /**
+     * Checks whether the weights of the given item fit into the capacities on all nodes, and
+     * whether a waiting item with a smaller weight should be admitted first.
+     *
+     * @param item    the item to be admitted
+     * @param weights the resource weights of the item
+     * @return the cause of blockage, null if the item is admitted
+     */
+    public CauseOfBlockage check(Queue.Item item, Map<String, Integer> weights) {
+        return check(item, weights, System.currentTimeMillis());
+    }
+
+    //default scope for testability
+    CauseOfBlockage check(Queue.Item item, Map<String, Integer> weights, long now) {
+        Integer id = Integer.valueOf(item.getId());
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            String resource = entry.getKey();
+            Integer capacity = capacities.get(resource);
+            if (capacity == null) {
+                continue;
+            }
+            int weight = entry.getValue();
+            int usage = count(resource);
+            if (weight > capacity) {
+                // never fits, so it does not wait in line for the capacity either
+                stopWaiting(id);
+                return new ResourceBudgetCause(item, resource, weight, usage, capacity, false);
+            }
+            if (usage + weight > capacity) {
+                enqueue(id, resource, weight);
+                return new ResourceBudgetCause(item, resource, weight, usage, capacity, false);
+            }
+            Waiter smaller = smallestOtherThan(resource, id, now);
+            if (smaller != null && smaller.weight < weight && usage + smaller.weight <= capacity) {
+                if (LOG.isLoggable(FINE)) {
+                    LOG.logp(FINE, getClass().getName(), "check", "leaving " + resource + " to item "
+                            + smaller.id + " needing " + smaller.weight + " instead of " + weight);
+                }
+                enqueue(id, resource, weight);
+                return new ResourceBudgetCause(item, resource, weight, usage, capacity, true);
+            }
+        }
+        stopWaiting(id);
+        return null;
+    }
+
+    /**
+     * Checks whether the weights of the given item fit into the capacities on the given node,
+     * counting the items about to start on any node as well.
+     *
+     * @param item     the item to be admitted
+     * @param nodeName the name of the node, empty for the master
+     * @param weights  the resource weights of the item
+     * @return the cause of blockage, null if the item is admitted
+     */
+    public CauseOfBlockage checkOnNode(Queue.Item item, String nodeName, Map<String, Integer> weights) {
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            String resource = entry.getKey();
+            Integer capacity = capacities.get(resource);
+            if (capacity == null) {
+                continue;
+            }
+            int weight = entry.getValue();
+            int usage = usageOnNode(nodeName, resource);
+            if (weight > capacity) {
+                return new ResourceBudgetCause(item, resource, weight, usage, capacity, false);
+            }
+            if (usage + weight > capacity) {
+                contended.put(resource, Boolean.TRUE);
+                return new ResourceBudgetCause(item, resource, weight, usage, capacity, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param resource the name of a resource
+     * @return the number of items blocked on global level waiting for the resource
+     */
+    public int countWaiting(String resource) {
+        ConcurrentSkipListSet<Waiter> waiters = waiting.get(resource);
+        return waiters != null ? waiters.size() : 0;
+    }
+
+    /**
+     * Returns the smallest item waiting for the resource that was checked since its last release,
+     * or may still be checked in time.
+     */
+    private Waiter smallestOtherThan(String resource, Integer id, long now) {
+        ConcurrentSkipListSet<Waiter> resourceWaiters = waiting.get(resource);
+        if (resourceWaiters == null) {
+            return null;
+        }
+        Release release = releases.get(resource);
+        boolean recheckPending = release == null || now - release.time < RECHECK_PERIOD;
+        for (Waiter waiter : resourceWaiters) {
+            if (waiter.id != id.intValue() && (recheckPending || waiter.checked >= release.count)) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    private void enqueue(Integer id, String resource, int weight) {
+        Waiter waiter = new Waiter(resource, weight, id);
+        waiter.checked = releaseCount.get();
+        Waiter previous = waiters.get(id);
+        if (previous != null && previous.equals(waiter)) {
+            previous.checked = waiter.checked;
+            return;
+        }
+        previous = waiters.put(id, waiter);
+        if (previous != null) {
+            dequeue(previous);
+        }
+        ConcurrentSkipListSet<Waiter> resourceWaiters = waiting.get(resource);
+        if (resourceWaiters == null) {
+            resourceWaiters = new ConcurrentSkipListSet<Waiter>();
+            ConcurrentSkipListSet<Waiter> existing = waiting.putIfAbsent(resource, resourceWaiters);
+            if (existing != null) {
+                resourceWaiters = existing;
+            }
+        }
+        resourceWaiters.add(waiter);
+    }
+
+    private void stopWaiting(Integer id) {
+        Waiter waiter = waiters.remove(id);
+        if (waiter != null) {
+            dequeue(waiter);
+        }
+    }
+
+    private void dequeue(Waiter waiter) {
+        ConcurrentSkipListSet<Waiter> resourceWaiters = waiting.get(waiter.resource);
+        if (resourceWaiters != null) {
+            resourceWaiters.remove(waiter);
+        }
+    }
+
+    @Override
+    boolean isDisabled() {
+        return DISABLED;
+    }
+
+    @Override
+    Claims claimsOf(Object task) {
+        Map<String, Integer> weights = weightsOf(task);
+        if (weights.isEmpty()) {
+            return Claims.NONE;
+        }
+        String[] names = new String[weights.size()];
+        int[] values = new int[weights.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            names[i] = entry.getKey();
+            values[i++] = entry.getValue();
+        }
+        return new Claims(names, values);
+    }
+
+    @Override
+    void onReleased(String resource, int usage) {
+        boolean waited = countWaiting(resource) > 0;
+        if (waited) {
+            releases.put(resource, new Release(releaseCount.incrementAndGet(), System.currentTimeMillis()));
+        }
+        if ((contended.remove(resource) != null || waited) && !UnblockingScheduler.DISABLED) {
+            UnblockingScheduler.get().requestMaintenance();
+        }
+    }
+
+    @Override
+    void onItemLeft(Queue.Item item) {
+        stopWaiting(Integer.valueOf(item.getId()));
+    }
+
+    /**
+     * A release of capacity of a resource items were waiting for.
+     */
+    private static final class Release {
+        private final long count;
+        private final long time;
+
+        private Release(long count, long time) {
+            this.count = count;
+            this.time = time;
+        }
+    }
+
+    /**
+     * An item blocked on global level waiting for a resource, ordered by weight, then by item id.
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+        private final String resource;
+        private final int weight;
+        private final int id;
+
+        /**
+         * the number of releases when the item was last checked
+         */
+        private volatile long checked;
+
+        private Waiter(String resource, int weight, int id) {
+            this.resource = resource;
+            this.weight = weight;
+            this.id = id;
+        }
+
+        public int compareTo(Waiter o) {
+            if (weight != o.weight) {
+                return weight < o.weight ? -1 : 1;
+            }
+            return id < o.id ? -1 : id == o.id ? 0 : 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Waiter)) {
+                return false;
+            }
+            Waiter that = (Waiter) o;
+            return resource.equals(that.resource) && weight == that.weight && id == that.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + weight;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixRun;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.WorkUnit;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Plugin wide registry of the jobs that are currently building.
+ * <p/>
+ * The registry is fed by {@link RunListener} events and keeps a multiset of the full names
+ * of the running jobs, with matrix configurations already folded to their parent project.
+ * A matrix build counts as one build, however many of its configurations are running.
+ * Blocking checks on global level thereby only look at the distinct running jobs instead of
+ * walking every executor of every computer. The same multiset is kept per node, so that
+ * checks on node level are answered with a lookup of the node name. Both are published as
+ * an immutable {@link Snapshot}, built at most once per version of the registry.
+ * <p/>
+ * Flyweight tasks of this Jenkins version (matrix parents, pipeline runs) are builds as well
+ * and are reported through the same events. Work that occupies an executor without being a
+ * build of its own (e.g. a pipeline {@code node} block) is registered on the node when it
+ * leaves the queue and dropped as soon as its executor moved on. The executor scan of
+ * {@link BlockingJobsMonitor} remains available and is used periodically, and whenever the
+ * node list changes, to verify and repair the registry.
+ */
+public final class RunningBuildsRegistry {
+
+    private static final Logger LOG = Logger.getLogger(RunningBuildsRegistry.class.getName());
+
+    /**
+     * Escape hatch to disable the registry and fall back to scanning all executors.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(RunningBuildsRegistry.class.getName() + ".disabled");
+
+    private static final RunningBuildsRegistry INSTANCE = new RunningBuildsRegistry();
+
+    /**
+     * the known executions, keyed by their build or, for work without a build, by their work unit
+     */
+    private final Map<Object, Execution> executions = new HashMap<Object, Execution>();
+
+    /**
+     * the executions of work without a build, which have to be checked for completion, replaced on change
+     */
+    private volatile Execution[] workUnits = new Execution[0];
+
+    private volatile boolean initialized;
+
+    /**
+     * number of events applied so far, used to detect scans that overlapped with events
+     * and as version of the published snapshot
+     */
+    private volatile long events;
+
+    /**
+     * the immutable view of the registry read by the blocking checks
+     */
+    private volatile Snapshot snapshot = new Snapshot(-1, Collections.<Execution>emptyList());
+
+    //default scope for testability
+    RunningBuildsRegistry() {
+    }
+
+    /**
+     * @return the registry used by the dispatcher
+     */
+    public static RunningBuildsRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the first running job whose full name matches the given blocking jobs.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @return the running job or null
+     */
+    public Job findRunning(BlockingJobsMatcher blockingJobs) {
+        return snapshot().findRunning(blockingJobs);
+    }
+
+    /**
+     * Returns the first job running on the given node whose full name matches the given blocking jobs.
+     *
+     * @param nodeName     the name of the node, empty for the master
+     * @param blockingJobs the compiled blocking jobs
+     * @return the running job or null
+     */
+    public Job findRunningOnNode(String nodeName, BlockingJobsMatcher blockingJobs) {
+        checkWorkUnits();
+        return snapshot().findRunningOnNode(nodeName, blockingJobs);
+    }
+
+    /**
+     * @param fullName the full name of a job
+     * @return the number of running builds of this job
+     */
+    public int countRunning(String fullName) {
+        return snapshot().countRunning(fullName);
+    }
+
+    /**
+     * Counts the running builds of the jobs whose full names match the given blocking jobs.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @param limit        the count from which on counting stops
+     * @return the number of running builds, at least the limit if it was reached
+     */
+    public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+        return snapshot().countRunning(blockingJobs, limit);
+    }
+
+    /**
+     * Counts the builds running on the given node of the jobs whose full names match the given blocking jobs.
+     *
+     * @param nodeName     the name of the node, empty for the master
+     * @param blockingJobs the compiled blocking jobs
+     * @param limit        the count from which on counting stops
+     * @return the number of running builds, at least the limit if it was reached
+     */
+    public int countRunningOnNode(String nodeName, BlockingJobsMatcher blockingJobs, int limit) {
+        checkWorkUnits();
+        return snapshot().countRunningOnNode(nodeName, blockingJobs, limit);
+    }
+
+    /**
+     * Returns the version of the registry, changed by every build or work that starts or ends.
+     * Work without a build is not reported when it ends, so finished work is removed first.
+     * Only the work without a build is looked at, and the lock is only taken if some of it finished.
+     *
+     * @return the version of the registry
+     */
+    public long getVersion() {
+        checkWorkUnits();
+        return events;
+    }
+
+    /**
+     * Returns the immutable view of the running jobs. The view is built once per version of the
+     * registry and shared by all blocking checks until the next build starts or ends.
+     *
+     * @return the current snapshot
+     */
+    public Snapshot snapshot() {
+        ensureInitialized();
+        Snapshot current = snapshot;
+        if (current.version != events) {
+            synchronized (this) {
+                current = snapshot;
+                if (current.version != events) {
+                    current = new Snapshot(events, executions.values());
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    void onStarted(Run<?, ?> run, Executor executor) {
+        Job job = foldJob(run.getParent());
+        if (job == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!executions.containsKey(run)) {
+                add(run, new Execution(job, topLevelBuildOf(run), nodeNameOf(executor), null, null));
+            }
+        }
+    }
+
+    void onFinalized(Run<?, ?> run) {
+        synchronized (this) {
+            if (executions.remove(run) != null) {
+                events++;
+            }
+        }
+    }
+
+    /**
+     * Registers work that occupies an executor of a node without being a build of its own.
+     *
+     * @param executor the executor that starts the work
+     * @param workUnit the work unit
+     */
+    void onWorkUnitStarted(Executor executor, WorkUnit workUnit) {
+        if (workUnit.work instanceof Job) {
+            // builds are reported by the run listener
+            return;
+        }
+        Job job = foldJob(workUnit.work.getOwnerTask());
+        if (job == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!executions.containsKey(workUnit)) {
+                add(workUnit, new Execution(job, workUnit, nodeNameOf(executor), executor, workUnit));
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of the registry with the work found on the executors of the given computers.
+     * Differences to the event based state are logged, as they indicate missed events.
+     * <p/>
+     * The executors are scanned without holding the registry lock, as events are fired while Jenkins
+     * holds its own locks. A scan that overlapped with events is discarded and retried.
+     *
+     * @param computers the computers to scan
+     */
+    void reconcile(Computer[] computers) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long eventsBefore = events;
+            Map<Object, Execution> scanned = scan(computers);
+            synchronized (this) {
+                if (eventsBefore == events) {
+                    apply(scanned);
+                    return;
+                }
+            }
+        }
+        LOG.logp(FINE, getClass().getName(), "reconcile", "registry too busy to reconcile, retrying later");
+    }
+
+    private Map<Object, Execution> scan(Computer[] computers) {
+        Map<Object, Execution> scanned = new HashMap<Object, Execution>();
+        for (Computer computer : computers) {
+            List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor : executors) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                WorkUnit workUnit = executor.getCurrentWorkUnit();
+                if (executable instanceof Run) {
+                    Run<?, ?> run = (Run<?, ?>) executable;
+                    Job job = foldJob(run.getParent());
+                    if (job != null && run.isBuilding()) {
+                        scanned.put(run, new Execution(job, topLevelBuildOf(run), computer.getName(), null, null));
+                    }
+                } else if (workUnit != null && !(workUnit.work instanceof Job)) {
+                    Job job = foldJob(workUnit.work.getOwnerTask());
+                    if (job != null) {
+                        scanned.put(workUnit, new Execution(job, workUnit, computer.getName(), executor, workUnit));
+                    }
+                }
+            }
+        }
+        return scanned;
+    }
+
+    private void apply(Map<Object, Execution> scanned) {
+        if (initialized && !scanned.equals(executions)) {
+            LOG.logp(FINE, getClass().getName(), "reconcile", "registry " + executions.values() + " differs from executors "
+                    + scanned.values() + ", repairing");
+        }
+
+        executions.clear();
+        workUnits = new Execution[0];
+        for (Map.Entry<Object, Execution> entry : scanned.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+        events++;
+        initialized = true;
+    }
+
+    private void ensureInitialized() {
+        if (!initialized) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                reconcile(jenkins.getComputers());
+            }
+        }
+    }
+
+    private void checkWorkUnits() {
+        Execution[] current = workUnits;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].isFinished()) {
+                removeFinishedWorkUnits();
+                return;
+            }
+        }
+    }
+
+    private synchronized void removeFinishedWorkUnits() {
+        List<Execution> running = new ArrayList<Execution>(workUnits.length);
+        for (Execution execution : workUnits) {
+            if (!execution.isFinished()) {
+                running.add(execution);
+            } else if (executions.remove(execution.workUnit) != null) {
+                events++;
+            }
+        }
+        workUnits = running.toArray(new Execution[running.size()]);
+    }
+
+    private void add(Object key, Execution execution) {
+        events++;
+        Execution previous = executions.put(key, execution);
+        if (execution.workUnit != null && previous == null) {
+            Execution[] current = workUnits;
+            Execution[] next = new Execution[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = execution;
+            workUnits = next;
+        }
+    }
+
+    private static String nodeNameOf(Executor executor) {
+        if (executor == null) {
+            return null;
+        }
+        Computer computer = executor.getOwner();
+        return computer != null ? computer.getName() : null;
+    }
+
+    private static Job foldJob(Object task) {
+        if (task instanceof MatrixConfiguration) {
+            task = ((MatrixConfiguration) task).getParent();
+        }
+        return task instanceof Job ? (Job) task : null;
+    }
+
+    /**
+     * @return the matrix build of a configuration run, the run itself otherwise
+     */
+    private static Object topLevelBuildOf(Run<?, ?> run) {
+        if (run instanceof MatrixRun) {
+            MatrixBuild parentBuild = ((MatrixRun) run).getParentBuild();
+            if (parentBuild != null) {
+                return parentBuild;
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Immutable view of the registry at one version. Blocking checks done while no build starts
+     * or ends all read the same view, so their decisions are consistent with each other.
+     */
+    public static final class Snapshot {
+        private final long version;
+
+        /**
+         * the builds on all nodes by full name
+         */
+        private final NavigableMap<String, RunningJob> global = new TreeMap<String, RunningJob>();
+
+        /**
+         * the builds and the work without a build per node name, by full name
+         */
+        private final Map<String, NavigableMap<String, RunningJob>> nodes = new HashMap<String, NavigableMap<String, RunningJob>>();
+
+        private Snapshot(long version, Collection<Execution> executions) {
+            this.version = version;
+            // the builds counted so far, globally and per node name
+            Set<Object> globalBuilds = new HashSet<Object>();
+            Map<String, Set<Object>> nodeBuilds = new HashMap<String, Set<Object>>();
+            for (Execution execution : executions) {
+                if (execution.workUnit == null) {
+                    add(global, globalBuilds, execution);
+                }
+                if (execution.nodeName != null) {
+                    NavigableMap<String, RunningJob> runningJobs = nodes.get(execution.nodeName);
+                    if (runningJobs == null) {
+                        runningJobs = new TreeMap<String, RunningJob>();
+                        nodes.put(execution.nodeName, runningJobs);
+                        nodeBuilds.put(execution.nodeName, new HashSet<Object>());
+                    }
+                    add(runningJobs, nodeBuilds.get(execution.nodeName), execution);
+                }
+            }
+        }
+
+        private static void add(NavigableMap<String, RunningJob> runningJobs, Set<Object> builds,
+                                Execution execution) {
+            if (!builds.add(execution.build)) {
+                // another configuration of a matrix build that is already counted
+                return;
+            }
+            RunningJob runningJob = runningJobs.get(execution.fullName);
+            if (runningJob == null) {
+                runningJobs.put(execution.fullName, new RunningJob(execution.job));
+            } else {
+                runningJob.count++;
+            }
+        }
+
+        /**
+         * @return the version of the registry this view was built from
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @see RunningBuildsRegistry#findRunning(BlockingJobsMatcher)
+         */
+        public Job findRunning(BlockingJobsMatcher blockingJobs) {
+            return find(global, blockingJobs);
+        }
+
+        /**
+         * @see RunningBuildsRegistry#findRunningOnNode(String, BlockingJobsMatcher)
+         */
+        public Job findRunningOnNode(String nodeName, BlockingJobsMatcher blockingJobs) {
+            NavigableMap<String, RunningJob> runningJobs = nodes.get(nodeName);
+            return runningJobs != null ? find(runningJobs, blockingJobs) : null;
+        }
+
+        /**
+         * @see RunningBuildsRegistry#countRunning(String)
+         */
+        public int countRunning(String fullName) {
+            RunningJob runningJob = global.get(fullName);
+            return runningJob != null ? runningJob.count : 0;
+        }
+
+        /**
+         * @see RunningBuildsRegistry#countRunning(BlockingJobsMatcher, int)
+         */
+        public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+            return blockingJobs.count(global, RunningJob.COUNT, null, limit);
+        }
+
+        /**
+         * @see RunningBuildsRegistry#countRunningOnNode(String, BlockingJobsMatcher, int)
+         */
+        public int countRunningOnNode(String nodeName, BlockingJobsMatcher blockingJobs, int limit) {
+            NavigableMap<String, RunningJob> runningJobs = nodes.get(nodeName);
+            return runningJobs != null ? blockingJobs.count(runningJobs, RunningJob.COUNT, null, limit) : 0;
+        }
+
+        private static Job find(NavigableMap<String, RunningJob> runningJobs, BlockingJobsMatcher blockingJobs) {
+            if (blockingJobs.isEmpty()) {
+                return null;
+            }
+            RunningJob runningJob = blockingJobs.findFirst(runningJobs, BlockingJobsMatcher.Filter.ALL);
+            return runningJob != null ? runningJob.job : null;
+        }
+    }
+
+    /**
+     * A running job together with the number of its running builds.
+     */
+    private static final class RunningJob {
+        private static final BlockingJobsMatcher.Weight<RunningJob, Object> COUNT =
+                new BlockingJobsMatcher.Weight<RunningJob, Object>() {
+            public int of(RunningJob runningJob, Object unused) {
+                return runningJob.count;
+            }
+        };
+
+        private final Job job;
+        private int count = 1;
+
+        private RunningJob(Job job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * A build or work unit of a job on a node.
+     */
+    private static final class Execution {
+        private final Job job;
+        /**
+         * the build counted for the job, shared by the configuration runs of a matrix build
+         */
+        private final Object build;
+        private final String fullName;
+        private final String nodeName;
+        private final Executor executor;
+        private final WorkUnit workUnit;
+
+        private Execution(Job job, Object build, String nodeName, Executor executor, WorkUnit workUnit) {
+            this.job = job;
+            this.build = build;
+            this.fullName = job.getFullName();
+            this.nodeName = nodeName;
+            this.executor = executor;
+            this.workUnit = workUnit;
+        }
+
+        private boolean isFinished() {
+            return workUnit != null && executor.getCurrentWorkUnit() != workUnit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Execution)) {
+                return false;
+            }
+            Execution that = (Execution) o;
+            return fullName.equals(that.fullName)
+                    && (nodeName == null ? that.nodeName == null : nodeName.equals(that.nodeName));
+        }
+
+        @Override
+        public int hashCode() {
+            return fullName.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return nodeName == null ? fullName : fullName + "@" + nodeName;
+        }
+    }
+
+    /**
+     * Feeds the registry with build start and end events.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            if (!DISABLED) {
+                get().onStarted(run, Executor.currentExecutor());
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            if (!DISABLED) {
+                get().onFinalized(run);
+            }
+        }
+    }
+
+    /**
+     * Feeds the registry with work that starts on an executor without being a build of its own.
+     * The queue reports items leaving for execution on the thread of the executor taking them.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            if (DISABLED || item.isCancelled()) {
+                return;
+            }
+            Executor executor = Executor.currentExecutor();
+            if (executor != null && executor.getCurrentWorkUnit() != null) {
+                get().onWorkUnitStarted(executor, executor.getCurrentWorkUnit());
+            }
+        }
+    }
+
+    /**
+     * Repairs the registry when nodes are added, removed or renamed.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (!DISABLED && jenkins != null) {
+                get().reconcile(jenkins.getComputers());
+            }
+        }
+    }
+
+    /**
+     * Periodically verifies the registry against a full executor scan.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (!DISABLED && jenkins != null) {
+                get().reconcile(jenkins.getComputers());
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Compares the configured blocking engine with the legacy one before relying on it.
+ * <p/>
+ * In shadow mode the dispatcher answers every check with the legacy engine, which matches every
+ * line of the blocking jobs of the job configuration on its own with {@link String#matches}
+ * against a live scan of the executors and the queue, as the plugin did before the lines were
+ * compiled. On
+ * a sample of the checks it runs the configured engine as well (compiled matcher, state provider,
+ * blocker graph, decision cache and background evaluation) and reports here. Checks that block in one engine
+ * but not in the other are logged with both answers, the time of both engines is recorded side
+ * by side.
+ * <p/>
+ * Every n-th check is sampled, so the sampling is deterministic and costs a counter increment.
+ * The sample rate is limited to {@link #MAX_SAMPLE_PERCENT}, and no check is sampled while the
+ * configured engine used more than {@link #MAX_OVERHEAD_PERCENT} of the time of the legacy
+ * engine, so the shadow evaluation only adds a bounded share to the time the queue is locked.
+ * <p/>
+ * The mode is off by default and enabled in the {@link BuildBlockerConfiguration}.
+ */
+public final class ShadowEvaluator {
+
+    private static final Logger LOG = Logger.getLogger(ShadowEvaluator.class.getName());
+
+    /**
+     * the maximal percentage of the checks the configured engine runs on
+     */
+    public static final int MAX_SAMPLE_PERCENT = 25;
+
+    /**
+     * the maximal time of the configured engine in percent of the time of the legacy engine
+     */
+    public static final int MAX_OVERHEAD_PERCENT = 25;
+
+    /**
+     * the number of divergences kept for inspection
+     */
+    static final int KEPT_DIVERGENCES = 20;
+
+    private static final ShadowEvaluator INSTANCE = new ShadowEvaluator();
+
+    /**
+     * the legacy engine scans the executors and the queue and matches line by line
+     */
+    private final StateProvider legacy = new LegacyStateProvider();
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong legacyNanos = new AtomicLong();
+
+    private final AtomicLong samples = new AtomicLong();
+
+    /**
+     * time of the legacy engine on the sampled checks only, to compare with the configured engine
+     */
+    private final AtomicLong sampledLegacyNanos = new AtomicLong();
+
+    private final AtomicLong candidateNanos = new AtomicLong();
+
+    private final AtomicLong skippedForOverhead = new AtomicLong();
+
+    private final AtomicLong divergences = new AtomicLong();
+
+    private final AtomicLong differentBlockers = new AtomicLong();
+
+    private final LinkedList<String> lastDivergences = new LinkedList<String>();
+
+    private volatile boolean enabled;
+
+    private volatile int samplePeriod = Integer.MAX_VALUE;
+
+    //default scope for testability
+    ShadowEvaluator() {
+    }
+
+    /**
+     * @return the evaluator used by the dispatcher
+     */
+    public static ShadowEvaluator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the global configuration.
+     *
+     * @param enabled       true to answer with the legacy engine and compare the configured one on a sample
+     * @param samplePercent the percentage of the checks to sample, limited to {@link #MAX_SAMPLE_PERCENT}
+     */
+    public void configure(boolean enabled, int samplePercent) {
+        int percent = Math.max(0, Math.min(samplePercent, MAX_SAMPLE_PERCENT));
+        this.samplePeriod = percent > 0 ? Math.round(100f / percent) : Integer.MAX_VALUE;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if the dispatcher answers with the legacy engine
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param blockingJobs the blocking jobs of the job configuration
+     * @return a monitor of the legacy engine
+     */
+    public BlockingJobsMonitor legacyMonitor(BlockingJobsMatcher blockingJobs) {
+        return new BlockingJobsMonitor(blockingJobs, legacy);
+    }
+
+    /**
+     * Decides whether the configured engine runs on the next check as well.
+     *
+     * @return true to run the configured engine
+     */
+    public boolean sample() {
+        if (checks.incrementAndGet() % samplePeriod != 0) {
+            return false;
+        }
+        if (candidateNanos.get() * 100 > legacyNanos.get() * MAX_OVERHEAD_PERCENT) {
+            skippedForOverhead.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the answers of both engines for one check.
+     *
+     * @param item          the checked item
+     * @param node          the node for checks on node level, null for checks on global level
+     * @param legacy        the answer of the legacy engine
+     * @param legacyTime    the time of the legacy engine in nanoseconds
+     * @param candidate     the answer of the configured engine, ignored if it did not run
+     * @param candidateTime the time of the configured engine in nanoseconds, negative if it did not run
+     */
+    public void record(Queue.Item item, Node node, CauseOfBlockage legacy, long legacyTime,
+                       CauseOfBlockage candidate, long candidateTime) {
+        legacyNanos.addAndGet(legacyTime);
+        if (candidateTime < 0) {
+            return;
+        }
+        samples.incrementAndGet();
+        sampledLegacyNanos.addAndGet(legacyTime);
+        candidateNanos.addAndGet(candidateTime);
+        if ((legacy == null) != (candidate == null)) {
+            divergences.incrementAndGet();
+            String divergence = "item " + item + (node != null ? " on node " + node.getNodeName() : "")
+                    + ": legacy " + describe(legacy) + ", configured " + describe(candidate);
+            LOG.logp(WARNING, getClass().getName(), "record", "blocking engines diverge for " + divergence);
+            synchronized (lastDivergences) {
+                lastDivergences.addFirst(divergence);
+                if (lastDivergences.size() > KEPT_DIVERGENCES) {
+                    lastDivergences.removeLast();
+                }
+            }
+        } else if (legacy != null && blockingJob(legacy) != blockingJob(candidate)) {
+            // both block, the engines may just find the blocking jobs in a different order
+            differentBlockers.incrementAndGet();
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "record", "blocking engines report different blockers for "
+                        + item + ": legacy " + describe(legacy) + ", configured " + describe(candidate));
+            }
+        }
+    }
+
+    /**
+     * @return the number of checks answered in shadow mode
+     */
+    public long getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * @return the number of checks the configured engine ran on
+     */
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * @return the number of checks not sampled because the configured engine exceeded its share of the time
+     */
+    public long getSkippedForOverhead() {
+        return skippedForOverhead.get();
+    }
+
+    /**
+     * @return the number of sampled checks blocked by one engine only
+     */
+    public long getDivergences() {
+        return divergences.get();
+    }
+
+    /**
+     * @return the number of sampled checks blocked by both engines, but by different jobs
+     */
+    public long getDifferentBlockers() {
+        return differentBlockers.get();
+    }
+
+    /**
+     * @return the time of the legacy engine in nanoseconds on all checks
+     */
+    public long getLegacyNanos() {
+        return legacyNanos.get();
+    }
+
+    /**
+     * @return the time of the legacy engine in nanoseconds on the sampled checks
+     */
+    public long getSampledLegacyNanos() {
+        return sampledLegacyNanos.get();
+    }
+
+    /**
+     * @return the time of the configured engine in nanoseconds on the sampled checks
+     */
+    public long getCandidateNanos() {
+        return candidateNanos.get();
+    }
+
+    /**
+     * @return the last divergences, latest first
+     */
+    public List<String> getLastDivergences() {
+        synchronized (lastDivergences) {
+            return new ArrayList<String>(lastDivergences);
+        }
+    }
+
+    private static Job blockingJob(CauseOfBlockage cause) {
+        return cause instanceof BlockingJobCause ? ((BlockingJobCause) cause).getBlockingJob() : null;
+    }
+
+    private static String describe(CauseOfBlockage cause) {
+        if (cause == null) {
+            return "not blocked";
+        }
+        Job job = blockingJob(cause);
+        return "blocked by " + (job != null ? job.getFullName() : cause.getShortDescription());
+    }
+
+    /**
+     * Scans the executors and the queue like the live provider, but matches the names without the
+     * compiled matcher: every line is matched on its own, so differences of the literal set, the
+     * prefix and suffix trees and the merged alternation show up as divergences.
+     */
+    //default scope for testability
+    static final class LegacyStateProvider extends LiveStateProvider {
+        @Override
+        boolean matches(BlockingJobsMatcher blockingJobs, String fullName) {
+            for (Pattern pattern : blockingJobs.getPatterns()) {
+                if (fullName.matches(pattern.pattern())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Supplies the running builds and queued items the blocking jobs are matched against.
+ * <p/>
+ * {@link BlockingJobsMonitor} only asks for the first running or queued job matching the
+ * compiled blocking jobs, where the state comes from is up to the provider: the
+ * {@link LiveStateProvider} scans the executors and the queue of Jenkins, the
+ * {@link IndexedStateProvider} answers from the {@link RunningBuildsRegistry} and the
+ * {@link QueueIndex}, and the {@link InMemoryStateProvider} holds a state set up by tests and
+ * benchmarks. Plugins may contribute other providers, the one used by the
+ * {@link DefaultMonitorFactory} is selected in the {@link BuildBlockerConfiguration}.
+ */
+public abstract class StateProvider implements ExtensionPoint {
+
+    private static final Logger LOG = Logger.getLogger(StateProvider.class.getName());
+
+    /**
+     * id of the provider selected in the global configuration, null for the default
+     */
+    private static volatile String selected;
+
+    /**
+     * the selected provider, resolved on first use
+     */
+    private static volatile StateProvider current;
+
+    /**
+     * @return the id the provider is selected by in the global configuration
+     */
+    public String getId() {
+        return getClass().getName();
+    }
+
+    /**
+     * @return the name shown when selecting the provider
+     */
+    public abstract String getDisplayName();
+
+    /**
+     * Returns the first job with a running build whose full name matches the given blocking jobs.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @return the running job or null
+     */
+    public abstract Job findRunning(BlockingJobsMatcher blockingJobs);
+
+    /**
+     * Returns the first job with a build running on the given node whose full name matches the
+     * given blocking jobs.
+     *
+     * @param node         the node
+     * @param blockingJobs the compiled blocking jobs
+     * @return the running job or null
+     */
+    public abstract Job findRunningOnNode(Node node, BlockingJobsMatcher blockingJobs);
+
+    /**
+     * Returns the first job with a queued item other than the given one whose full name matches
+     * the given blocking jobs.
+     *
+     * @param item         the item the check is done for, never reported as its own blocker
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @return the queued job or null
+     */
+    public abstract Job findQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope);
+
+    /**
+     * Returns the first job with a queued item other than the given one whose full name matches
+     * the given blocking jobs and which could run on the given node.
+     *
+     * @param item         the item the check is done for, never reported as its own blocker
+     * @param node         the node the item is about to be started on
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @return the queued job or null
+     */
+    public abstract Job findQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs,
+                                          QueueScanScope scope);
+
+    /**
+     * Counts the running builds of the jobs whose full names match the given blocking jobs. The
+     * default implementation cannot count and reports the limit as soon as one build is found, so
+     * limited lines of providers without counters block on the first hit.
+     *
+     * @param blockingJobs the compiled blocking jobs
+     * @param limit        the count from which on counting may stop
+     * @return the number of running builds, at least the limit if it was reached
+     */
+    public int countRunning(BlockingJobsMatcher blockingJobs, int limit) {
+        return findRunning(blockingJobs) != null ? limit : 0;
+    }
+
+    /**
+     * Counts the builds running on the given node of the jobs whose full names match the given
+     * blocking jobs.
+     *
+     * @param node         the node
+     * @param blockingJobs the compiled blocking jobs
+     * @param limit        the count from which on counting may stop
+     * @return the number of running builds, at least the limit if it was reached
+     * @see #countRunning(BlockingJobsMatcher, int)
+     */
+    public int countRunningOnNode(Node node, BlockingJobsMatcher blockingJobs, int limit) {
+        return findRunningOnNode(node, blockingJobs) != null ? limit : 0;
+    }
+
+    /**
+     * Counts the queued items other than the given one of the jobs whose full names match the
+     * given blocking jobs.
+     *
+     * @param item         the item the check is done for, never counted
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @param limit        the count from which on counting may stop
+     * @return the number of queued items, at least the limit if it was reached
+     * @see #countRunning(BlockingJobsMatcher, int)
+     */
+    public int countQueued(Queue.Item item, BlockingJobsMatcher blockingJobs, QueueScanScope scope, int limit) {
+        return findQueued(item, blockingJobs, scope) != null ? limit : 0;
+    }
+
+    /**
+     * Counts the queued items other than the given one of the jobs whose full names match the
+     * given blocking jobs and which could run on the given node.
+     *
+     * @param item         the item the check is done for, never counted
+     * @param node         the node the item is about to be started on
+     * @param blockingJobs the compiled blocking jobs
+     * @param scope        the queue states to consider
+     * @param limit        the count from which on counting may stop
+     * @return the number of queued items, at least the limit if it was reached
+     * @see #countRunning(BlockingJobsMatcher, int)
+     */
+    public int countQueuedForNode(Queue.Item item, Node node, BlockingJobsMatcher blockingJobs, QueueScanScope scope,
+                                  int limit) {
+        return findQueuedForNode(item, node, blockingJobs, scope) != null ? limit : 0;
+    }
+
+    /**
+     * @return all registered providers
+     */
+    public static ExtensionList<StateProvider> all() {
+        return Jenkins.getInstance().getExtensionList(StateProvider.class);
+    }
+
+    /**
+     * @return the provider selected in the global configuration
+     */
+    public static StateProvider get() {
+        StateProvider provider = current;
+        if (provider == null) {
+            provider = find(selected);
+            current = provider;
+        }
+        return provider;
+    }
+
+    /**
+     * Selects the provider returned by {@link #get()}.
+     *
+     * @param id the id of the provider, null for the default
+     */
+    static void select(String id) {
+        selected = id;
+        current = null;
+    }
+
+    private static StateProvider find(String id) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return new IndexedStateProvider();
+        }
+        ExtensionList<StateProvider> providers = jenkins.getExtensionList(StateProvider.class);
+        if (id != null) {
+            for (StateProvider provider : providers) {
+                if (id.equals(provider.getId())) {
+                    return provider;
+                }
+            }
+            LOG.logp(WARNING, StateProvider.class.getName(), "find", "state provider " + id
+                    + " is not installed, using the default");
+        }
+        IndexedStateProvider provider = providers.get(IndexedStateProvider.class);
+        return provider != null ? provider : new IndexedStateProvider();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Triggers the queue maintenance as soon as a job that blocks queued items finishes a build or
+ * leaves the queue, instead of waiting for the next periodic maintenance.
+ * <p/>
+ * The dispatcher reports which job blocks which item. When such a job is gone, one maintenance
+ * is scheduled after a short delay, so a burst of finishing builds results in a single
+ * maintenance.
+ */
+public final class UnblockingScheduler {
+
+    private static final Logger LOG = Logger.getLogger(UnblockingScheduler.class.getName());
+
+    /**
+     * Escape hatch to disable the scheduler and rely on the periodic queue maintenance.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(UnblockingScheduler.class.getName() + ".disabled");
+
+    /**
+     * delay in milliseconds to collect finishing builds into one maintenance
+     */
+    public static long DELAY = Long.getLong(UnblockingScheduler.class.getName() + ".delay", 100);
+
+    private static final UnblockingScheduler INSTANCE = new UnblockingScheduler();
+
+    /**
+     * ids of the blocked queue items by full name of their blocking job
+     */
+    private final ConcurrentMap<String, Set<Integer>> blockedItems = new ConcurrentHashMap<String, Set<Integer>>();
+
+    /**
+     * full names of the blocking jobs by id of the blocked queue item
+     */
+    private final ConcurrentMap<Integer, String> blockers = new ConcurrentHashMap<Integer, String>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private final AtomicLong performed = new AtomicLong();
+
+    private final Runnable maintenance = new Runnable() {
+        public void run() {
+            scheduled.set(false);
+            performed.incrementAndGet();
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                jenkins.getQueue().scheduleMaintenance();
+            }
+        }
+    };
+
+    //default scope for testability
+    UnblockingScheduler() {
+    }
+
+    /**
+     * @return the scheduler used by the dispatcher
+     */
+    public static UnblockingScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that the given item is blocked by the given job.
+     *
+     * @param item        the blocked item
+     * @param blockingJob the job blocking it
+     */
+    public void onBlocked(Queue.Item item, Job blockingJob) {
+        Integer id = Integer.valueOf(item.getId());
+        String fullName = blockingJob.getFullName();
+        String previous = blockers.put(id, fullName);
+        if (previous != null && !previous.equals(fullName)) {
+            removeBlockedItem(previous, id);
+        }
+        Set<Integer> ids = blockedItems.get(fullName);
+        if (ids == null) {
+            ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            Set<Integer> existing = blockedItems.putIfAbsent(fullName, ids);
+            if (existing != null) {
+                ids = existing;
+            }
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Records that the given item is not blocked, or no longer in the queue.
+     *
+     * @param item the item
+     */
+    public void onNotBlocked(Queue.Item item) {
+        Integer id = Integer.valueOf(item.getId());
+        String previous = blockers.remove(id);
+        if (previous != null) {
+            removeBlockedItem(previous, id);
+        }
+    }
+
+    /**
+     * Schedules a queue maintenance if the given job blocks queued items.
+     *
+     * @param fullName the full name of the job that finished a build or left the queue
+     */
+    public void onBlockingJobGone(String fullName) {
+        Set<Integer> ids = blockedItems.get(fullName);
+        if (ids != null && !ids.isEmpty()) {
+            if (LOG.isLoggable(FINE)) {
+                LOG.logp(FINE, getClass().getName(), "onBlockingJobGone", fullName + " blocked " + ids.size()
+                        + " queued items, scheduling queue maintenance");
+            }
+            requestMaintenance();
+        }
+    }
+
+    /**
+     * Schedules a queue maintenance unless one is already scheduled.
+     */
+    public void requestMaintenance() {
+        requested.incrementAndGet();
+        if (scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(maintenance, DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of maintenances requested
+     */
+    public long getRequested() {
+        return requested.get();
+    }
+
+    /**
+     * @return the number of maintenances actually triggered after coalescing the requests
+     */
+    public long getPerformed() {
+        return performed.get();
+    }
+
+    private void removeBlockedItem(String fullName, Integer id) {
+        Set<Integer> ids = blockedItems.get(fullName);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                blockedItems.remove(fullName, ids);
+            }
+        }
+    }
+
+    /**
+     * Reports finished builds of blocking jobs.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            if (DISABLED) {
+                return;
+            }
+            Job job = run.getParent();
+            if (job instanceof MatrixConfiguration) {
+                job = ((MatrixConfiguration) job).getParent();
+            }
+            get().onBlockingJobGone(job.getFullName());
+        }
+    }
+
+    /**
+     * Reports blocking jobs leaving the queue and forgets items that left it.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (DISABLED) {
+                return;
+            }
+            get().onNotBlocked(li);
+            if (li.task instanceof Job) {
+                get().onBlockingJobGone(((Job) li.task).getFullName());
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.CauseOfBlockage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Queue.Item.class, BuildableItem.class})
+@RunWith(PowerMockRunner.class)
+public class AsyncEvaluatorUnitTest {
+
+    @Mock
+    private CauseOfBlockage cause;
+
+    private BuildableItem blockedItem;
+    private BuildableItem freeItem;
+    private BuildableItem newItem;
+    private List<Queue.Item> items;
+
+    private BuildBlockerQueueTaskDispatcher dispatcher;
+    private DecisionCache decisionCache;
+    private AsyncEvaluator evaluator;
+
+    @Before
+    public void setup() {
+        blockedItem = PowerMockito.mock(BuildableItem.class);
+        freeItem = PowerMockito.mock(BuildableItem.class);
+        newItem = PowerMockito.mock(BuildableItem.class);
+        when(blockedItem.getId()).thenReturn(1);
+        when(freeItem.getId()).thenReturn(2);
+        when(newItem.getId()).thenReturn(3);
+        items = Arrays.<Queue.Item>asList(blockedItem, freeItem);
+
+        Map<Queue.Item, CauseOfBlockage> blocked = Collections.<Queue.Item, CauseOfBlockage>singletonMap(blockedItem, cause);
+        dispatcher = mock(BuildBlockerQueueTaskDispatcher.class);
+        when(dispatcher.evaluateAll(anyCollectionOf(Queue.Item.class), any(Node.class))).thenReturn(blocked);
+
+        RunningBuildsRegistry registry = new RunningBuildsRegistry();
+        registry.reconcile(new Computer[0]);
+        QueueIndex index = new QueueIndex(new LabelMembershipCache());
+        index.reconcile(new Queue.Item[0], 0);
+        decisionCache = new DecisionCache(registry, index);
+        evaluator = new AsyncEvaluator(decisionCache);
+    }
+
+    @Test
+    public void testNothingIsPublishedWhileDisabled() {
+        evaluator.evaluate(items, dispatcher, 1000);
+
+        assertThat(evaluator.lookup(blockedItem, 1000), is(nullValue()));
+        assertThat(evaluator.getHits(), is(0L));
+    }
+
+    @Test
+    public void testPublishedDecisionsAreUsedWhileFresh() {
+        evaluator.configure(true, 500);
+        evaluator.evaluate(items, dispatcher, 1000);
+
+        assertThat(evaluator.lookup(blockedItem, 1200).getCause(), is(sameInstance(cause)));
+        assertThat(evaluator.lookup(freeItem, 1500).getCause(), is(nullValue()));
+        assertThat(evaluator.getHits(), is(2L));
+        assertThat(evaluator.getEvaluations(), is(1L));
+    }
+
+    @Test
+    public void testStaleOrUnknownItemsAreEvaluatedSynchronously() {
+        evaluator.configure(true, 500);
+        evaluator.evaluate(items, dispatcher, 1000);
+
+        assertThat(evaluator.lookup(blockedItem, 1501), is(nullValue()));
+        assertThat(evaluator.lookup(newItem, 1200), is(nullValue()));
+        assertThat(evaluator.getStale(), is(1L));
+        assertThat(evaluator.getUnknown(), is(1L));
+        assertThat(evaluator.getHits(), is(0L));
+    }
+
+    @Test
+    public void testDecisionsAreNotUsedAfterTheStateChanged() {
+        evaluator.configure(true, 500);
+        evaluator.evaluate(items, dispatcher, 1000);
+        assertThat(evaluator.lookup(freeItem, 1200).getCause(), is(nullValue()));
+
+        decisionCache.onConfigurationChange();
+
+        assertThat(evaluator.lookup(freeItem, 1200), is(nullValue()));
+        assertThat(evaluator.getStale(), is(1L));
+    }
+
+    @Test
+    public void testStateChangeDropsThePublication() {
+        evaluator.configure(true, 500);
+        evaluator.evaluate(items, dispatcher, 1000);
+
+        evaluator.onStateChange();
+
+        assertThat(evaluator.lookup(freeItem, 1200), is(nullValue()));
+        assertThat(evaluator.getAge(), is(-1L));
+    }
+}
@@ -0,0 +1,143 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.Project;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Project.class, Jenkins.class})
+@RunWith(PowerMockRunner.class)
+public class BlockerGraphUnitTest {
+
+    private Project blockedProject;
+    private Project deployProject;
+    private Project testProject;
+
+    private BuildBlockerProperty property;
+
+    private BlockerGraph graph;
+
+    @Before
+    public void setup() {
+        blockedProject = mockProject("blocked");
+        deployProject = mockProject("folder/deploy-prod");
+        testProject = mockProject("folder/test");
+
+        property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .setBlockingJobs("folder/deploy-.*")
+                .createBuildBlockerProperty();
+        when(blockedProject.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+
+        graph = new BlockerGraph();
+        graph.rebuild(Arrays.asList(blockedProject, deployProject, testProject));
+    }
+
+    @Test
+    public void testBlockersArePrecomputed() {
+        assertThat(graph.getBlockers("blocked"), contains("folder/deploy-prod"));
+        assertThat(graph.getBlockers("folder/test"), is(empty()));
+
+        BlockingJobsMatcher matcher = graph.getBlockingJobsMatcher(blockedProject, property);
+        assertThat(matcher.matches("folder/deploy-prod"), is(true));
+        assertThat(matcher.matches("folder/deploy-qa"), is(false));
+        assertThat(graph.getBlockingJobsMatcher(blockedProject, property), is(sameInstance(matcher)));
+    }
+
+    @Test
+    public void testCreatedRenamedAndDeletedJobsUpdateTheBlockers() {
+        graph.onJobAdded("folder/deploy-qa");
+        assertThat(graph.getBlockers("blocked"), contains("folder/deploy-prod", "folder/deploy-qa"));
+
+        graph.onJobRenamed("folder/deploy-prod", "folder/released");
+        assertThat(graph.getBlockers("blocked"), contains("folder/deploy-qa"));
+
+        graph.onJobRemoved("folder/deploy-qa");
+        assertThat(graph.getBlockers("blocked"), is(empty()));
+    }
+
+    @Test
+    public void testChangedBlockingJobsAreComputedAgain() {
+        BuildBlockerProperty changed = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .setBlockingJobs("folder/test")
+                .createBuildBlockerProperty();
+        when(blockedProject.getProperty(eq(BuildBlockerProperty.class))).thenReturn(changed);
+
+        graph.onConfigured(blockedProject);
+
+        assertThat(graph.getBlockers("blocked"), contains("folder/test"));
+        assertThat(graph.getGraph().keySet(), contains("blocked"));
+    }
+
+    @Test
+    public void testIdenticalBlockingJobsShareTheBlockerSet() {
+        Project otherBlockedProject = mockProject("otherBlocked");
+        BuildBlockerProperty sameProperty = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .setBlockingJobs("folder/deploy-.*")
+                .createBuildBlockerProperty();
+        when(otherBlockedProject.getProperty(eq(BuildBlockerProperty.class))).thenReturn(sameProperty);
+        graph.onJobAdded("otherBlocked");
+        graph.onConfigured(otherBlockedProject);
+
+        assertThat(graph.getBlockingJobsMatcher(otherBlockedProject, sameProperty),
+                is(sameInstance(graph.getBlockingJobsMatcher(blockedProject, property))));
+        assertThat(sameProperty.getBlockingJobs(), is(sameInstance(property.getBlockingJobs())));
+    }
+
+    @Test
+    public void testJobsTheCallerCannotReadAreBlockers() {
+        PowerMockito.mockStatic(Jenkins.class);
+        Jenkins jenkins = PowerMockito.mock(Jenkins.class);
+        when(Jenkins.getInstance()).thenReturn(jenkins);
+        when(jenkins.getAllItems(Job.class)).thenAnswer(new Answer<List<Job>>() {
+            public List<Job> answer(InvocationOnMock invocation) {
+                // only the system can read the deploy job
+                return SecurityContextHolder.getContext().getAuthentication() == ACL.SYSTEM
+                        ? Arrays.<Job>asList(blockedProject, deployProject, testProject)
+                        : Arrays.<Job>asList(blockedProject, testProject);
+            }
+        });
+
+        SecurityContext previous = ACL.impersonate(new UsernamePasswordAuthenticationToken("user", "user"));
+        try {
+            BlockerGraph lazyGraph = new BlockerGraph();
+            assertThat(lazyGraph.getBlockers("blocked"), contains("folder/deploy-prod"));
+            assertThat(SecurityContextHolder.getContext().getAuthentication() == ACL.SYSTEM, is(false));
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    private Project mockProject(String fullName) {
+        Project project = PowerMockito.mock(Project.class);
+        when(project.getFullName()).thenReturn(fullName);
+        return project;
+    }
+}
@@ -0,0 +1,189 @@
+package hudson.plugins.buildblocker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BlockingJobsMatcherTest {
+
+    @Test
+    public void testBlankConfigurationNeverMatches() {
+        assertThat(BlockingJobsMatcher.compile(null), is(sameInstance(BlockingJobsMatcher.EMPTY)));
+        assertThat(BlockingJobsMatcher.compile("  "), is(sameInstance(BlockingJobsMatcher.EMPTY)));
+        assertThat(BlockingJobsMatcher.EMPTY.matches("someJob"), is(false));
+    }
+
+    @Test
+    public void testMatchesWholeNameAgainstEveryLine() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("firstJob\nfolder/second.*");
+
+        assertThat(matcher.matches("firstJob"), is(true));
+        assertThat(matcher.matches("folder/secondJob"), is(true));
+        assertThat(matcher.matches("firstJobCopy"), is(false));
+        assertThat(matcher.matches("other/secondJob"), is(false));
+    }
+
+    @Test
+    public void testLimitedLinesAreKeptApartFromTheFirstHitLines() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("deploy\nintegration-.* >= 3\nsmoke >=1");
+
+        assertThat(matcher.getPatterns().size(), is(2));
+        assertThat(matcher.matches("smoke"), is(true));
+        assertThat(matcher.matches("integration-db"), is(false));
+        assertThat(matcher.matchesLimited("integration-db"), is(true));
+        assertThat(matcher.getLimits().size(), is(1));
+        assertThat(matcher.getLimits().get(0).getThreshold(), is(3));
+    }
+
+    @Test
+    public void testCountStopsAtTheLimit() {
+        NavigableMap<String, Integer> builds = new TreeMap<String, Integer>();
+        builds.put("integration-a", 2);
+        builds.put("integration-b", 2);
+        builds.put("other", 5);
+        BlockingJobsMatcher.Weight<Integer, Object> weight = new BlockingJobsMatcher.Weight<Integer, Object>() {
+            public int of(Integer value, Object unused) {
+                return value;
+            }
+        };
+
+        assertThat(BlockingJobsMatcher.compile("integration-.*").count(builds, weight, null, 10), is(4));
+        assertThat(BlockingJobsMatcher.compile("integration-.*").count(builds, weight, null, 1), is(2));
+        assertThat(BlockingJobsMatcher.compile("integration-a\ninteg.*\n.*-a").count(builds, weight, null, 10),
+                is(4));
+        assertThat(BlockingJobsMatcher.compile("integration-a\ninteg.*\nintegration-.*")
+                .count(builds, weight, null, 10), is(4));
+    }
+
+    @Test
+    public void testInvalidLinesAreIgnored() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("broken[\nvalidJob");
+
+        assertThat(matcher.getInvalidPatterns(), contains("broken["));
+        assertThat(matcher.getPatterns().size(), is(1));
+        assertThat(matcher.matches("validJob"), is(true));
+        assertThat(matcher.matches("broken["), is(false));
+    }
+
+    @Test
+    public void testLinesDoNotInfluenceEachOther() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("(?i)upper\nlower\n(a)\\1-job\nfirst|second");
+
+        assertThat(matcher.matches("UPPER"), is(true));
+        assertThat(matcher.matches("lower"), is(true));
+        assertThat(matcher.matches("LOWER"), is(false));
+        assertThat(matcher.matches("aa-job"), is(true));
+        assertThat(matcher.matches("ab-job"), is(false));
+        assertThat(matcher.matches("second"), is(true));
+        assertThat(matcher.matches("firstsecond"), is(false));
+    }
+
+    @Test
+    public void testPlainNamesPrefixesAndSuffixes() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("release\\.job\nfolder/deploy-.*\n.*-nightly");
+
+        assertThat(matcher.matches("release.job"), is(true));
+        assertThat(matcher.matches("releaseXjob"), is(false));
+        assertThat(matcher.matches("folder/deploy-prod"), is(true));
+        assertThat(matcher.matches("folder/deploy"), is(false));
+        assertThat(matcher.matches("build-nightly"), is(true));
+        assertThat(matcher.matches("build-nightly-2"), is(false));
+    }
+
+    @Test
+    public void testFindFirstOnlyVisitsMatchingNames() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("other\nfolder/.*");
+        NavigableMap<String, String> jobs = new TreeMap<String, String>();
+        jobs.put("folder", "folder");
+        jobs.put("folder/a", "a");
+        jobs.put("folder/b", "b");
+        jobs.put("folderX", "folderX");
+        final List<String> visited = new ArrayList<String>();
+
+        String found = matcher.findFirst(jobs, new BlockingJobsMatcher.Filter<String>() {
+            public boolean accept(String value) {
+                visited.add(value);
+                return value.equals("b");
+            }
+        });
+
+        assertThat(found, is("b"));
+        assertThat(visited, contains("a", "b"));
+    }
+
+    @Test
+    public void testFindFirstScansForGeneralExpressions() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("fo[lo]+der/b");
+        NavigableMap<String, String> jobs = new TreeMap<String, String>();
+        jobs.put("folder/a", "a");
+        jobs.put("folder/b", "b");
+
+        assertThat(matcher.findFirst(jobs, BlockingJobsMatcher.Filter.ALL), is("b"));
+    }
+
+    @Test
+    public void testIdenticalConfigurationsShareOneMatcher() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("shared.*\nother[0-9]");
+
+        assertThat(BlockingJobsMatcher.compile(new String("shared.*\nother[0-9]")), is(sameInstance(matcher)));
+        assertThat(matcher.matches("other1"), is(true));
+        assertThat(matcher.matches("other1"), is(true));
+        assertThat(matcher.matches("otherX"), is(false));
+    }
+
+    @Test
+    public void testScopedLinesOnlyApplyToMatchingJobs() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("app/(.*)/deploy => app/$1/build\nmaintenance");
+
+        assertThat(matcher.getPatterns().size(), is(1));
+        assertThat(matcher.matches("app/feature/build"), is(false));
+        assertThat(matcher.forJob("other"), is(sameInstance(BlockingJobsMatcher.compile("maintenance"))));
+
+        BlockingJobsMatcher resolved = matcher.forJob("app/feature.x/deploy");
+        assertThat(resolved, is(sameInstance(matcher.forJob("app/feature.x/deploy"))));
+        assertThat(resolved.matches("app/feature.x/build"), is(true));
+        assertThat(resolved.matches("app/featureyx/build"), is(false));
+        assertThat(resolved.matches("app/other/build"), is(false));
+        assertThat(resolved.matches("maintenance"), is(true));
+    }
+
+    @Test
+    public void testScopedLinesOnlyVisitTheCapturedValue() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("app/(.*)/deploy => app/$1/.*");
+        NavigableMap<String, String> jobs = new TreeMap<String, String>();
+        jobs.put("app/a/build", "a");
+        jobs.put("app/b/build", "b");
+        jobs.put("app/b/test", "test");
+        jobs.put("app/c/build", "c");
+        final List<String> visited = new ArrayList<String>();
+
+        String found = matcher.forJob("app/b/deploy").findFirst(jobs, new BlockingJobsMatcher.Filter<String>() {
+            public boolean accept(String value) {
+                visited.add(value);
+                return false;
+            }
+        });
+
+        assertThat(found, is((String) null));
+        assertThat(visited, contains("b", "test"));
+    }
+
+    @Test
+    public void testScopedLinesMayHaveALimit() {
+        BlockingJobsMatcher matcher = BlockingJobsMatcher.compile("app/(.*)/deploy => app/$1/test-.* >= 2")
+                .forJob("app/b/deploy");
+
+        assertThat(matcher.getLimits().size(), is(1));
+        assertThat(matcher.getLimits().get(0).getThreshold(), is(2));
+        assertThat(matcher.getLimits().get(0).getMatcher().matches("app/b/test-1"), is(true));
+        assertThat(matcher.getLimits().get(0).getMatcher().matches("app/c/test-1"), is(false));
+    }
+}
@@ -0,0 +1,60 @@
+package hudson.plugins.buildblocker;
+
+import hudson.plugins.buildblocker.BlockingMetrics.Probe;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BlockingMetricsUnitTest {
+
+    private BlockingMetrics metrics;
+
+    @Before
+    public void setup() {
+        metrics = new BlockingMetrics();
+    }
+
+    @Test
+    public void testCallsAreCountedByOutcome() {
+        metrics.record(Probe.CAN_RUN, System.nanoTime(), true, 3);
+        metrics.record(Probe.CAN_RUN, System.nanoTime(), false, 3);
+        metrics.record(Probe.QUEUE_ALL, System.nanoTime(), false, 1);
+
+        assertThat(metrics.getCalls(Probe.CAN_RUN), is(2L));
+        assertThat(metrics.getBlocked(Probe.CAN_RUN), is(1L));
+        assertThat(metrics.getPatterns(Probe.CAN_RUN), is(6L));
+        assertThat(metrics.getCalls(Probe.QUEUE_ALL), is(1L));
+        assertThat(metrics.getCalls(Probe.CAN_TAKE), is(0L));
+    }
+
+    @Test
+    public void testHistogramIsCumulative() {
+        metrics.record(Probe.NODE_RUNNING, System.nanoTime(), false, 1);
+        metrics.record(Probe.NODE_RUNNING, System.nanoTime() - 1000000000L, false, 1);
+
+        JSONObject latency = metrics.toJson().getJSONObject("nodeRunning").getJSONObject("latencyNanos");
+        assertThat(latency.getLong("100000000"), is(1L));
+        assertThat(latency.getLong("+Inf"), is(2L));
+    }
+
+    @Test
+    public void testPrometheusOutput() {
+        metrics.record(Probe.CAN_TAKE, System.nanoTime(), true, 2);
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        metrics.writePrometheus(writer);
+        writer.flush();
+
+        assertThat(out.toString(), containsString("buildblocker_check_seconds_count{check=\"canTake\"} 1\n"));
+        assertThat(out.toString(), containsString(
+                "buildblocker_check_decisions_total{check=\"canTake\",decision=\"blocked\"} 1\n"));
+        assertThat(out.toString(), containsString("buildblocker_check_patterns_total{check=\"canTake\"} 2\n"));
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.buildblocker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BlockingRulesUnitTest {
+
+    private BlockingRules rules;
+
+    @Before
+    public void setup() {
+        rules = new BlockingRules();
+        rules.configure(asList(
+                new BlockingRule("deploy/.*", "db-migrate-.*", "global", "all"),
+                new BlockingRule("deploy/prod-.*\nrelease", "backup", "node", "buildable"),
+                new BlockingRule("", "ignored", "global", "disabled")));
+    }
+
+    @Test
+    public void testRulesApplyToMatchingSourceJobs() {
+        assertThat(rules.size(), is(2));
+        assertThat(rules.getRules("deploy/test"), is(arrayWithSize(1)));
+        assertThat(rules.getRules("release"), is(arrayWithSize(1)));
+        assertThat(rules.getRules("build"), is(sameInstance(BlockingRules.NONE)));
+
+        BuildBlockerProperty[] applying = rules.getRules("deploy/prod-eu");
+        assertThat(applying, is(arrayWithSize(2)));
+        assertThat(applying[0].getBlockingJobs(), is("db-migrate-.*"));
+        assertThat(applying[0].getBlockLevel(), is(BuildBlockerProperty.BlockLevel.GLOBAL));
+        assertThat(applying[0].getScanQueueFor(), is(BuildBlockerProperty.QueueScanScope.ALL));
+        assertThat(applying[1].getBlockLevel(), is(BuildBlockerProperty.BlockLevel.NODE));
+        assertThat(applying[1].getScanQueueFor(), is(BuildBlockerProperty.QueueScanScope.BUILDABLE));
+    }
+
+    @Test
+    public void testRulesOfAJobAreLookedUpOnce() {
+        assertThat(rules.getRules("deploy/prod-eu"), is(sameInstance(rules.getRules("deploy/prod-eu"))));
+    }
+
+    @Test
+    public void testReconfigurationReplacesTheRules() {
+        rules.configure(asList(new BlockingRule("build", "deploy/.*", "global", "disabled")));
+
+        assertThat(rules.getRules("deploy/prod-eu"), is(sameInstance(BlockingRules.NONE)));
+        assertThat(rules.getRules("build"), is(arrayWithSize(1)));
+    }
+}
@@ -1,9 +1,13 @@
 package hudson.plugins.buildblocker;
 
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
 import hudson.model.Node;
 import hudson.model.Project;
 import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -12,6 +16,15 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -20,7 +33,7 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.support.membermodification.MemberMatcher.field;
 
-@PrepareForTest({Queue.BuildableItem.class, Project.class})
+@PrepareForTest({Queue.BuildableItem.class, Project.class, FreeStyleBuild.class})
 @RunWith(PowerMockRunner.class)
 public class BuildBlockerQueueTaskDispatcherUnitTest {
 
@@ -28,6 +41,8 @@ public class BuildBlockerQueueTaskDispatcherUnitTest {
     private BlockingJobsMonitor monitor;
     @Mock
     private Node node;
+    @Mock
+    private Node otherNode;
 
     private AbstractProject project;
     private Queue.BuildableItem item;
@@ -41,6 +56,8 @@ public class BuildBlockerQueueTaskDispatcherUnitTest {
         project = PowerMockito.mock(AbstractProject.class);
         item = PowerMockito.mock(Queue.BuildableItem.class);
         field(Queue.Item.class, "task").set(item, project);
+        when(node.getNodeName()).thenReturn("node");
+        when(otherNode.getNodeName()).thenReturn("otherNode");
     }
 
     @Test
@@ -505,12 +522,178 @@ public class BuildBlockerQueueTaskDispatcherUnitTest {
         verifyZeroInteractions(monitor);
     }
 
+    @Test
+    public void testEvaluateAllChecksRunningBuildsOncePerConfiguration() throws IllegalAccessException {
+        AbstractProject otherProject = PowerMockito.mock(AbstractProject.class);
+        Queue.BuildableItem otherItem = PowerMockito.mock(Queue.BuildableItem.class);
+        field(Queue.Item.class, "task").set(otherItem, otherProject);
+        when(project.getProperty(eq(BuildBlockerProperty.class)))
+                .thenReturn(new BuildBlockerPropertyBuilder()
+                        .setUseBuildBlocker()
+                        .setBlockOnGlobalLevel()
+                        .setBlockingJobs("someJob")
+                        .createBuildBlockerProperty());
+        when(otherProject.getProperty(eq(BuildBlockerProperty.class)))
+                .thenReturn(new BuildBlockerPropertyBuilder()
+                        .setUseBuildBlocker()
+                        .setBlockOnGlobalLevel()
+                        .setBlockingJobs("someJob")
+                        .createBuildBlockerProperty());
+        when(monitor.checkAllNodesForRunningBuilds()).thenReturn(project);
+
+        Map<Queue.Item, CauseOfBlockage> blocked = dispatcher.evaluateAll(Arrays.asList(item, otherItem), null);
+
+        assertThat(blocked.keySet(), contains((Queue.Item) item, otherItem));
+        verify(monitor, times(1)).checkAllNodesForRunningBuilds();
+        verifyNoMoreInteractions(monitor);
+    }
+
+    @Test
+    public void testGlobalRulesAreCheckedAfterTheJobProperty() {
+        BlockingRules rules = new BlockingRules();
+        rules.configure(Arrays.asList(new BlockingRule("deploy/.*", "db-migrate-.*", "node", "buildable")));
+        dispatcher.setBlockingRules(rules);
+        when(project.getFullName()).thenReturn("deploy/prod");
+        when(project.getProperty(eq(BuildBlockerProperty.class)))
+                .thenReturn(new BuildBlockerPropertyBuilder()
+                        .setUseBuildBlocker()
+                        .setBlockOnGlobalLevel()
+                        .setBlockingJobs("someJob")
+                        .createBuildBlockerProperty());
+
+        dispatcher.canRun(item);
+        dispatcher.canTake(node, item);
+
+        verify(monitor, times(1)).checkAllNodesForRunningBuilds();
+        verify(monitor, times(1)).checkNodeForRunningBuilds(eq(node));
+        verify(monitor, times(1)).checkNodeForBuildableQueueEntries(eq(item), eq(node));
+        verifyNoMoreInteractions(monitor);
+    }
+
+    @Test
+    public void testGlobalRulesApplyToJobsWithoutProperty() {
+        BlockingRules rules = new BlockingRules();
+        rules.configure(Arrays.asList(new BlockingRule("deploy/.*", "db-migrate-.*", "global", "disabled")));
+        dispatcher.setBlockingRules(rules);
+        when(project.getFullName()).thenReturn("deploy/prod");
+        when(monitor.checkAllNodesForRunningBuilds()).thenReturn(project);
+
+        assertThat(dispatcher.canRun(item), is(notNullValue()));
+
+        when(project.getFullName()).thenReturn("build");
+        dispatcher.canRun(item);
+        verify(monitor, times(1)).checkAllNodesForRunningBuilds();
+        verifyNoMoreInteractions(monitor);
+    }
+
+    @Test
+    public void testExclusionGroupHeldOnAnyNodeBlocksOnGlobalLevel() {
+        ExclusionGroups groups = new ExclusionGroups();
+        dispatcher.setExclusionGroups(groups);
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .createBuildBlockerProperty();
+        property.setExclusionGroups("db, cache");
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        FreeStyleBuild build = startBuild(groups, "otherNode", property);
+
+        CauseOfBlockage cause = dispatcher.canRun(item);
+        assertThat(cause, is(instanceOf(ExclusionGroupCause.class)));
+        assertThat(((ExclusionGroupCause) cause).getGroup(), is("db"));
+        assertThat(dispatcher.canTake(otherNode, item), is(nullValue()));
+
+        groups.onFinalized(build);
+        assertThat(dispatcher.canRun(item), is(nullValue()));
+        verifyZeroInteractions(monitor);
+    }
+
+    @Test
+    public void testExclusionGroupHeldOnTheSameNodeBlocksOnNodeLevel() {
+        ExclusionGroups groups = new ExclusionGroups();
+        dispatcher.setExclusionGroups(groups);
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnNodeLevel()
+                .createBuildBlockerProperty();
+        property.setExclusionGroups("db");
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        startBuild(groups, "node", property);
+
+        assertThat(dispatcher.canRun(item), is(nullValue()));
+        CauseOfBlockage cause = dispatcher.canTake(node, item);
+        assertThat(cause, is(instanceOf(ExclusionGroupCause.class)));
+        assertThat(((ExclusionGroupCause) cause).getGroup(), is("db"));
+        assertThat(dispatcher.canTake(otherNode, item), is(nullValue()));
+        verifyZeroInteractions(monitor);
+    }
+
+    @Test
+    public void testResourceBudgetExceededOnAnyNodeBlocksOnGlobalLevel() {
+        ResourceBudgets budgets = new ResourceBudgets();
+        budgets.configure("licenses: 2");
+        dispatcher.setResourceBudgets(budgets);
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .createBuildBlockerProperty();
+        property.setResources("licenses: 2");
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        FreeStyleBuild build = startBuild(budgets, "otherNode", property);
+
+        CauseOfBlockage cause = dispatcher.canRun(item);
+        assertThat(cause, is(instanceOf(ResourceBudgetCause.class)));
+        assertThat(((ResourceBudgetCause) cause).getResource(), is("licenses"));
+        assertThat(dispatcher.canTake(otherNode, item), is(nullValue()));
+
+        budgets.onFinalized(build);
+        assertThat(dispatcher.canRun(item), is(nullValue()));
+        verifyZeroInteractions(monitor);
+    }
+
+    @Test
+    public void testResourceBudgetExceededOnTheSameNodeBlocksOnNodeLevel() {
+        ResourceBudgets budgets = new ResourceBudgets();
+        budgets.configure("licenses: 2");
+        dispatcher.setResourceBudgets(budgets);
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnNodeLevel()
+                .createBuildBlockerProperty();
+        property.setResources("licenses: 2");
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        startBuild(budgets, "node", property);
+
+        assertThat(dispatcher.canRun(item), is(nullValue()));
+        CauseOfBlockage cause = dispatcher.canTake(node, item);
+        assertThat(cause, is(instanceOf(ResourceBudgetCause.class)));
+        assertThat(((ResourceBudgetCause) cause).getResource(), is("licenses"));
+        assertThat(dispatcher.canTake(otherNode, item), is(nullValue()));
+        verifyZeroInteractions(monitor);
+    }
+
+    /**
+     * Starts a build of another job with the given property on the named node.
+     */
+    private static FreeStyleBuild startBuild(Occupancy occupancy, String nodeName, BuildBlockerProperty property) {
+        Project holder = PowerMockito.mock(Project.class);
+        when(holder.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        FreeStyleBuild build = PowerMockito.mock(FreeStyleBuild.class);
+        when(build.getParent()).thenReturn(holder);
+        Computer computer = PowerMockito.mock(Computer.class);
+        when(computer.getName()).thenReturn(nodeName);
+        Executor executor = PowerMockito.mock(Executor.class);
+        when(executor.getOwner()).thenReturn(computer);
+        occupancy.onStarted(build, executor);
+        return build;
+    }
+
     private class FieldReturningMonitorFactory implements MonitorFactory {
 
         private BlockingJobsMonitor monitor;
 
         @Override
-        public BlockingJobsMonitor build(String blockingJobs) {
+        public BlockingJobsMonitor build(BlockingJobsMatcher blockingJobs) {
             return monitor;
         }
 
@@ -0,0 +1,85 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.CauseOfBlockage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Queue.Item.class, BuildableItem.class, FreeStyleBuild.class, Project.class})
+@RunWith(PowerMockRunner.class)
+public class DecisionCacheUnitTest {
+
+    @Mock
+    private Node node;
+    @Mock
+    private Executor executor;
+    @Mock
+    private CauseOfBlockage cause;
+
+    private BuildableItem item;
+
+    private RunningBuildsRegistry registry;
+    private DecisionCache cache;
+
+    @Before
+    public void setup() {
+        item = PowerMockito.mock(BuildableItem.class);
+        when(item.getId()).thenReturn(1);
+        when(node.getNodeName()).thenReturn("node");
+
+        registry = new RunningBuildsRegistry();
+        registry.reconcile(new Computer[0]);
+        QueueIndex index = new QueueIndex(new LabelMembershipCache());
+        index.reconcile(new Queue.Item[0], 0);
+        cache = new DecisionCache(registry, index);
+    }
+
+    @Test
+    public void testDecisionIsReusedWhileTheVersionIsUnchanged() {
+        long version = cache.getVersion();
+        assertThat(cache.get(version, item, null), is(nullValue()));
+        cache.put(version, item, null, cause);
+
+        assertThat(cache.get(cache.getVersion(), item, null).getCause(), is(sameInstance(cause)));
+        assertThat(cache.get(cache.getVersion(), item, node), is(nullValue()));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(2L));
+    }
+
+    @Test
+    public void testDecisionIsDroppedWhenTheStateChanges() {
+        cache.put(cache.getVersion(), item, node, null);
+        assertThat(cache.get(cache.getVersion(), item, node), is(notNullValue()));
+
+        Project project = PowerMockito.mock(Project.class);
+        FreeStyleBuild build = PowerMockito.mock(FreeStyleBuild.class);
+        when(project.getFullName()).thenReturn("blockingProject");
+        when(build.getParent()).thenReturn(project);
+        registry.onStarted(build, executor);
+
+        assertThat(cache.get(cache.getVersion(), item, node), is(nullValue()));
+
+        cache.onConfigurationChange();
+        long version = cache.getVersion();
+        cache.put(version - 1, item, node, cause);
+        assertThat(cache.get(version, item, node), is(nullValue()));
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Run;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.support.membermodification.MemberMatcher.field;
+
+@PrepareForTest({Run.class, FreeStyleBuild.class, Project.class, Queue.BuildableItem.class})
+@RunWith(PowerMockRunner.class)
+public class ExclusionGroupsUnitTest {
+
+    @Mock
+    private Executor executor;
+    @Mock
+    private Computer computer;
+
+    private Project project;
+    private FreeStyleBuild build;
+    private Queue.BuildableItem item;
+
+    private ExclusionGroups groups;
+
+    @Before
+    public void setup() throws IllegalAccessException {
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .createBuildBlockerProperty();
+        property.setExclusionGroups("database, deployment\ndatabase");
+
+        project = PowerMockito.mock(Project.class);
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        build = PowerMockito.mock(FreeStyleBuild.class);
+        when(build.getParent()).thenReturn(project);
+        item = PowerMockito.mock(Queue.BuildableItem.class);
+        field(Queue.Item.class, "task").set(item, project);
+        when(item.getId()).thenReturn(1);
+
+        when(executor.getOwner()).thenReturn(computer);
+        when(computer.getName()).thenReturn("node");
+
+        groups = new ExclusionGroups();
+    }
+
+    @Test
+    public void testGroupNamesAreParsedOnce() {
+        assertThat(ExclusionGroups.groupsOf(project), is(arrayContaining("database", "deployment")));
+        assertThat(new BuildBlockerPropertyBuilder().createBuildBlockerProperty().getExclusionGroupNames(),
+                is(emptyArray()));
+    }
+
+    @Test
+    public void testRunningBuildHoldsItsGroupsUntilFinalized() {
+        groups.onStarted(build, executor);
+
+        assertThat(groups.findOccupied(new String[]{"other", "deployment"}), is("deployment"));
+        assertThat(groups.findOccupiedOnNode("node", new String[]{"database"}), is("database"));
+        assertThat(groups.findOccupiedOnNode("otherNode", new String[]{"database"}), is(nullValue()));
+        assertThat(groups.count("database"), is(1));
+
+        groups.onFinalized(build);
+        groups.onFinalized(build);
+
+        assertThat(groups.findOccupied(new String[]{"database", "deployment"}), is(nullValue()));
+        assertThat(groups.count("database"), is(0));
+    }
+
+    @Test
+    public void testPendingItemHoldsItsGroupsOnEveryNodeUntilItsBuildStarts() {
+        groups.onPending(item);
+
+        assertThat(groups.findOccupiedOnNode("otherNode", new String[]{"database"}), is("database"));
+        assertThat(groups.countOnNode("node", "database"), is(0));
+
+        groups.onLeft(item, executor);
+        assertThat(groups.countOnNode("node", "database"), is(1));
+        assertThat(groups.findOccupiedOnNode("otherNode", new String[]{"database"}), is(nullValue()));
+
+        groups.onStarted(build, executor);
+        assertThat(groups.count("database"), is(1));
+
+        groups.onFinalized(build);
+        assertThat(groups.count("database"), is(0));
+    }
+
+    @Test
+    public void testItemBlockedAgainReleasesItsGroups() {
+        groups.onPending(item);
+        groups.onNotPending(item);
+
+        assertThat(groups.count("database"), is(0));
+    }
+
+    @Test
+    public void testReconcileReleasesBuildsNoLongerRunning() {
+        groups.onStarted(build, executor);
+        when(computer.getExecutors()).thenReturn(singletonList(executor));
+
+        groups.reconcile(new Computer[]{computer});
+
+        assertThat(groups.count("database"), is(0));
+    }
+}
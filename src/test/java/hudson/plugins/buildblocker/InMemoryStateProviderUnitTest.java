@@ -0,0 +1,113 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InMemoryStateProviderUnitTest {
+
+    private FreeStyleProject project;
+    private FreeStyleProject blockingProject;
+    private Node node;
+    private Node otherNode;
+
+    private InMemoryStateProvider state;
+    private BlockingJobsMonitor monitor;
+
+    @Before
+    public void setup() {
+        project = mock(FreeStyleProject.class);
+        blockingProject = mock(FreeStyleProject.class);
+        when(project.getFullName()).thenReturn("project");
+        when(blockingProject.getFullName()).thenReturn("blockingProject");
+        node = mock(Node.class);
+        otherNode = mock(Node.class);
+        when(node.getNodeName()).thenReturn("node");
+        when(otherNode.getNodeName()).thenReturn("otherNode");
+
+        state = new InMemoryStateProvider();
+        monitor = new BlockingJobsMonitor(BlockingJobsMatcher.compile("blocking.*"), state);
+    }
+
+    @Test
+    public void testRunningBuildsAreFoundUntilFinished() {
+        state.started(project, "node");
+        assertThat(monitor.checkAllNodesForRunningBuilds(), is(nullValue()));
+
+        state.started(blockingProject, "node");
+        assertThat((FreeStyleProject) monitor.checkAllNodesForRunningBuilds(), is(equalTo(blockingProject)));
+        assertThat((FreeStyleProject) monitor.checkNodeForRunningBuilds(node), is(equalTo(blockingProject)));
+        assertThat(monitor.checkNodeForRunningBuilds(otherNode), is(nullValue()));
+
+        state.finished(blockingProject, "node");
+        assertThat(monitor.checkAllNodesForRunningBuilds(), is(nullValue()));
+    }
+
+    @Test
+    public void testQueuedItemsAreFoundByStateAndNode() {
+        Queue.WaitingItem item = waiting(project);
+        Queue.WaitingItem blockingItem = waiting(blockingProject);
+        state.queued(item, QueueIndex.State.BUILDABLE);
+        state.queued(blockingItem, QueueIndex.State.WAITING, "node");
+
+        assertThat(monitor.checkForBuildableQueueEntries(item), is(nullValue()));
+        assertThat((FreeStyleProject) monitor.checkForQueueEntries(item), is(equalTo(blockingProject)));
+        assertThat((FreeStyleProject) monitor.checkNodeForQueueEntries(item, node), is(equalTo(blockingProject)));
+        assertThat(monitor.checkNodeForQueueEntries(item, otherNode), is(nullValue()));
+
+        state.queued(blockingItem, QueueIndex.State.BUILDABLE);
+        assertThat((FreeStyleProject) monitor.checkForBuildableQueueEntries(item), is(equalTo(blockingProject)));
+        assertThat((FreeStyleProject) monitor.checkNodeForBuildableQueueEntries(item, otherNode),
+                is(equalTo(blockingProject)));
+
+        state.left(blockingItem);
+        assertThat(monitor.checkForQueueEntries(item), is(nullValue()));
+    }
+
+    @Test
+    public void testItemIsNotBlockedByItself() {
+        Queue.WaitingItem blockingItem = waiting(blockingProject);
+        state.queued(blockingItem, QueueIndex.State.WAITING);
+
+        assertThat(monitor.checkForQueueEntries(blockingItem), is(nullValue()));
+        assertThat((FreeStyleProject) monitor.checkForQueueEntries(waiting(project)), is(equalTo(blockingProject)));
+    }
+
+    @Test
+    public void testLimitedLineBlocksOnceThresholdOfActiveBuildsIsReached() {
+        BlockingJobsMonitor limited = new BlockingJobsMonitor(BlockingJobsMatcher.compile("blocking.* >= 3"), state);
+        Queue.WaitingItem item = waiting(project);
+        state.started(blockingProject, "node");
+        state.started(blockingProject, "otherNode");
+
+        assertThat(limited.checkAllNodesForRunningBuilds(), is(nullValue()));
+        assertThat(limited.checkNodeForRunningBuilds(node), is(nullValue()));
+
+        state.queued(waiting(blockingProject), QueueIndex.State.WAITING);
+        assertThat((FreeStyleProject) limited.checkForQueueEntries(item), is(equalTo(blockingProject)));
+        assertThat(limited.checkForBuildableQueueEntries(item), is(nullValue()));
+        assertThat(limited.checkNodeForQueueEntries(item, node), is(nullValue()));
+
+        state.started(blockingProject, "node");
+        assertThat((FreeStyleProject) limited.checkAllNodesForRunningBuilds(), is(equalTo(blockingProject)));
+        assertThat((FreeStyleProject) limited.checkNodeForQueueEntries(item, node), is(equalTo(blockingProject)));
+        assertThat(limited.checkNodeForRunningBuilds(node), is(nullValue()));
+    }
+
+    private static Queue.WaitingItem waiting(FreeStyleProject project) {
+        return new Queue.WaitingItem(Calendar.getInstance(), project, Collections.<Action>emptyList());
+    }
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Queue.Item.class, BuildableItem.class})
+@RunWith(PowerMockRunner.class)
+public class LabelMembershipCacheUnitTest {
+
+    @Mock
+    private Label label;
+    @Mock
+    private Node node;
+    @Mock
+    private Node otherNode;
+
+    private BuildableItem labeledItem;
+    private BuildableItem unlabeledItem;
+
+    private LabelMembershipCache cache;
+
+    @Before
+    public void setup() {
+        when(node.getNodeName()).thenReturn("node");
+        when(otherNode.getNodeName()).thenReturn("otherNode");
+        when(node.getMode()).thenReturn(Node.Mode.NORMAL);
+        when(otherNode.getMode()).thenReturn(Node.Mode.EXCLUSIVE);
+        when(label.contains(eq(node))).thenReturn(true);
+        when(label.contains(eq(otherNode))).thenReturn(false);
+
+        labeledItem = PowerMockito.mock(BuildableItem.class);
+        unlabeledItem = PowerMockito.mock(BuildableItem.class);
+        when(labeledItem.getAssignedLabel()).thenReturn(label);
+
+        cache = new LabelMembershipCache();
+    }
+
+    @Test
+    public void testLabelIsEvaluatedOncePerNode() {
+        assertThat(cache.canRunOn(labeledItem, node), is(true));
+        assertThat(cache.canRunOn(labeledItem, node), is(true));
+        assertThat(cache.canRunOn(labeledItem, otherNode), is(false));
+        assertThat(cache.canRunOn(labeledItem, otherNode), is(false));
+
+        verify(label, times(1)).contains(node);
+        verify(label, times(1)).contains(otherNode);
+    }
+
+    @Test
+    public void testInvalidateEvaluatesLabelAgain() {
+        cache.canRunOn(labeledItem, node);
+        cache.invalidate();
+        cache.canRunOn(labeledItem, node);
+
+        verify(label, times(2)).contains(node);
+    }
+
+    @Test
+    public void testItemWithoutLabelRunsOnNodesThatAreNotExclusive() {
+        assertThat(cache.canRunOn(unlabeledItem, node), is(true));
+        assertThat(cache.canRunOn(unlabeledItem, otherNode), is(false));
+        assertThat(LabelMembershipCache.canRunOnUncached(unlabeledItem, node), is(true));
+        assertThat(LabelMembershipCache.canRunOnUncached(unlabeledItem, otherNode), is(false));
+    }
+}
@@ -0,0 +1,128 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.plugins.buildblocker.BuildBlockerProperty.QueueScanScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.support.membermodification.MemberMatcher.field;
+
+@PrepareForTest({Queue.Item.class, BuildableItem.class, Queue.WaitingItem.class, Queue.LeftItem.class, Project.class})
+@RunWith(PowerMockRunner.class)
+public class QueueIndexUnitTest {
+
+    private static final BlockingJobsMatcher BLOCKING_PROJECT = BlockingJobsMatcher.compile("blockingProject");
+
+    private Project project;
+    private Project otherProject;
+    private BuildableItem buildableItem;
+    private Queue.WaitingItem waitingItem;
+    private BuildableItem otherItem;
+
+    private QueueIndex index;
+
+    @Before
+    public void setup() throws IllegalAccessException {
+        project = PowerMockito.mock(Project.class);
+        otherProject = PowerMockito.mock(Project.class);
+        when(project.getFullName()).thenReturn("blockingProject");
+        when(otherProject.getFullName()).thenReturn("otherProject");
+
+        buildableItem = PowerMockito.mock(BuildableItem.class);
+        waitingItem = PowerMockito.mock(Queue.WaitingItem.class);
+        otherItem = PowerMockito.mock(BuildableItem.class);
+        field(Queue.Item.class, "task").set(buildableItem, project);
+        field(Queue.Item.class, "task").set(waitingItem, project);
+        field(Queue.Item.class, "task").set(otherItem, otherProject);
+        when(buildableItem.getId()).thenReturn(1);
+        when(waitingItem.getId()).thenReturn(2);
+        when(otherItem.getId()).thenReturn(3);
+
+        index = new QueueIndex(new LabelMembershipCache());
+        index.reconcile(new Queue.Item[0], 0);
+    }
+
+    @Test
+    public void testFindQueuedReturnsNullIfNothingIsQueued() {
+        assertThat(index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(nullValue()));
+    }
+
+    @Test
+    public void testItemDoesNotSelfBlock() {
+        index.onEnter(buildableItem, QueueIndex.State.BUILDABLE);
+
+        assertThat(index.findQueued(buildableItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(nullValue()));
+        assertThat((Project) index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(equalTo(project)));
+    }
+
+    @Test
+    public void testItemIsBlockedByLaterJobIfItsOwnJobIsFoundFirst() {
+        index.onEnter(buildableItem, QueueIndex.State.BUILDABLE);
+        index.onEnter(otherItem, QueueIndex.State.BUILDABLE);
+        BlockingJobsMatcher bothProjects = BlockingJobsMatcher.compile("blockingProject\notherProject");
+
+        assertThat((Project) index.findQueued(buildableItem, bothProjects, QueueScanScope.ALL),
+                is(equalTo(otherProject)));
+        assertThat((Project) index.findQueued(otherItem, bothProjects, QueueScanScope.ALL), is(equalTo(project)));
+    }
+
+    @Test
+    public void testBuildableScopeIgnoresWaitingItems() {
+        index.onEnter(waitingItem, QueueIndex.State.WAITING);
+
+        assertThat(index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.BUILDABLE), is(nullValue()));
+        assertThat((Project) index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(equalTo(project)));
+        assertThat(index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.DISABLED), is(nullValue()));
+    }
+
+    @Test
+    public void testPendingItemsStayIndexedUntilTheyLeft() {
+        index.onEnter(buildableItem, QueueIndex.State.BUILDABLE);
+        index.onLeaveBuildable(buildableItem);
+
+        assertThat(index.countQueued("blockingProject", QueueScanScope.BUILDABLE), is(1));
+        assertThat((Project) index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.BUILDABLE), is(equalTo(project)));
+
+        index.onLeft(buildableItem);
+
+        assertThat(index.countQueued("blockingProject", QueueScanScope.ALL), is(0));
+        assertThat(index.findQueued(otherItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(nullValue()));
+    }
+
+    @Test
+    public void testReconcileReplacesIndexWithQueueContent() {
+        index.onEnter(waitingItem, QueueIndex.State.WAITING);
+
+        index.reconcile(new Queue.Item[]{buildableItem, otherItem}, 1);
+
+        assertThat(index.countQueued("blockingProject", QueueScanScope.BUILDABLE), is(1));
+        assertThat(index.countQueued("otherProject", QueueScanScope.ALL), is(1));
+        assertThat(index.findQueued(buildableItem, BLOCKING_PROJECT, QueueScanScope.ALL), is(nullValue()));
+    }
+
+    @Test
+    public void testSnapshotIsSharedUntilTheNextEvent() {
+        QueueIndex.Snapshot snapshot = index.snapshot();
+        assertThat(index.snapshot(), is(sameInstance(snapshot)));
+
+        index.onEnter(buildableItem, QueueIndex.State.BUILDABLE);
+        QueueIndex.Snapshot changed = index.snapshot();
+
+        assertThat(changed.getVersion(), is(not(snapshot.getVersion())));
+        assertThat(snapshot.countQueued("blockingProject", QueueScanScope.ALL), is(0));
+        assertThat(changed.countQueued("blockingProject", QueueScanScope.ALL), is(1));
+    }
+}
@@ -0,0 +1,149 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Run.class, FreeStyleBuild.class, Project.class, Queue.BuildableItem.class})
+@RunWith(PowerMockRunner.class)
+public class ResourceBudgetsUnitTest {
+
+    @Mock
+    private Executor executor;
+    @Mock
+    private Computer computer;
+
+    private FreeStyleBuild build;
+    private Queue.BuildableItem large;
+    private Queue.BuildableItem small;
+
+    private ResourceBudgets budgets;
+
+    @Before
+    public void setup() {
+        Project project = project("licenses: 2");
+        build = PowerMockito.mock(FreeStyleBuild.class);
+        when(build.getParent()).thenReturn(project);
+        large = item(1);
+        small = item(2);
+
+        when(executor.getOwner()).thenReturn(computer);
+        when(computer.getName()).thenReturn("node");
+
+        budgets = new ResourceBudgets();
+        budgets.configure("licenses: 4\ngpu: 1");
+    }
+
+    @Test
+    public void testEntriesAreParsedWithDefaultWeight() {
+        Map<String, Integer> parsed = ResourceBudgets.parse("licenses: 2, gpu\nbroken: x\nnone: 0");
+
+        assertThat(parsed.size(), is(2));
+        assertThat(parsed, hasEntry("licenses", 2));
+        assertThat(parsed, hasEntry("gpu", 1));
+    }
+
+    @Test
+    public void testItemIsBlockedWhileItsWeightExceedsTheCapacity() {
+        budgets.onStarted(build, executor);
+        assertThat(budgets.count("licenses"), is(2));
+
+        assertThat(budgets.check(large, ResourceBudgets.parse("licenses: 3")), is(notNullValue()));
+        assertThat(budgets.check(small, ResourceBudgets.parse("licenses: 2, other: 5")), is(nullValue()));
+        assertThat(budgets.checkOnNode(large, "node", ResourceBudgets.parse("licenses: 3")), is(notNullValue()));
+        assertThat(budgets.checkOnNode(large, "otherNode", ResourceBudgets.parse("licenses: 3")), is(nullValue()));
+
+        budgets.onFinalized(build);
+        assertThat(budgets.check(large, ResourceBudgets.parse("licenses: 3")), is(nullValue()));
+    }
+
+    @Test
+    public void testWeightAboveTheCapacityIsReportedAndDoesNotWait() {
+        Map<String, Integer> twoGpus = ResourceBudgets.parse("gpu: 2");
+
+        ResourceBudgetCause cause = (ResourceBudgetCause) budgets.check(large, twoGpus);
+        assertThat(cause.isAboveCapacity(), is(true));
+        assertThat(cause.getShortDescription().endsWith("needs 2 of resource gpu, but its capacity is 1 only."),
+                is(true));
+        assertThat(budgets.countWaiting("gpu"), is(0));
+        assertThat(((ResourceBudgetCause) budgets.checkOnNode(large, "node", twoGpus)).isAboveCapacity(), is(true));
+
+        budgets.onStarted(build, executor);
+        cause = (ResourceBudgetCause) budgets.check(small, ResourceBudgets.parse("licenses: 3"));
+        assertThat(cause.isAboveCapacity(), is(false));
+    }
+
+    @Test
+    public void testLargerItemWaitsForSmallerOneThatFits() {
+        Map<String, Integer> three = ResourceBudgets.parse("licenses: 3");
+        Map<String, Integer> one = ResourceBudgets.parse("licenses: 1");
+        budgets.configure("licenses: 2");
+        budgets.onStarted(build, executor);
+
+        assertThat(budgets.check(small, one), is(notNullValue()));
+        budgets.onFinalized(build);
+
+        CauseOfBlockage cause = budgets.check(large, ResourceBudgets.parse("licenses: 2"));
+        assertThat(((ResourceBudgetCause) cause).isLeftToSmaller(), is(true));
+        assertThat(budgets.check(small, one), is(nullValue()));
+        assertThat(budgets.countWaiting("licenses"), is(1));
+
+        budgets.onItemLeft(large);
+        assertThat(budgets.countWaiting("licenses"), is(0));
+        assertThat(budgets.check(large, three), is(notNullValue()));
+    }
+
+    @Test
+    public void testSmallerItemNotCheckedAgainDoesNotHoldBackLargerOnes() {
+        Map<String, Integer> one = ResourceBudgets.parse("licenses: 1");
+        Map<String, Integer> two = ResourceBudgets.parse("licenses: 2");
+        budgets.configure("licenses: 2");
+        budgets.onStarted(build, executor);
+        assertThat(budgets.check(small, one, 1000), is(notNullValue()));
+        budgets.onFinalized(build);
+        long released = System.currentTimeMillis();
+
+        // the smaller item is held by something else and not checked within the recheck period
+        CauseOfBlockage cause = budgets.check(large, two, released + 1);
+        assertThat(((ResourceBudgetCause) cause).isLeftToSmaller(), is(true));
+        assertThat(budgets.check(large, two, released + ResourceBudgets.RECHECK_PERIOD + 1), is(nullValue()));
+    }
+
+    private static Project project(String resources) {
+        BuildBlockerProperty property = new BuildBlockerPropertyBuilder()
+                .setUseBuildBlocker()
+                .setBlockOnGlobalLevel()
+                .createBuildBlockerProperty();
+        property.setResources(resources);
+        Project project = PowerMockito.mock(Project.class);
+        when(project.getProperty(eq(BuildBlockerProperty.class))).thenReturn(property);
+        return project;
+    }
+
+    private static Queue.BuildableItem item(int id) {
+        Queue.BuildableItem item = PowerMockito.mock(Queue.BuildableItem.class);
+        when(item.getId()).thenReturn(id);
+        return item;
+    }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.buildblocker;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.support.membermodification.MemberMatcher.field;
+
+@PrepareForTest({Run.class, FreeStyleBuild.class, MatrixBuild.class, MatrixRun.class, Project.class, WorkUnit.class})
+@RunWith(PowerMockRunner.class)
+public class RunningBuildsRegistryUnitTest {
+
+    @Mock
+    private MatrixConfiguration configuration;
+    @Mock
+    private Executor executor;
+    @Mock
+    private Executor otherExecutor;
+    @Mock
+    private Computer computer;
+    @Mock
+    private Computer otherComputer;
+    @Mock
+    private SubTask subTask;
+
+    private Project project;
+    private MatrixProject matrixProject;
+    private FreeStyleBuild build;
+    private FreeStyleBuild secondBuild;
+    private MatrixRun matrixRun;
+
+    private RunningBuildsRegistry registry;
+
+    @Before
+    public void setup() {
+        project = PowerMockito.mock(Project.class);
+        matrixProject = PowerMockito.mock(MatrixProject.class);
+        when(project.getFullName()).thenReturn("blockingProject");
+        when(matrixProject.getFullName()).thenReturn("blockingMatrixProject");
+        when(configuration.getParent()).thenReturn(matrixProject);
+
+        build = PowerMockito.mock(FreeStyleBuild.class);
+        secondBuild = PowerMockito.mock(FreeStyleBuild.class);
+        matrixRun = PowerMockito.mock(MatrixRun.class);
+        when(build.getParent()).thenReturn(project);
+        when(secondBuild.getParent()).thenReturn(project);
+        when(matrixRun.getParent()).thenReturn(configuration);
+
+        when(executor.getOwner()).thenReturn(computer);
+        when(otherExecutor.getOwner()).thenReturn(otherComputer);
+        when(computer.getName()).thenReturn("node");
+        when(otherComputer.getName()).thenReturn("otherNode");
+
+        registry = new RunningBuildsRegistry();
+        registry.reconcile(new Computer[0]);
+    }
+
+    @Test
+    public void testFindRunningReturnsNullIfNothingIsRunning() {
+        assertThat(registry.findRunning(BlockingJobsMatcher.compile("blockingProject")), is(nullValue()));
+    }
+
+    @Test
+    public void testFindRunningReturnsStartedJob() {
+        registry.onStarted(build, executor);
+
+        assertThat((Project) registry.findRunning(BlockingJobsMatcher.compile("blocking.*")), is(equalTo(project)));
+        assertThat(registry.findRunning(BlockingJobsMatcher.compile("harmlessProject")), is(nullValue()));
+    }
+
+    @Test
+    public void testMatrixConfigurationIsFoldedToParent() {
+        registry.onStarted(matrixRun, executor);
+
+        assertThat((MatrixProject) registry.findRunning(BlockingJobsMatcher.compile("blockingMatrixProject")),
+                is(equalTo(matrixProject)));
+    }
+
+    @Test
+    public void testMatrixBuildIsCountedOnce() {
+        MatrixBuild matrixBuild = PowerMockito.mock(MatrixBuild.class);
+        MatrixRun otherMatrixRun = PowerMockito.mock(MatrixRun.class);
+        when(matrixBuild.getParent()).thenReturn(matrixProject);
+        when(otherMatrixRun.getParent()).thenReturn(configuration);
+        when(matrixRun.getParentBuild()).thenReturn(matrixBuild);
+        when(otherMatrixRun.getParentBuild()).thenReturn(matrixBuild);
+
+        registry.onStarted(matrixBuild, executor);
+        registry.onStarted(matrixRun, executor);
+        registry.onStarted(otherMatrixRun, otherExecutor);
+
+        BlockingJobsMatcher matrixJobs = BlockingJobsMatcher.compile("blockingMatrix.*");
+        assertThat(registry.countRunning("blockingMatrixProject"), is(1));
+        assertThat(registry.countRunning(matrixJobs, 10), is(1));
+        assertThat(registry.countRunningOnNode("node", matrixJobs, 10), is(1));
+        assertThat(registry.countRunningOnNode("otherNode", matrixJobs, 10), is(1));
+
+        registry.onFinalized(matrixRun);
+        registry.onFinalized(otherMatrixRun);
+        assertThat(registry.countRunning("blockingMatrixProject"), is(1));
+        assertThat(registry.countRunningOnNode("otherNode", matrixJobs, 10), is(0));
+    }
+
+    @Test
+    public void testJobStaysRunningUntilLastBuildIsFinalized() {
+        registry.onStarted(build, executor);
+        registry.onStarted(secondBuild, otherExecutor);
+        registry.onStarted(build, executor);
+
+        assertThat(registry.countRunning("blockingProject"), is(2));
+
+        registry.onFinalized(build);
+        assertThat(registry.countRunning("blockingProject"), is(1));
+
+        registry.onFinalized(secondBuild);
+        registry.onFinalized(secondBuild);
+        assertThat(registry.countRunning("blockingProject"), is(0));
+        assertThat(registry.findRunning(BlockingJobsMatcher.compile("blockingProject")), is(nullValue()));
+    }
+
+    @Test
+    public void testFindRunningOnNodeOnlyReturnsJobsOfThatNode() {
+        registry.onStarted(build, executor);
+
+        assertThat((Project) registry.findRunningOnNode("node", BlockingJobsMatcher.compile("blockingProject")),
+                is(equalTo(project)));
+        assertThat(registry.findRunningOnNode("otherNode", BlockingJobsMatcher.compile("blockingProject")),
+                is(nullValue()));
+
+        registry.onFinalized(build);
+        assertThat(registry.findRunningOnNode("node", BlockingJobsMatcher.compile("blockingProject")),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testReconcileMovesBuildsOfRenamedNode() {
+        registry.onStarted(build, executor);
+        when(computer.getName()).thenReturn("renamedNode");
+        when(computer.getExecutors()).thenReturn(singletonList(executor));
+        when(executor.getCurrentExecutable()).thenReturn(build);
+        when(build.isBuilding()).thenReturn(true);
+
+        registry.reconcile(new Computer[]{computer});
+
+        assertThat(registry.findRunningOnNode("node", BlockingJobsMatcher.compile("blockingProject")),
+                is(nullValue()));
+        assertThat((Project) registry.findRunningOnNode("renamedNode", BlockingJobsMatcher.compile("blockingProject")),
+                is(equalTo(project)));
+        assertThat(registry.countRunning("blockingProject"), is(1));
+    }
+
+    @Test
+    public void testSnapshotIsSharedUntilTheNextEvent() {
+        RunningBuildsRegistry.Snapshot snapshot = registry.snapshot();
+        assertThat(registry.snapshot(), is(sameInstance(snapshot)));
+
+        registry.onStarted(build, executor);
+        RunningBuildsRegistry.Snapshot changed = registry.snapshot();
+
+        assertThat(changed, is(not(sameInstance(snapshot))));
+        assertThat(snapshot.findRunning(BlockingJobsMatcher.compile("blockingProject")), is(nullValue()));
+        assertThat((Project) changed.findRunning(BlockingJobsMatcher.compile("blockingProject")), is(equalTo(project)));
+    }
+
+    @Test
+    public void testFinishedWorkUnitIsRemovedWhenTheVersionIsRead() throws IllegalAccessException {
+        WorkUnit workUnit = PowerMockito.mock(WorkUnit.class);
+        field(WorkUnit.class, "work").set(workUnit, subTask);
+        when(subTask.getOwnerTask()).thenReturn(project);
+        when(executor.getCurrentWorkUnit()).thenReturn(workUnit);
+
+        registry.onWorkUnitStarted(executor, workUnit);
+        long version = registry.getVersion();
+        assertThat(registry.getVersion(), is(version));
+        assertThat((Project) registry.findRunningOnNode("node", BlockingJobsMatcher.compile("blockingProject")),
+                is(equalTo(project)));
+
+        when(executor.getCurrentWorkUnit()).thenReturn(null);
+
+        assertThat(registry.getVersion(), is(not(version)));
+        assertThat(registry.findRunningOnNode("node", BlockingJobsMatcher.compile("blockingProject")),
+                is(nullValue()));
+    }
+}
@@ -0,0 +1,114 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Queue.Item.class, FreeStyleProject.class})
+@RunWith(PowerMockRunner.class)
+public class ShadowEvaluatorUnitTest {
+
+    @Mock
+    private BlockingJobCause cause;
+    @Mock
+    private BlockingJobCause otherCause;
+
+    private Queue.Item item;
+
+    private ShadowEvaluator evaluator;
+
+    @Before
+    public void setup() {
+        item = PowerMockito.mock(Queue.Item.class);
+        FreeStyleProject project = PowerMockito.mock(FreeStyleProject.class);
+        FreeStyleProject otherProject = PowerMockito.mock(FreeStyleProject.class);
+        when(project.getFullName()).thenReturn("project");
+        when(otherProject.getFullName()).thenReturn("otherProject");
+        when(cause.getBlockingJob()).thenReturn(project);
+        when(otherCause.getBlockingJob()).thenReturn(otherProject);
+
+        evaluator = new ShadowEvaluator();
+    }
+
+    @Test
+    public void testEveryNthCheckIsSampled() {
+        evaluator.configure(true, 10);
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (evaluator.sample()) {
+                sampled++;
+            }
+        }
+        assertThat(sampled, is(10));
+        assertThat(evaluator.getChecks(), is(100L));
+    }
+
+    @Test
+    public void testSampleRateIsLimited() {
+        evaluator.configure(true, 100);
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (evaluator.sample()) {
+                sampled++;
+            }
+        }
+        assertThat(sampled, is(ShadowEvaluator.MAX_SAMPLE_PERCENT));
+    }
+
+    @Test
+    public void testNoCheckIsSampledWhileTheConfiguredEngineExceedsItsShare() {
+        evaluator.configure(true, 25);
+        evaluator.record(item, null, null, 1000, null, 500);
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(evaluator.sample(), is(false));
+        }
+        assertThat(evaluator.getSkippedForOverhead(), is(1L));
+
+        evaluator.record(item, null, null, 1000, null, -1);
+        for (int i = 0; i < 3; i++) {
+            assertThat(evaluator.sample(), is(false));
+        }
+        assertThat(evaluator.sample(), is(true));
+    }
+
+    @Test
+    public void testDivergencesAreCountedAndKept() {
+        evaluator.record(item, null, cause, 100, null, 10);
+        evaluator.record(item, null, cause, 100, otherCause, 10);
+        evaluator.record(item, null, cause, 100, cause, 10);
+        evaluator.record(item, null, null, 100, cause, -1);
+
+        assertThat(evaluator.getSamples(), is(3L));
+        assertThat(evaluator.getDivergences(), is(1L));
+        assertThat(evaluator.getDifferentBlockers(), is(1L));
+        assertThat(evaluator.getLegacyNanos(), is(400L));
+        assertThat(evaluator.getSampledLegacyNanos(), is(300L));
+        assertThat(evaluator.getCandidateNanos(), is(30L));
+        assertThat(evaluator.getLastDivergences().size(), is(1));
+        assertThat(evaluator.getLastDivergences().get(0).endsWith("legacy blocked by project, configured not blocked"),
+                is(true));
+    }
+
+    @Test
+    public void testLegacyEngineMatchesLineByLine() {
+        LiveStateProvider legacy = new ShadowEvaluator.LegacyStateProvider();
+        BlockingJobsMatcher blockingJobs = BlockingJobsMatcher.compile("folder/deploy-.*\n.*-release\nsmoke");
+
+        assertThat(legacy.matches(blockingJobs, "folder/deploy-prod"), is(true));
+        assertThat(legacy.matches(blockingJobs, "app-release"), is(true));
+        assertThat(legacy.matches(blockingJobs, "smoke"), is(true));
+        assertThat(legacy.matches(blockingJobs, "smoke-test"), is(false));
+        assertThat(legacy.matches(BlockingJobsMatcher.compile("smoke >= 2"), "smoke"), is(false));
+    }
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.buildblocker;
+
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@PrepareForTest({Queue.Item.class, BuildableItem.class, Project.class})
+@RunWith(PowerMockRunner.class)
+public class UnblockingSchedulerUnitTest {
+
+    private Project blockingProject;
+    private BuildableItem item;
+    private BuildableItem otherItem;
+
+    private UnblockingScheduler scheduler;
+
+    @Before
+    public void setup() {
+        blockingProject = PowerMockito.mock(Project.class);
+        when(blockingProject.getFullName()).thenReturn("blockingProject");
+        item = PowerMockito.mock(BuildableItem.class);
+        otherItem = PowerMockito.mock(BuildableItem.class);
+        when(item.getId()).thenReturn(1);
+        when(otherItem.getId()).thenReturn(2);
+
+        scheduler = new UnblockingScheduler();
+    }
+
+    @Test
+    public void testFinishingJobWithoutBlockedItemsSchedulesNothing() {
+        scheduler.onBlockingJobGone("blockingProject");
+
+        assertThat(scheduler.getRequested(), is(0L));
+    }
+
+    @Test
+    public void testFinishingBlockingJobSchedulesOneMaintenanceForABurst() throws InterruptedException {
+        scheduler.onBlocked(item, blockingProject);
+        scheduler.onBlocked(otherItem, blockingProject);
+
+        scheduler.onBlockingJobGone("blockingProject");
+        scheduler.onBlockingJobGone("blockingProject");
+        scheduler.onBlockingJobGone("blockingProject");
+        Thread.sleep(UnblockingScheduler.DELAY * 5);
+
+        assertThat(scheduler.getRequested(), is(3L));
+        assertThat(scheduler.getPerformed(), is(1L));
+    }
+
+    @Test
+    public void testUnblockedItemsAreForgotten() {
+        scheduler.onBlocked(item, blockingProject);
+        scheduler.onNotBlocked(item);
+
+        scheduler.onBlockingJobGone("blockingProject");
+
+        assertThat(scheduler.getRequested(), is(0L));
+    }
+}